@@ -0,0 +1,247 @@
+package ksp;
+
+import static ksp.RequestTracker.error;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+/**
+ * Hosts the request graphs of many programmes in one process. Each tenant has its own graph, with
+ * its own requests, indices and IDs, saved in its own directory under the registry's root.
+ *
+ * <p>Graphs are loaded the first time their tenant is opened, and are handed out as leases that
+ * keep them open until closed. Once the requests held in memory by all the graphs exceed the
+ * budget, the least recently opened graphs no one holds a lease of are checkpointed and closed,
+ * to be loaded again when next opened. They are closed without locking the registry, so the
+ * other tenants are not held up meanwhile.
+ */
+public class GraphRegistry implements AutoCloseable {
+  private static final Pattern TENANT_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9_-]*");
+
+  private final Path rootDirectory;
+  private final long requestBudget;
+
+  /* Least recently opened first. */
+  private final LinkedHashMap<String, Tenant> graphs = new LinkedHashMap<>(16, 0.75f, true);
+
+  /* Graphs evicted but not closed yet. Their tenant is only loaded again once they are. */
+  private final Map<String, CompletableFuture<Void>> closing = new HashMap<>();
+
+  /* A tenant's graph, incomplete while it loads, and the number of leases of it held. */
+  private static final class Tenant {
+    final CompletableFuture<RequestGraph> graph = new CompletableFuture<>();
+    int leases; // guarded by the registry
+  }
+
+  /**
+   * A tenant's graph, kept open until the lease is closed. Closing a lease more than once has no
+   * effect.
+   */
+  public final class Lease implements AutoCloseable {
+    private final Tenant tenant;
+    private final RequestGraph graph;
+    private boolean closed; // guarded by the registry
+
+    private Lease(Tenant tenant, RequestGraph graph) {
+      this.tenant = tenant;
+      this.graph = graph;
+    }
+
+    public RequestGraph graph() {
+      return graph;
+    }
+
+    /** Releases the graph, which may then be evicted. */
+    @Override
+    public void close() {
+      Map<String, RequestGraph> evicted = new LinkedHashMap<>();
+      synchronized (GraphRegistry.this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        tenant.leases--;
+        evictOverBudget(evicted);
+      }
+      release(evicted);
+    }
+  }
+
+  /**
+   * @param rootDirectory Directory holding a save directory for each tenant
+   * @param requestBudget Number of requests the open graphs may hold in memory, archived ones
+   *     included, before the least recently opened are closed. The most recently opened graph
+   *     is kept even if it alone exceeds the budget.
+   */
+  public GraphRegistry(Path rootDirectory, long requestBudget) {
+    this.rootDirectory = rootDirectory;
+    this.requestBudget = requestBudget;
+  }
+
+  /**
+   * Leases the graph of a tenant, loading it if it is not open. Tenants are loaded separately,
+   * so opening one that is slow to load does not hold up the others.
+   *
+   * @param tenant Name of the tenant, also the name of its save directory
+   * @throws IllegalArgumentException if the name is not letters, digits, '-' and '_'
+   */
+  public Lease open(String tenant) {
+    if (!TENANT_NAME.matcher(tenant).matches()) {
+      throw new IllegalArgumentException("Invalid tenant name: " + tenant);
+    }
+    Tenant opened;
+    boolean loading = false;
+    CompletableFuture<Void> evicted;
+    synchronized (this) {
+      opened = graphs.get(tenant);
+      if (opened == null) {
+        opened = new Tenant();
+        graphs.put(tenant, opened);
+        loading = true;
+      }
+      opened.leases++;
+      evicted = closing.get(tenant);
+    }
+    if (loading) {
+      try {
+        if (evicted != null) {
+          evicted.join(); // its save files are released first
+        }
+        opened.graph.complete(new RequestGraph(rootDirectory.resolve(tenant).toString()));
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          graphs.remove(tenant, opened);
+        }
+        opened.graph.completeExceptionally(e);
+        throw e;
+      }
+    }
+    Lease lease = new Lease(opened, opened.graph.join());
+    Map<String, RequestGraph> overBudget = new LinkedHashMap<>();
+    synchronized (this) {
+      evictOverBudget(overBudget);
+    }
+    release(overBudget);
+    return lease;
+  }
+
+  /** Returns true if the tenant's graph is loaded, or being loaded. */
+  public synchronized boolean isOpen(String tenant) {
+    return graphs.containsKey(tenant);
+  }
+
+  /** Returns the tenants whose graphs are loaded, least recently opened first. */
+  public synchronized List<String> openTenants() {
+    return new ArrayList<>(graphs.keySet());
+  }
+
+  /**
+   * Checkpoints and closes the tenant's graph, if it is loaded and no one holds a lease of it.
+   *
+   * @return true if the graph was closed
+   */
+  public boolean evict(String tenant) {
+    Map<String, RequestGraph> evicted = new LinkedHashMap<>();
+    synchronized (this) {
+      Tenant loaded = graphs.get(tenant);
+      if (loaded != null && isIdle(loaded)) { // a graph still loading is left to its loader
+        graphs.remove(tenant);
+        evicting(tenant, loaded.graph.join(), evicted);
+      }
+    }
+    release(evicted);
+    return !evicted.isEmpty();
+  }
+
+  /*
+   * Picks the least recently opened idle graphs to close, until the rest fit the budget. The
+   * registry must be locked; the graphs are closed once it is not, by release.
+   */
+  private void evictOverBudget(Map<String, RequestGraph> evicted) {
+    long resident = 0;
+    for (Tenant loaded : graphs.values()) {
+      if (loaded.graph.isDone()) { // graphs that failed to load are removed before completing
+        resident += loaded.graph.join().residentRequests();
+      }
+    }
+    Iterator<Map.Entry<String, Tenant>> eldest = graphs.entrySet().iterator();
+    for (int open = graphs.size(); resident > requestBudget && open > 1 && eldest.hasNext(); ) {
+      Map.Entry<String, Tenant> loaded = eldest.next();
+      if (isIdle(loaded.getValue())) {
+        RequestGraph graph = loaded.getValue().graph.join();
+        resident -= graph.residentRequests();
+        eldest.remove();
+        evicting(loaded.getKey(), graph, evicted);
+        open--;
+      }
+    }
+  }
+
+  private static boolean isIdle(Tenant loaded) {
+    return loaded.graph.isDone() && loaded.leases == 0;
+  }
+
+  /* Records a graph taken out of the registry, to be closed by release. */
+  private void evicting(String tenant, RequestGraph graph, Map<String, RequestGraph> evicted) {
+    evicted.put(tenant, graph);
+    closing.put(tenant, new CompletableFuture<>());
+  }
+
+  /*
+   * Checkpoints and closes graphs taken out of the registry. It must not be locked. Every graph
+   * is closed, and its tenant freed to load again, even if another fails to close; the first
+   * failure is rethrown once they all are.
+   */
+  private void release(Map<String, RequestGraph> evicted) {
+    RuntimeException failure = null;
+    for (Map.Entry<String, RequestGraph> graph : evicted.entrySet()) {
+      String tenant = graph.getKey();
+      try {
+        if (!graph.getValue().checkpoint()) {
+          System.out.println(error + "Could not checkpoint the graph of " + tenant
+              + " before closing it. Its changes are kept in its journal.");
+        }
+        graph.getValue().close(); // waits for the checkpoint to be written
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      } finally {
+        CompletableFuture<Void> closed;
+        synchronized (this) {
+          closed = closing.remove(tenant);
+        }
+        closed.complete(null);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Checkpoints and closes every loaded graph. Leases still held must not be used afterwards.
+   */
+  @Override
+  public void close() {
+    Map<String, RequestGraph> evicted = new LinkedHashMap<>();
+    synchronized (this) {
+      graphs.forEach((tenant, loaded) -> {
+        if (loaded.graph.isDone()) {
+          evicting(tenant, loaded.graph.join(), evicted);
+        }
+      });
+      graphs.clear();
+    }
+    release(evicted);
+  }
+}
@@ -0,0 +1,43 @@
+/**
+ * @author Avaneesh Deleep <a href="mailto:ad2820@ic.ac.uk">Email for bug reports</a>
+ */
+
+package ksp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.Date;
+import ksp.utilities.ArchiveNode;
+
+/**
+ * Shape archive entries were saved in before ArchiveNode was flattened, holding the whole live
+ * RequestNode. Only used to read and migrate old archive buckets.
+ */
+record LegacyArchiveNode(RequestNode archivedNode, String solution, Date solutionDate)
+    implements Serializable {
+
+  ArchiveNode migrate() {
+    return archivedNode.toArchiveNode(solution, solutionDate);
+  }
+
+  /** Reads archive buckets, resolving old-style ArchiveNode entries to LegacyArchiveNode. */
+  static class Reader extends ObjectInputStream {
+
+    Reader(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+      ObjectStreamClass descriptor = super.readClassDescriptor();
+      if (descriptor.getName().equals(ArchiveNode.class.getName())
+          && descriptor.getField("archivedNode") != null) {
+        return ObjectStreamClass.lookup(LegacyArchiveNode.class);
+      }
+      return descriptor;
+    }
+  }
+}
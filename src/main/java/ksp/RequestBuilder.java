@@ -59,6 +59,8 @@ public class RequestBuilder {
     if (requestGraph == null){
       throw new IllegalRequestException("No graph specified to attach this Request node onto");
     }
-    return new RequestNode(requester, requestee, details, source, branches, requestGraph);
+    // linked into the graph as it is constructed, so built under the graph's write lock
+    return requestGraph.write(
+        () -> new RequestNode(requester, requestee, details, source, branches, requestGraph));
   }
 }
@@ -0,0 +1,93 @@
+package ksp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.StringJoiner;
+import ksp.utilities.Team;
+
+/**
+ * Sends console commands to a {@link RequestServer} on this machine, for a team's session. The
+ * connection is kept open between commands. It is made with {@link HttpURLConnection}, which
+ * reads the reply on the calling thread, as handing it between threads as {@code
+ * java.net.http.HttpClient} does costs more than the command itself.
+ */
+public class RequestClient {
+  private final URL commands;
+  private final Team team;
+  private final String token;
+
+  /**
+   * What the server printed running a command, and the question it answered no to, if any.
+   *
+   * @param output What the command printed, up to the question if it asked one
+   * @param question Null unless the command asked one, see {@link RequestServer}
+   */
+  public record Reply(String output, String question) {}
+
+  /**
+   * @param port Port the server listens on
+   * @param team Team of the session the commands are run for
+   * @param token The team's token, given out by whoever runs the server
+   */
+  public RequestClient(int port, Team team, String token) {
+    try {
+      commands = new URI("http", null, InetAddress.getLoopbackAddress().getHostAddress(), port,
+          RequestServer.COMMANDS, null, null).toURL();
+    } catch (URISyntaxException | IOException e) {
+      throw new IllegalArgumentException("Invalid server port " + port, e);
+    }
+    this.team = team;
+    this.token = token;
+  }
+
+  /** Runs a command line on the server, answering no to any question it asks. */
+  public Reply send(String line) throws IOException {
+    return send(line, List.of());
+  }
+
+  /**
+   * Runs a command line on the server.
+   *
+   * @param line The command, as typed in the console
+   * @param confirmed The questions of earlier replies to the command the user answered yes to.
+   *     Any other question the command asks is answered no.
+   * @throws IOException if the server cannot be reached or rejects the command
+   */
+  public Reply send(String line, List<String> confirmed) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) commands.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty(RequestServer.TEAM_HEADER, team.name());
+    connection.setRequestProperty(RequestServer.TOKEN_HEADER, token);
+    if (!confirmed.isEmpty()) {
+      StringJoiner questions = new StringJoiner(",");
+      confirmed.forEach(question -> questions.add(URLEncoder.encode(question, UTF_8)));
+      connection.setRequestProperty(RequestServer.CONFIRM_HEADER, questions.toString());
+    }
+    connection.setDoOutput(true);
+    try (OutputStream body = connection.getOutputStream()) {
+      body.write(line.getBytes(UTF_8));
+    }
+    if (connection.getResponseCode() != 200) {
+      InputStream error = connection.getErrorStream();
+      throw new IOException("The server answered " + connection.getResponseCode() + ": "
+          + (error == null ? "" : new String(error.readAllBytes(), UTF_8)));
+    }
+    String output;
+    try (InputStream reply = connection.getInputStream()) { // so the connection can be reused
+      output = new String(reply.readAllBytes(), UTF_8);
+    }
+    String question = connection.getHeaderField(RequestServer.UNCONFIRMED_HEADER);
+    return new Reply(output, question == null ? null : URLDecoder.decode(question, UTF_8));
+  }
+}
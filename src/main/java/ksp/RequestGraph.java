@@ -1,56 +1,503 @@
 /** @author Avaneesh Deleep <a href="mailto:ad2820@ic.ac.uk">Email for bug reports</a> */
 package ksp;
 
-import static java.util.stream.Collectors.toSet;
+import static java.util.stream.Collectors.toCollection;
 import static ksp.RequestTracker.error;
-import static ksp.utilities.SearchUtilities.stringMatchPercentage;
+import static ksp.utilities.SearchUtilities.wordShare;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import ksp.exceptions.IllegalRequestException;
+import ksp.storage.ArchiveStore;
+import ksp.storage.AtomicWriteBatch;
+import ksp.storage.BucketCodec;
+import ksp.storage.Compression;
+import ksp.storage.JournalEntry;
+import ksp.storage.JournalEntry.Created;
+import ksp.storage.JournalEntry.Edited;
+import ksp.storage.JournalEntry.Resolved;
+import ksp.storage.JournalEntry.Resourced;
+import ksp.storage.MutationJournal;
+import ksp.storage.LocalFileBackend;
+import ksp.storage.NodeRecord;
+import ksp.storage.RecordSink;
+import ksp.storage.SaveDirectoryLock;
+import ksp.storage.SegmentedArchive;
+import ksp.storage.StaleObjectException;
+import ksp.storage.StorageBackend;
+import ksp.storage.WriteBehindScheduler;
+import ksp.storage.WriteBehindScheduler.Bucket;
 import ksp.utilities.ArchiveNode;
+import ksp.utilities.ArchiveTimeline;
 import ksp.utilities.IDGenerator;
+import ksp.utilities.IntHashMap;
+import ksp.utilities.InvertedIndex;
 import ksp.utilities.Metadata;
+import ksp.utilities.MinHashIndex;
 import ksp.utilities.RequestDirection;
 import ksp.utilities.Team;
-import org.jetbrains.annotations.NotNull;
 
-public class RequestGraph {
-  private static ArrayList<RequestNode> rootRequests;
-  private static ArrayList<ArchiveNode> archive;
-
-  private static final String graphBucketPath = "save-data/request-graph-bucket.data";
-  private static final String archiveBucketPath = "save-data/request-archive-bucket.data";
-  private static final String metadataBucketPath = "save-data/metadata-bucket.data";
+public class RequestGraph implements AutoCloseable {
+  private ArrayList<RequestNode> rootRequests;
+  private SegmentedArchive archive;
+  private IntHashMap<RequestNode> requestsById;
+  private EnumMap<Team, Set<RequestNode>> requestsByRequester;
+  private EnumMap<Team, Set<RequestNode>> requestsByRequestee;
+  private Set<RequestNode> tipRequests;
+  private EnumMap<Team, Set<RequestNode>> tipRequestsByRequestee;
+  private InvertedIndex detailsIndex;
+  private volatile boolean archiveIndexed; // archive indices are built in the background
+  private CompletableFuture<Void> archiveLoading = CompletableFuture.completedFuture(null);
+  private EnumMap<Team, ArchiveTimeline> archivedByRequester;
+  private EnumMap<Team, ArchiveTimeline> archivedByRequestee;
+  private InvertedIndex archivedDetailsIndex;
+  private InvertedIndex archivedSolutionsIndex;
+  private MinHashIndex archivedDetailsSimilarity;
+  private MinHashIndex archivedSolutionsSimilarity;
+  private MutationJournal journal;
+  private WriteBehindScheduler persistence; // null for graphs that are not saved
+  private StorageBackend storage; // null for graphs that are not saved
+  private SaveDirectoryLock commitLock; // null for graphs that are not saved
+  private volatile boolean storageConflict; // another writer stored save data this one missed
+  private boolean replaying; // applying changes other sessions already journaled
+  private Map<LoadPhase, Duration> loadTimings = new EnumMap<>(LoadPhase.class);
+  private final IDGenerator idGenerator = new IDGenerator(this::leaseBlock); // unique per graph
+
+  /*
+   * Guards the requests and every index, which are walked and changed in place. Readers share
+   * the read lock, and new readers wait while a writer is queued, so a steady stream of reads
+   * never shuts writers out.
+   */
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private static final String GRAPH_BUCKET = "request-graph-bucket.data";
+  private static final String ARCHIVE_BUCKET = "request-archive-bucket.data"; // before segmenting
+  private static final String ARCHIVE_DIRECTORY = "archive";
+  private static final String METADATA_BUCKET = "metadata-bucket.data";
+  private static final String JOURNAL = "request-journal.data"; // only ever kept locally
+
+  private String saveDirectory;
+  private String graphBucketPath;
+  private String archiveBucketPath;
+  private String archiveDirectoryPath;
+  private String metadataBucketPath;
+  private String journalPath;
+
+  /* Number of journaled changes after which the buckets are rewritten and the journal emptied. */
+  private static final int checkpointInterval = 500;
+
+  /* Longest a dirty bucket waits before the background writer saves it. */
+  private static final long writeDelayMillis = 200;
+
+  /*
+   * The graph bucket is rewritten at every checkpoint, so it favours speed, while a sealed archive
+   * segment is written once and rarely read, so it favours size. See BucketCompressionBenchmark.
+   */
+  private static final Compression graphCompression = Compression.LZ;
+  private static final Compression sealedArchiveCompression = Compression.DEFLATE;
+
+  private static final Executor archiveLoader = task -> {
+    Thread thread = new Thread(task, "archive-loader");
+    thread.setDaemon(true);
+    thread.start();
+  };
 
   public RequestGraph(ArrayList<RequestNode> rootRequests) {
-    RequestGraph.rootRequests = rootRequests;
-    RequestGraph.archive = new ArrayList<>();
-    IDGenerator.init(0);
+    this.rootRequests = rootRequests;
+    this.archive = SegmentedArchive.inMemory();
+    this.journal = MutationJournal.disabled();
+    rebuildIndices();
   }
 
   public RequestGraph() {
-    rootRequests = readData();
-    archive = readArchiveData();
-    Metadata metadata = readMetadata();
-    IDGenerator.init(metadata.idGenState());
+    this("save-data");
+  }
+
+  /**
+   * Loads the graph saved in a directory: the last snapshot of each bucket, followed by the
+   * changes journaled since.
+   *
+   * @param saveDirectory Directory holding the save data buckets
+   */
+  public RequestGraph(String saveDirectory) {
+    this(new LocalFileBackend(Path.of(saveDirectory)));
+  }
+
+  /**
+   * Loads the graph saved in a storage backend, through its local working copies. Several
+   * graphs, in this process or others, may share a save directory: each change is committed
+   * holding the directory's commit lock, after catching up with the changes the others journaled.
+   *
+   * @param storage Where the save data buckets are kept
+   */
+  public RequestGraph(StorageBackend storage) {
+    setStorage(storage);
+    try {
+      commitLock = new SaveDirectoryLock(Path.of(saveDirectory));
+    } catch (IOException e) {
+      System.out.println(error + "An error occurred creating the save directory.");
+    }
+    journal = MutationJournal.disabled(); // nothing is journaled while loading
+    loadTimings = Collections.synchronizedMap(new EnumMap<>(LoadPhase.class));
+    SaveDirectoryLock.Hold held = hold(commitLock); // so no session commits meanwhile
+    try {
+      timed(LoadPhase.FETCH, this::fetchSaveData);
+      Metadata metadata = new Metadata();
+      boolean bucketsExist = ensureBucketsExist();
+      if (bucketsExist) { // the buckets are separate files, so they are read at the same time
+        CompletableFuture<ArrayList<RequestNode>> graph =
+            CompletableFuture.supplyAsync(() -> timed(LoadPhase.GRAPH, this::loadGraph));
+        CompletableFuture<SegmentedArchive> segments =
+            CompletableFuture.supplyAsync(() -> timed(LoadPhase.ARCHIVE, this::openArchive));
+        metadata = timed(LoadPhase.METADATA, this::loadMetadata);
+        rootRequests = graph.join();
+        archive = segments.join();
+      } else {
+        rootRequests = new ArrayList<>();
+        archive = SegmentedArchive.inMemory();
+      }
+      idGenerator.init(metadata.idGenState());
+      AtomicWriteBatch.deleteAbandoned(Path.of(saveDirectory));
+      AtomicWriteBatch.deleteAbandoned(Path.of(archiveDirectoryPath));
+      timed(LoadPhase.INDICES, this::rebuildIndices);
+      if (bucketsExist) {
+        timed(LoadPhase.JOURNAL, this::replayJournal);
+      }
+    } finally {
+      held.close();
+    }
+    persistence = new WriteBehindScheduler(writeDelayMillis);
+    loadArchiveInBackground();
+  }
+
+  /** The phases of loading a saved graph, in the order they are reported. */
+  public enum LoadPhase {
+    FETCH, GRAPH, ARCHIVE, METADATA, INDICES, JOURNAL, ARCHIVE_INDICES
+  }
+
+  /**
+   * Returns how long each phase of loading the graph took. The graph, archive and metadata
+   * buckets are read at the same time, so their phases overlap. The archive indices are built
+   * after the graph is ready, so they are missing until {@link #isArchiveLoaded()}.
+   */
+  public Map<LoadPhase, Duration> loadTimings() {
+    synchronized (loadTimings) {
+      return new EnumMap<>(loadTimings);
+    }
+  }
+
+  private <T> T timed(LoadPhase phase, Supplier<T> load) {
+    long started = System.nanoTime();
+    T loaded = load.get();
+    loadTimings.put(phase, Duration.ofNanos(System.nanoTime() - started));
+    return loaded;
+  }
+
+  private void timed(LoadPhase phase, Runnable load) {
+    timed(phase, () -> {
+      load.run();
+      return null;
+    });
+  }
+
+  private void setStorage(StorageBackend backend) {
+    storage = backend;
+    String directory = backend.localDirectory().toString();
+    saveDirectory = directory;
+    graphBucketPath = directory + "/" + GRAPH_BUCKET;
+    archiveBucketPath = directory + "/" + ARCHIVE_BUCKET;
+    archiveDirectoryPath = directory + "/" + ARCHIVE_DIRECTORY;
+    metadataBucketPath = directory + "/" + METADATA_BUCKET;
+    journalPath = directory + "/" + JOURNAL;
+  }
+
+  /*
+   * Brings the working copy of every bucket up to date before it is read. Working copies with
+   * changes that were never stored are kept, even if another writer stored the bucket since.
+   */
+  private void fetchSaveData() {
+    try {
+      List<String> names = new ArrayList<>(List.of(GRAPH_BUCKET, ARCHIVE_BUCKET, METADATA_BUCKET));
+      names.addAll(storage.list(ARCHIVE_DIRECTORY + "/"));
+      for (String name : names) {
+        try {
+          storage.fetch(name);
+        } catch (StaleObjectException e) {
+          reportStorageConflict(e);
+        }
+      }
+    } catch (IOException e) {
+      System.out.println(error + "An error occurred fetching save data, using local copies.");
+      e.printStackTrace();
+    }
+  }
+
+  /*
+   * Stores the buckets in the storage backend, deleting archive segments that were merged since
+   * they were last stored. A segment another writer stored that was never fetched here is not
+   * deleted but reported as a conflict. Once another writer's changes were missed, nothing is
+   * stored: every attempt would be rejected, and the local snapshot keeps the changes made here
+   * regardless, so the journal is still discarded.
+   */
+  private boolean publishSaveData(StorageBackend backend, SegmentedArchive archive) {
+    if (storageConflict) {
+      return true;
+    }
+    try {
+      Set<String> names = new LinkedHashSet<>(List.of(GRAPH_BUCKET, METADATA_BUCKET));
+      for (String segment : archive.segmentFiles()) {
+        names.add(ARCHIVE_DIRECTORY + "/" + segment);
+      }
+      for (String stored : backend.list(ARCHIVE_DIRECTORY + "/")) {
+        if (!names.contains(stored)) {
+          backend.delete(stored);
+        }
+      }
+      backend.publish(names);
+    } catch (StaleObjectException e) {
+      reportStorageConflict(e);
+      return true; // not retried, as the same write would be rejected again
+    } catch (IOException e) {
+      System.out.println(error + "An error occurred when storing the save data.");
+      e.printStackTrace();
+      return false;
+    }
+
+    return true;
+  }
+
+  private void reportStorageConflict(StaleObjectException e) {
+    storageConflict = true;
+    System.out.println(error + "The save data was changed elsewhere: " + e.getMessage()
+        + ". The changes made here are kept in the local copy, and are no longer stored.");
+  }
+
+  /**
+   * Returns true if another writer stored save data this graph had not fetched, so the changes
+   * made here are only kept in the local copy. Storing resumes once the local copy is set aside
+   * or replaced.
+   */
+  public boolean hasStorageConflict() {
+    return storageConflict;
+  }
+
+  /**
+   * Finishes the pending writes and closes the save files. The graph must not be used once
+   * closed.
+   */
+  @Override
+  public void close() {
+    write(() -> { // the pending writes take the commit lock themselves
+      releaseSaveFiles();
+      return null;
+    }, false);
+  }
+
+  private void releaseSaveFiles() {
+    awaitArchiveLoaded();
+    if (persistence != null) {
+      persistence.close();
+      persistence = null;
+    }
+    try {
+      if (journal != null) {
+        journal.close();
+      }
+      if (archive != null) {
+        archive.close();
+      }
+      if (storage != null) {
+        storage.close();
+      }
+    } catch (IOException e) {
+      System.out.println(error + "An error occurred closing the save files.");
+    }
+  }
+
+  private void replayJournal() {
+    MutationJournal savedJournal;
+    try {
+      savedJournal = MutationJournal.open(journalPath, snapshotStamp(graphBucketPath));
+    } catch (IOException e) {
+      System.out.println(error + "An error occurred reading the change journal.");
+      return;
+    }
+    for (JournalEntry entry : savedJournal.recoveredEntries()) {
+      try {
+        replay(entry);
+      } catch (IllegalRequestException e) {
+        System.out.println(error + "Skipped a saved change to Request #" + entry.id() + ": "
+            + e.getMessage());
+      }
+    }
+    journal = savedJournal;
+  }
+
+  /*
+   * Applies the changes other sessions sharing the save directory committed since this graph
+   * last read the journal. Called holding the commit lock, before any change is journaled, so the
+   * journal holds every session's changes in the order they were made.
+   */
+  private void catchUp() {
+    if (!journal.isEnabled()) {
+      return;
+    }
+    try {
+      List<JournalEntry> entries = journal.readNewEntries();
+      if (entries == null) { // their segment is gone, so a newer snapshot covers them
+        reloadSnapshot();
+      } else if (!entries.isEmpty()) {
+        archive.refresh(); // for the requests they archived
+        replayChanges(entries);
+      }
+    } catch (IOException e) {
+      System.out.println(error + "An error occurred reading the changes made by other sessions.");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Applies the changes other sessions sharing the save directory have committed. Reads do not
+   * wait for the commit lock, so they only see those changes once this graph next commits a
+   * change or is refreshed.
+   *
+   * <p>Neither lock is taken unless the journal changed, and a session committing right now is
+   * not waited for: its changes are applied by a later refresh, or before the next commit.
+   */
+  public void refresh() {
+    if (!journal.hasNewEntries()) {
+      return;
+    }
+    write(() -> {
+      SaveDirectoryLock.Hold held = tryHold(commitLock);
+      if (held != null) {
+        try {
+          catchUp();
+        } finally {
+          held.close();
+        }
+      }
+      return null;
+    }, false);
+  }
+
+  /* Loads the latest snapshot again, with the journal since, once this graph fell behind it. */
+  private void reloadSnapshot() throws IOException {
+    int stamp = snapshotStamp(graphBucketPath);
+    rootRequests = loadGraph();
+    archive.refresh();
+    rebuildIndices();
+    journal.resetTo(stamp);
+    List<JournalEntry> entries = journal.readNewEntries();
+    if (entries == null) {
+      throw new IOException("The change journal does not follow on from the saved graph");
+    }
+    replayChanges(entries);
+  }
+
+  private void replayChanges(List<JournalEntry> entries) {
+    replaying = true; // already journaled
+    try {
+      for (JournalEntry entry : entries) {
+        try {
+          replay(entry);
+        } catch (IllegalRequestException e) {
+          System.out.println(error + "Skipped a change to Request #" + entry.id()
+              + " made by another session: " + e.getMessage());
+        }
+      }
+    } finally {
+      replaying = false;
+    }
+  }
+
+  /* Re-applies a journaled change. Changes already in the loaded snapshot are skipped. */
+  private void replay(JournalEntry entry) throws IllegalRequestException {
+    RequestNode request = requestsById.get(entry.id());
+    if (entry instanceof Created created) {
+      if (request == null && !archive.contains(created.id())) {
+        new RequestNode(created.id(), created.requester(), created.requestee(),
+            created.details(), created.creationDate(), requestsById.get(created.sourceId()), this);
+      }
+      if (!replaying && created.id() > idGenerator.saveState()) { // at startup
+        idGenerator.init(created.id());
+      }
+    } else if (request == null) {
+      return; // resolved before the snapshot was taken
+    } else if (entry instanceof Resourced resourced) {
+      request.setSource(requestsById.get(resourced.sourceId()), this);
+    } else if (entry instanceof Edited edited) {
+      request.setDetails(edited.details(), this);
+    } else if (entry instanceof Resolved resolved) {
+      ArchiveNode stored = archive.get(resolved.id());
+      if (stored != null && stored.solutionDate().equals(resolved.solutionDate())) {
+        request.removeRequest(this); // archived before the journal entry was written
+        if (archiveIndexed) {
+          trackArchived(stored);
+        }
+      } else {
+        archiveRequest(request, resolved.solution(), resolved.solutionDate());
+      }
+    }
+  }
+
+  private void record(JournalEntry entry) {
+    if (replaying) {
+      return;
+    }
+    try {
+      journal.append(entry);
+    } catch (IOException e) {
+      System.out.println(error + "An error occurred when saving a change to Request #"
+          + entry.id() + ".");
+      e.printStackTrace();
+    }
   }
 
   public ArrayList<RequestNode> readData() {
     if (!ensureBucketsExist()) {
       return new ArrayList<>();
     }
+    return loadGraph();
+  }
 
+  /* Reads the graph bucket once the save files are known to exist. */
+  private ArrayList<RequestNode> loadGraph() {
     try {
+      if (new File(graphBucketPath).length() == 0) {
+        return new ArrayList<>();
+      }
+      if (BucketCodec.hasMagic(Path.of(graphBucketPath), BucketCodec.GRAPH_MAGIC)) {
+        return linkNodes(BucketCodec.readGraph(Path.of(graphBucketPath)));
+      }
+
+      // saved with Java serialization before the binary format, convert it on first read
       FileInputStream graphFileStream = new FileInputStream(graphBucketPath);
       ObjectInputStream graphObjStream = new ObjectInputStream(graphFileStream);
 
@@ -59,42 +506,144 @@ public class RequestGraph {
 
       graphObjStream.close();
       graphFileStream.close();
+      AtomicWriteBatch converted = new AtomicWriteBatch();
+      if (writeGraphBucket(converted, graphBucketPath, flattenNodes(graph), 0)) {
+        commitBuckets(converted);
+      }
       return graph;
     } catch (Exception e) {
       System.out.println(error + "An error occurred reading graph save file.");
+      setAside(graphBucketPath);
     }
 
     return new ArrayList<>();
   } // TODO:database
 
-  public ArrayList<ArchiveNode> readArchiveData() {
-    if (!ensureBucketsExist()) {
-      return new ArrayList<>();
+  /* Rebuilds the links of a saved node table in one pass, returning the root requests. */
+  private static ArrayList<RequestNode> linkNodes(List<NodeRecord> nodes) {
+    ArrayList<RequestNode> roots = new ArrayList<>();
+    IntHashMap<RequestNode> loaded = new IntHashMap<>(nodes.size());
+    for (NodeRecord node : nodes) {
+      RequestNode request = new RequestNode(node.id(), node.requester(), node.requestee(),
+          node.details(), node.creationDate());
+      RequestNode source = loaded.get(node.sourceId());
+      if (source == null) { // sources are saved before their branches, so this is a root
+        roots.add(request);
+      } else {
+        source.restoreBranch(request);
+      }
+      loaded.put(request.getID(), request);
     }
+    return roots;
+  }
 
-    try {
-      FileInputStream archiveFileStream = new FileInputStream(archiveBucketPath);
-      ObjectInputStream archiveObjStream = new ObjectInputStream(archiveFileStream);
-
-      @SuppressWarnings("unchecked")
-      ArrayList<ArchiveNode> archive = (ArrayList<ArchiveNode>) archiveObjStream.readObject();
+  /* Flattens the graph into rows, each source before its branches, without recursing. */
+  private static List<NodeRecord> flattenNodes(List<RequestNode> roots) {
+    List<NodeRecord> nodes = new ArrayList<>();
+    ArrayDeque<RequestNode> toVisit = new ArrayDeque<>(roots);
+    while (!toVisit.isEmpty()) {
+      RequestNode request = toVisit.poll();
+      nodes.add(new NodeRecord(request.getID(), request.getRequester(), request.getRequestee(),
+          request.getDetails(), request.getCreationDate(),
+          request.isRoot() ? NodeRecord.NO_SOURCE : request.getSource().getID()));
+      toVisit.addAll(request.getBranches());
+    }
+    return nodes;
+  }
 
-      archiveObjStream.close();
-      archiveFileStream.close();
-      return archive;
+  /*
+   * Opens the archive segments without reading any records. An archive saved as a single bucket,
+   * as a record store, by the binary codec or by Java serialization, is split into segments on
+   * first read.
+   */
+  private SegmentedArchive openArchive() {
+    try {
+      SegmentedArchive segments = SegmentedArchive.open(new File(archiveDirectoryPath),
+          sealedArchiveCompression, commitLock, (month, e) -> System.out.println(
+              error + "An error occurred sealing the archive of " + month + ", retrying later."));
+      File bucket = new File(archiveBucketPath);
+      if (bucket.exists()) {
+        try {
+          segments.clear(); // a previous conversion may have been cut short
+          segments.appendAll(sink -> migrateArchiveBucket(bucket, sink));
+          segments.force();
+          storage.delete(ARCHIVE_BUCKET);
+        } catch (Exception e) {
+          segments.close(); // the bucket is kept, so the conversion is retried next time
+          throw e;
+        }
+      }
+      return segments;
     } catch (Exception e) {
       System.out.println(error + "An error occurred reading archive data.");
     }
 
-    return new ArrayList<>();
+    return SegmentedArchive.inMemory();
+  }
+
+  /*
+   * Hands each entry of an archive bucket to sink. Buckets in the binary formats are streamed
+   * entry by entry, however large they are; a Java serialized list can only be read whole.
+   */
+  private static void migrateArchiveBucket(File bucket, RecordSink<ArchiveNode> sink)
+      throws IOException {
+    Path bucketPath = bucket.toPath();
+    if (bucket.length() == 0) {
+      return;
+    }
+    if (BucketCodec.hasMagic(bucketPath, ArchiveStore.MAGIC)) {
+      try (ArchiveStore store = ArchiveStore.open(bucketPath)) {
+        for (Iterator<ArchiveNode> stored = store.stream().iterator(); stored.hasNext(); ) {
+          sink.accept(stored.next());
+        }
+      }
+      return;
+    }
+    if (BucketCodec.hasMagic(bucketPath, BucketCodec.ARCHIVE_MAGIC)) {
+      BucketCodec.readArchive(bucketPath, sink);
+      return;
+    }
+
+    FileInputStream archiveFileStream = new FileInputStream(bucket);
+    ObjectInputStream archiveObjStream = new LegacyArchiveNode.Reader(archiveFileStream);
+
+    List<?> stored;
+    try {
+      stored = (List<?>) archiveObjStream.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("The archive bucket holds an unknown class", e);
+    }
+
+    archiveObjStream.close();
+    archiveFileStream.close();
+
+    for (Object entry : stored) {
+      if (entry instanceof LegacyArchiveNode legacy) { // saved before archive was flattened
+        sink.accept(legacy.migrate());
+      } else {
+        sink.accept((ArchiveNode) entry);
+      }
+    }
   }
 
   public Metadata readMetadata() {
     if (!ensureBucketsExist()) {
       return new Metadata();
     }
+    return loadMetadata();
+  }
 
+  /* Reads the metadata bucket once the save files are known to exist. */
+  private Metadata loadMetadata() {
     try {
+      if (new File(metadataBucketPath).length() == 0) {
+        return new Metadata();
+      }
+      if (BucketCodec.hasMagic(Path.of(metadataBucketPath), BucketCodec.METADATA_MAGIC)) {
+        return BucketCodec.readMetadata(Path.of(metadataBucketPath));
+      }
+
+      // saved with Java serialization before the binary format, convert it on first read
       FileInputStream metadataFileStream = new FileInputStream(metadataBucketPath);
       ObjectInputStream metadataObjStream = new ObjectInputStream(metadataFileStream);
 
@@ -102,89 +651,332 @@ public class RequestGraph {
 
       metadataObjStream.close();
       metadataFileStream.close();
+      AtomicWriteBatch converted = new AtomicWriteBatch();
+      if (writeMetadataBucket(converted, metadataBucketPath, metadata.idGenState())) {
+        commitBuckets(converted);
+      }
       return metadata;
     } catch (Exception e) {
-      System.out.println(error + "An error occurred reading archive data.");
+      System.out.println(error + "An error occurred reading metadata.");
+      setAside(metadataBucketPath);
     }
 
     return new Metadata();
   }
 
+  /*
+   * Renames a bucket that could not be read, so the next save does not overwrite what it holds,
+   * e.g. a bucket written by a newer version.
+   */
+  private static void setAside(String path) {
+    File unreadable = new File(path + ".unreadable");
+    if (new File(path).renameTo(unreadable)) {
+      System.out.println(error + "The unreadable save file was kept as " + unreadable + ".");
+    }
+  }
+
   public boolean saveData() {
     if (!ensureBucketsExist()) {
       return false;
     }
 
-    try {
-      FileOutputStream graphFileStream = new FileOutputStream(graphBucketPath, false);
-      ObjectOutputStream graphObjStream = new ObjectOutputStream(graphFileStream);
-
-      graphObjStream.writeObject(rootRequests);
+    AtomicWriteBatch batch = new AtomicWriteBatch();
+    return write(() -> writeGraphBucket(batch, graphBucketPath, flattenNodes(rootRequests),
+            snapshotStamp(graphBucketPath)) // the journal since is still to be replayed
+        && commitBuckets(batch));
+  }
 
-      graphObjStream.close();
-      graphFileStream.close();
+  /* The last journal generation the saved graph covers, 0 if it predates stamps. */
+  private static int snapshotStamp(String graphPath) {
+    Path path = Path.of(graphPath);
+    try {
+      return BucketCodec.hasMagic(path, BucketCodec.GRAPH_MAGIC)
+          ? BucketCodec.readGraphStamp(path) : 0;
+    } catch (IOException e) {
+      return 0;
+    }
+  }
 
+  /*
+   * Writes the graph bucket to a file staged in batch, to replace the bucket once committed.
+   * stamp is the last journal generation the nodes cover.
+   */
+  private static boolean writeGraphBucket(
+      AtomicWriteBatch batch, String path, List<NodeRecord> nodes, int stamp) {
+    try {
+      BucketCodec.writeGraph(batch.stage(Path.of(path)), nodes, graphCompression, stamp);
     } catch (IOException e) {
       System.out.println(error + "An error occurred when saving graph.");
       e.printStackTrace();
+      return false;
     }
 
     return true;
   }
 
+  /* Archived requests are appended to the store as they are solved, so only a sync is due. */
   public boolean saveArchiveData() {
+    return syncArchive(archive);
+  }
+
+  private static boolean syncArchive(SegmentedArchive archive) {
+    try {
+      archive.force();
+    } catch (IOException e) {
+      System.out.println(error + "An error occurred when updating archive.");
+      e.printStackTrace();
+      return false;
+    }
+
+    return true;
+  }
+
+  public boolean saveMetadata() {
     if (!ensureBucketsExist()) {
       return false;
     }
 
-    try {
-      FileOutputStream archiveFileStream = new FileOutputStream(archiveBucketPath, false);
-      ObjectOutputStream archiveObjStream = new ObjectOutputStream(archiveFileStream);
+    return write(() -> { // so a lease being saved is not overwritten by an older one
+      AtomicWriteBatch batch = new AtomicWriteBatch();
+      return writeMetadataBucket(batch, metadataBucketPath, idGenerator.saveState())
+          && commitBuckets(batch);
+    });
+  }
 
-      archiveObjStream.writeObject(archive);
+  /*
+   * Leases the block of IDs after both this graph's lease and the one saved by the sessions
+   * sharing the save directory, and saves it before any of them is used. The metadata bucket only
+   * ever holds the latest lease, as checkpoints leave it out. If the lease cannot be saved, the
+   * requests created are still journaled with their IDs, which a restart carries on past. A
+   * block past the last request ID is not saved, as the generator rejects it.
+   */
+  private long leaseBlock(long leasedThrough) {
+    if (persistence == null) { // the graph is not saved, or is still loading
+      return leasedThrough + IDGenerator.BLOCK_SIZE;
+    }
+    SaveDirectoryLock.Hold held = hold(commitLock);
+    try {
+      long end = Math.max(leasedThrough, loadMetadata().idGenState()) + IDGenerator.BLOCK_SIZE;
+      if (end > Integer.MAX_VALUE) {
+        return end;
+      }
+      AtomicWriteBatch batch = new AtomicWriteBatch();
+      if (writeMetadataBucket(batch, metadataBucketPath, (int) end)) {
+        commitBuckets(batch);
+      }
+      return end;
+    } finally {
+      held.close();
+    }
+  }
 
-      archiveObjStream.close();
-      archiveFileStream.close();
+  private static boolean writeMetadataBucket(AtomicWriteBatch batch, String path, int idGenState) {
+    try {
+      BucketCodec.writeMetadata(batch.stage(Path.of(path)), new Metadata(idGenState));
     } catch (IOException e) {
-      System.out.println(error + "An error occurred when updating archive.");
+      System.out.println(error + "An error occurred when saving Metadata.");
       e.printStackTrace();
+      return false;
     }
 
-    return saveData();
+    return true;
   }
 
-  public boolean saveMetadata() {
-    if (!ensureBucketsExist()) {
+  /*
+   * Moves the buckets staged in batch into place, once they are all on the storage device. Until
+   * then a crash leaves the previous version of every bucket.
+   */
+  private static boolean commitBuckets(AtomicWriteBatch batch) {
+    try {
+      batch.commit();
+    } catch (IOException e) {
+      System.out.println(error + "An error occurred when committing the save data to disk.");
+      e.printStackTrace();
       return false;
     }
 
+    return true;
+  }
+
+  /*
+   * Commits a snapshot of the graph, stamped with the journal generations it covers, unless a
+   * session sharing the save directory has committed one covering more of them meanwhile.
+   */
+  private static boolean commitSnapshot(
+      AtomicWriteBatch batch, SaveDirectoryLock commitLock, String graphPath, int stamp) {
+    SaveDirectoryLock.Hold held = hold(commitLock);
     try {
-      FileOutputStream metadataFileStream = new FileOutputStream(metadataBucketPath, false);
-      ObjectOutputStream metadataObjStream = new ObjectOutputStream(metadataFileStream);
+      if (snapshotStamp(graphPath) > stamp) {
+        batch.discard();
+        return true;
+      }
+      return commitBuckets(batch);
+    } finally {
+      held.close();
+    }
+  }
 
-      Metadata metadata = new Metadata(IDGenerator.saveState());
-      metadataObjStream.writeObject(metadata);
+  /* Holds the commit lock of a save directory, or nothing if the lock cannot be taken. */
+  private static SaveDirectoryLock.Hold hold(SaveDirectoryLock commitLock) {
+    try {
+      if (commitLock != null) {
+        return commitLock.acquire();
+      }
+    } catch (IOException e) {
+      System.out.println(error + "An error occurred locking the save directory.");
+      e.printStackTrace();
+    }
+    return () -> { };
+  }
 
-      metadataObjStream.close();
-      metadataFileStream.close();
+  /* Holds the commit lock if it is free, nothing if there is none, or null if it is taken. */
+  private static SaveDirectoryLock.Hold tryHold(SaveDirectoryLock commitLock) {
+    try {
+      return commitLock == null ? () -> { } : commitLock.tryAcquire();
     } catch (IOException e) {
-      System.out.println(error + "An error occurred when saving Metadata.");
+      System.out.println(error + "An error occurred locking the save directory.");
       e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Takes a snapshot of every bucket and hands it to the background writer. The journal is
+   * rotated at the same time, and its old entries are discarded once the snapshot is saved, so
+   * the next startup has less to replay. The IDs leased are saved as they are leased, so they
+   * are left out.
+   */
+  public boolean checkpoint() {
+    return write(this::takeCheckpoint);
+  }
+
+  private boolean takeCheckpoint() {
+    if (persistence == null) { // the graph is not saved
+      return true;
+    }
+    if (!ensureBucketsExist()) {
+      return false;
+    }
+
+    int coveredSegment;
+    try {
+      coveredSegment = journal.rotate();
+    } catch (IOException e) {
+      System.out.println(error + "An error occurred when rotating the change journal.");
+      return false;
+    }
+    // capture everything now, as the graph keeps changing while the writer runs
+    String graphPath = graphBucketPath;
+    List<NodeRecord> nodes = flattenNodes(rootRequests);
+    SegmentedArchive store = archive;
+    MutationJournal changes = journal;
+    StorageBackend backend = storage;
+    SaveDirectoryLock directoryLock = commitLock;
+
+    AtomicWriteBatch batch = new AtomicWriteBatch(); // the buckets are made durable together
+
+    persistence.markDirty(Bucket.GRAPH,
+        () -> writeGraphBucket(batch, graphPath, nodes, coveredSegment));
+    persistence.markDirty(Bucket.ARCHIVE, () -> syncArchive(store));
+    persistence.markDirty(Bucket.SYNC,
+        () -> commitSnapshot(batch, directoryLock, graphPath, coveredSegment));
+    persistence.markDirty(Bucket.PUBLISH, () -> publishSaveData(backend, store));
+    persistence.markDirty(Bucket.JOURNAL, () -> {
+      SaveDirectoryLock.Hold held = hold(directoryLock);
+      try {
+        changes.discardThrough(coveredSegment);
+        return true;
+      } catch (IOException e) {
+        System.out.println(error + "An error occurred when clearing the change journal.");
+        return false;
+      } finally {
+        held.close();
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Writes the buckets waiting in the background writer, returning once they are on disk.
+   *
+   * @return true if every bucket was saved
+   */
+  public boolean flush() {
+    return persistence == null || persistence.flush();
+  }
+
+  /* A section of code that reads or changes the graph. */
+  @FunctionalInterface
+  interface Section<T, E extends Exception> {
+    T run() throws E;
+  }
+
+  /* A section of code that changes the graph, returning nothing. */
+  @FunctionalInterface
+  interface Update<E extends Exception> {
+    void run() throws E;
+  }
+
+  /*
+   * Runs a section holding the write lock, which excludes every other reader and writer, and the
+   * save directory's commit lock, which excludes the other sessions sharing it. The changes they
+   * committed are applied first.
+   */
+  <T, E extends Exception> T write(Section<T, E> section) throws E {
+    return write(section, true);
+  }
+
+  /* Runs a section holding the write lock, and the commit lock too if it commits changes. */
+  private <T, E extends Exception> T write(Section<T, E> section, boolean commits) throws E {
+    if (lock.isWriteLockedByCurrentThread()) {
+      return section.run();
+    }
+    lock.writeLock().lock();
+    SaveDirectoryLock.Hold held = commits ? hold(commitLock) : null;
+    try {
+      if (commits) {
+        catchUp();
+      }
+      return section.run();
+    } finally {
+      if (held != null) {
+        held.close();
+      }
+      lock.writeLock().unlock();
     }
+  }
 
-    return saveData();
+  <E extends Exception> void write(Update<E> update) throws E {
+    write(() -> {
+      update.run();
+      return null;
+    });
+  }
+
+  /* Runs a section that only reads the graph, holding the read lock. */
+  <T> T read(Supplier<T> section) {
+    if (lock.isWriteLockedByCurrentThread()) {
+      return section.get();
+    }
+    lock.readLock().lock();
+    try {
+      return section.get();
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   private boolean ensureBucketsExist() {
     try {
+      new File(saveDirectory).mkdirs();
       File graphBucket = new File(graphBucketPath);
-      File historyBucket = new File(archiveBucketPath);
+      File historyDirectory = new File(archiveDirectoryPath);
       File metadataBucket = new File(metadataBucketPath);
 
       if (graphBucket.createNewFile()) {
         System.out.println(error + "Application could not locate current graph state.");
       }
-      if (historyBucket.createNewFile()) {
+      if (historyDirectory.mkdirs() && !new File(archiveBucketPath).exists()) {
         System.out.println(error + "Application could not locate request history.");
       }
       if (metadataBucket.createNewFile()) {
@@ -203,199 +995,445 @@ public class RequestGraph {
 
   protected void addRoot(RequestNode request) {
     rootRequests.add(request);
+    trackRequest(request);
   }
 
-  public boolean addNewRequest(RequestNode newRequest) {
-    saveMetadata();
-    return saveData();
+  /* Called whenever a request is linked into the graph, as a root or as a branch. */
+  protected void trackRequest(RequestNode request) {
+    int sourceId = request.isRoot() ? NodeRecord.NO_SOURCE : request.getSource().getID();
+    if (indexRequest(request)) {
+      record(new Created(request.getID(), request.getRequester(), request.getRequestee(),
+          request.getDetails(), request.getCreationDate(), sourceId));
+    } else {
+      record(new Resourced(request.getID(), sourceId));
+    }
   }
 
-  public boolean resolveRequest(RequestNode request, String solution) {
-    request.removeRequest(this);
-    archive.add(new ArchiveNode(request, solution));
-    return saveArchiveData();
+  /* Adds a request to the indices, returning false if it was already indexed. */
+  private boolean indexRequest(RequestNode request) {
+    boolean isNew = requestsById.put(request.getID(), request) == null;
+    if (isNew) { // not a re-source of a known request
+      detailsIndex.add(request.getID(), request.getDetails());
+    }
+    requestsByRequester.get(request.getRequester()).add(request);
+    requestsByRequestee.get(request.getRequestee()).add(request);
+    updateTipStatus(request);
+    return isNew;
   }
 
-  public RequestNode findRequest(int id) {
-    for (RequestNode root : rootRequests) {
-      RequestNode output = findRequestIDSearch(root, id);
-      if (output != null) {
-        return output;
-      }
+  /* Called whenever a request is unlinked from the graph. Branches are untracked separately. */
+  protected void untrackRequest(RequestNode request) {
+    if (requestsById.remove(request.getID()) != null) {
+      detailsIndex.remove(request.getID(), request.getDetails());
     }
-    return null;
+    requestsByRequester.get(request.getRequester()).remove(request);
+    requestsByRequestee.get(request.getRequestee()).remove(request);
+    tipRequests.remove(request);
+    tipRequestsByRequestee.get(request.getRequestee()).remove(request);
   }
 
-  public ArchiveNode findArchivedRequest(int id) {
-    for (ArchiveNode request : archive) {
-      if (request.archivedNode().getID() == id) {
-        return request;
-      }
+  /* Called whenever the details of a tracked request are edited. */
+  protected void updateDetails(RequestNode request, String oldDetails) {
+    if (requestsById.get(request.getID()) == request) {
+      detailsIndex.remove(request.getID(), oldDetails);
+      detailsIndex.add(request.getID(), request.getDetails());
+      record(new Edited(request.getID(), request.getDetails()));
     }
-    return null;
   }
 
-  public ArrayList<RequestNode> findRequests(RequestDirection direction, Team team) {
-    Set<RequestNode> output = new HashSet<>();
-    if (direction == RequestDirection.FROM) {
-      // find requests that this team made / are the requester for
-      for (RequestNode root : rootRequests) {
-        output.addAll(findRequestsRequesterSearch(root, team, new HashSet<>()));
-      }
+  /* Called whenever a request may have gained or lost its last branch. */
+  protected void updateTipStatus(RequestNode request) {
+    if (request.isTip() && requestsById.get(request.getID()) == request) {
+      tipRequests.add(request);
+      tipRequestsByRequestee.get(request.getRequestee()).add(request);
     } else {
-      // find requests that want info from this team / are the requestee in
-      for (RequestNode root : rootRequests) {
-        output.addAll(findRequestsRequesteeSearch(root, team, new HashSet<>()));
-      }
+      tipRequests.remove(request);
+      tipRequestsByRequestee.get(request.getRequestee()).remove(request);
     }
-    return new ArrayList<>(output);
   }
 
-  public ArrayList<ArchiveNode> findArchivedRequests(RequestDirection direction, Team team) {
-    Set<ArchiveNode> output;
-    if (direction == RequestDirection.FROM) {
-      // find requests that this team made / are the requester for
-      output =
-          archive.stream().filter(x -> x.archivedNode().getRequester() == team).collect(toSet());
-    } else {
-      // find requests that want info from this team / are the requestee in
-      output =
-          archive.stream().filter(x -> x.archivedNode().getRequestee() == team).collect(toSet());
-    }
-    return new ArrayList<>(output);
+  /*
+   * Indexes every request in the graph. The requests are listed first, so that each index can
+   * then be built by its own task on the common fork-join pool: no index is thread-safe, but no
+   * two tasks share one.
+   */
+  private void rebuildIndices() {
+    List<RequestNode> requests = listSubtrees(rootRequests);
+    IntHashMap<RequestNode> byId = new IntHashMap<>(requests.size());
+    EnumMap<Team, Set<RequestNode>> byRequester = newTeamIndex();
+    EnumMap<Team, Set<RequestNode>> byRequestee = newTeamIndex();
+    Set<RequestNode> tips = new LinkedHashSet<>();
+    EnumMap<Team, Set<RequestNode>> tipsByRequestee = newTeamIndex();
+    InvertedIndex details = new InvertedIndex();
+    inParallel(
+        () -> requests.forEach(request -> byId.put(request.getID(), request)),
+        () -> requests.forEach(request -> {
+          byRequester.get(request.getRequester()).add(request);
+          byRequestee.get(request.getRequestee()).add(request);
+        }),
+        () -> requests.stream().filter(RequestNode::isTip).forEach(request -> {
+          tips.add(request);
+          tipsByRequestee.get(request.getRequestee()).add(request);
+        }),
+        () -> requests.forEach(request -> details.add(request.getID(), request.getDetails())));
+    requestsById = byId;
+    requestsByRequester = byRequester;
+    requestsByRequestee = byRequestee;
+    tipRequests = tips;
+    tipRequestsByRequestee = tipsByRequestee;
+    detailsIndex = details;
+    rebuildArchiveIndices();
   }
 
-  public ArrayList<RequestNode> findRequests(String keywords) {
-    Set<RequestNode> output = new HashSet<>();
-    for (RequestNode root : rootRequests) {
-      output.addAll(findKeyWordsSearch(root, keywords.toLowerCase(), new HashSet<>()));
-    }
-    Comparator<RequestNode> compareByMatch =
-        Comparator.comparing((RequestNode o) -> o.matchPercentage(keywords));
-    ArrayList<RequestNode> listOut = new ArrayList<>(output);
-    listOut.sort(compareByMatch);
-    Collections.reverse(listOut);
-    return listOut;
+  /* Runs independent tasks on the common fork-join pool, returning once all have finished. */
+  private static void inParallel(Runnable... tasks) {
+    CompletableFuture.allOf(Arrays.stream(tasks)
+        .map(CompletableFuture::runAsync)
+        .toArray(CompletableFuture[]::new)).join();
   }
 
-  public ArrayList<ArchiveNode> findInArchivedRequests(String keywords) {
-    Set<ArchiveNode> output;
-    output =
-        archive.stream()
-            .filter(x -> x.archivedNode().matchPercentage(keywords) > 0)
-            .collect(toSet());
+  /* Drops the archive indices, to be rebuilt from the store the next time they are needed. */
+  private void rebuildArchiveIndices() {
+    awaitArchiveLoaded();
+    archiveIndexed = false;
+    archivedByRequester = null;
+    archivedByRequestee = null;
+    archivedDetailsIndex = null;
+    archivedSolutionsIndex = null;
+    archivedDetailsSimilarity = null;
+    archivedSolutionsSimilarity = null;
+  }
 
-    return sortArchiveNodes(keywords, output);
+  /*
+   * Decodes the archive and builds its indices on a background thread, so that the graph can be
+   * used as soon as it is loaded. Whatever needs the archive indices waits for it to finish.
+   */
+  private void loadArchiveInBackground() {
+    archiveLoading = CompletableFuture.runAsync(
+        () -> timed(LoadPhase.ARCHIVE_INDICES, this::indexArchive), archiveLoader);
   }
 
-  public ArrayList<ArchiveNode> findInArchivedSolutions(String keywords) {
-    Set<ArchiveNode> output;
-    output =
-        archive.stream()
-            .filter(x -> stringMatchPercentage(x.solution(), keywords) > 0)
-            .collect(toSet());
+  /* Hands out the IDs of the requests created in this graph. */
+  IDGenerator getIDGenerator() {
+    return idGenerator;
+  }
 
-    return sortArchiveNodes(keywords, output);
+  /**
+   * Returns how many requests this graph holds in memory: the open requests, and the archived
+   * ones once the archive has been indexed.
+   */
+  public int residentRequests() {
+    return read(() -> {
+      int resident = requestsById.size();
+      if (archiveIndexed) {
+        for (ArchiveTimeline timeline : archivedByRequester.values()) {
+          resident += timeline.size();
+        }
+      }
+      return resident;
+    });
   }
 
-  @NotNull
-  private ArrayList<ArchiveNode> sortArchiveNodes(String keywords, Set<ArchiveNode> output) {
-    Comparator<ArchiveNode> compareByMatch =
-        Comparator.comparing((ArchiveNode o) -> o.archivedNode().matchPercentage(keywords));
+  /** Returns true once the archive has been loaded and searches of it will not wait. */
+  public boolean isArchiveLoaded() {
+    return archiveLoading.isDone();
+  }
 
-    ArrayList<ArchiveNode> listOut = new ArrayList<>(output);
-    listOut.sort(compareByMatch);
-    Collections.reverse(listOut);
-    return listOut;
+  /* Waits for the archive to finish loading in the background, if it is still loading. */
+  private void awaitArchiveLoaded() {
+    try {
+      archiveLoading.join();
+    } catch (CompletionException e) {
+      // the indices are left unbuilt, so the failure is reported when they are next needed
+    }
   }
 
-  private RequestNode findRequestIDSearch(RequestNode requestToCheck, int id) {
-    if (requestToCheck.getID() == id) { // current request matches
-      return requestToCheck;
-    } else if (requestToCheck.isTip()) { // no more branches to search here
-      return null;
-    } else {
-      for (RequestNode branch : requestToCheck.getBranches()) { // search branches for id
-        if (findRequestIDSearch(branch, id) != null) {
-          return branch;
+  private void ensureArchiveIndexed() {
+    awaitArchiveLoaded();
+    if (!archiveIndexed) {
+      write(() -> {
+        if (!archiveIndexed) {
+          indexArchive();
         }
-      }
-      return null; // id not found in branches
+      });
+    }
+  }
+
+  private void indexArchive() {
+    archivedByRequester = newTeamTimelines();
+    archivedByRequestee = newTeamTimelines();
+    archivedDetailsIndex = new InvertedIndex();
+    archivedSolutionsIndex = new InvertedIndex();
+    archivedDetailsSimilarity = new MinHashIndex();
+    archivedSolutionsSimilarity = new MinHashIndex();
+    List<ArchiveNode> archived;
+    try (Stream<ArchiveNode> records = archive.stream()) {
+      archived = records.parallel().toList(); // decodes the months side by side
     }
+    inParallel( // one task per index, as in rebuildIndices
+        () -> archived.forEach(entry -> {
+          archivedByRequester.get(entry.requester()).add(entry);
+          archivedByRequestee.get(entry.requestee()).add(entry);
+        }),
+        () -> archived.forEach(entry -> archivedDetailsIndex.add(entry.id(), entry.details())),
+        () -> archived.forEach(entry -> archivedSolutionsIndex.add(entry.id(), entry.solution())),
+        () -> archived.forEach(
+            entry -> archivedDetailsSimilarity.add(entry.id(), entry.details())),
+        () -> archived.forEach(
+            entry -> archivedSolutionsSimilarity.add(entry.id(), entry.solution())));
+    archiveIndexed = true;
   }
 
-  private Set<RequestNode> findRequestsRequesterSearch(
-      RequestNode requestToCheck, Team team, Set<RequestNode> currentMatches) {
+  private void trackArchived(ArchiveNode archived) {
+    int id = archived.id();
+    archivedByRequester.get(archived.requester()).add(archived);
+    archivedByRequestee.get(archived.requestee()).add(archived);
+    archivedDetailsIndex.add(id, archived.details());
+    archivedSolutionsIndex.add(id, archived.solution());
+    archivedDetailsSimilarity.add(id, archived.details());
+    archivedSolutionsSimilarity.add(id, archived.solution());
+  }
 
-    if (requestToCheck.getRequester() == team) { // current request matches
-      currentMatches.add(requestToCheck);
+  /*
+   * Lists the requests of the given subtrees, each before its branches and branches in order.
+   * Iterative, so that a long chain of branch requests cannot overflow the stack.
+   */
+  private static List<RequestNode> listSubtrees(List<RequestNode> roots) {
+    List<RequestNode> requests = new ArrayList<>();
+    ArrayDeque<RequestNode> toVisit = new ArrayDeque<>();
+    for (int i = roots.size() - 1; i >= 0; i--) {
+      toVisit.push(roots.get(i));
     }
-    if (requestToCheck.isTip()) { // no more branches to search here
-      return currentMatches;
-    } else {
-      for (RequestNode branch : requestToCheck.getBranches()) { // search branches
-        currentMatches.addAll(findRequestsRequesterSearch(branch, team, currentMatches));
+    while (!toVisit.isEmpty()) {
+      RequestNode next = toVisit.pop();
+      requests.add(next);
+      List<RequestNode> branches = next.getBranches();
+      ListIterator<RequestNode> branch = branches.listIterator(branches.size());
+      while (branch.hasPrevious()) { // push in reverse so branches are listed in order
+        toVisit.push(branch.previous());
       }
     }
-    return currentMatches; // return currentMatches with upstream branch matches added
+    return requests;
   }
 
-  private Set<RequestNode> findRequestsRequesteeSearch(
-      RequestNode requestToCheck, Team team, Set<RequestNode> currentMatches) {
-
-    if (requestToCheck.getRequestee() == team) { // current request matches
-      currentMatches.add(requestToCheck);
+  private static EnumMap<Team, ArchiveTimeline> newTeamTimelines() {
+    EnumMap<Team, ArchiveTimeline> timelines = new EnumMap<>(Team.class);
+    for (Team team : Team.values()) {
+      timelines.put(team, new ArchiveTimeline());
     }
-    if (requestToCheck.isTip()) { // no more branches to search here
-      return currentMatches;
-    } else {
-      for (RequestNode branch : requestToCheck.getBranches()) { // search branches
-        currentMatches.addAll(findRequestsRequesteeSearch(branch, team, currentMatches));
-      }
+    return timelines;
+  }
+
+  private static EnumMap<Team, Set<RequestNode>> newTeamIndex() {
+    EnumMap<Team, Set<RequestNode>> index = new EnumMap<>(Team.class);
+    for (Team team : Team.values()) {
+      index.put(team, new LinkedHashSet<>()); // keeps creation order for display
     }
-    return currentMatches; // return currentMatches with upstream branch matches added
+    return index;
   }
 
-  private Set<RequestNode> findKeyWordsSearch(
-      RequestNode requestToCheck, String keywords, Set<RequestNode> currentMatches) {
+  /* The new request is journaled as it is linked into the graph, so only a checkpoint is due. */
+  public boolean addNewRequest(RequestNode newRequest) {
+    return write(this::checkpointIfDue);
+  }
 
-    if (requestToCheck.matchPercentage(keywords) > 0) { // current request contains key phrase
-      currentMatches.add(requestToCheck);
+  public boolean resolveRequest(RequestNode request, String solution) {
+    Date solutionDate = Calendar.getInstance().getTime();
+    return write(() -> {
+      archiveRequest(request, solution, solutionDate);
+      record(new Resolved(request.getID(), solution, solutionDate));
+      return checkpointIfDue();
+    });
+  }
+
+  private void archiveRequest(RequestNode request, String solution, Date solutionDate) {
+    // flatten before removing, so the IDs of the branches dropped with this request are kept
+    ArchiveNode archived = request.toArchiveNode(solution, solutionDate);
+    request.removeRequest(this);
+    awaitArchiveLoaded(); // so the record is not left out of indices still being built
+    try {
+      archive.refresh(); // another session may have sealed the month meanwhile
+      archive.append(archived);
+    } catch (IOException e) {
+      System.out.println(
+          error + "An error occurred when archiving Request #" + archived.id() + ".");
+      e.printStackTrace();
     }
-    if (requestToCheck.isTip()) { // no more branches to search here
-      return currentMatches;
-    } else {
-      for (RequestNode branch : requestToCheck.getBranches()) { // search branches
-        currentMatches.addAll(findKeyWordsSearch(branch, keywords, currentMatches));
-      }
+    if (archiveIndexed) {
+      trackArchived(archived);
     }
-    return currentMatches; // return currentMatches with upstream branch matches added
   }
 
-  public ArrayList<RequestNode> getImmediateProblems() {
-    Set<RequestNode> output = new HashSet<>();
-    for (RequestNode root : rootRequests) {
-      output.addAll(findAllTipsSearch(root, new HashSet<>()));
+  private boolean checkpointIfDue() {
+    if (journal.isEnabled() && journal.size() >= checkpointInterval) {
+      return checkpoint();
     }
-    return new ArrayList<>(output);
+    return true;
+  }
+
+  public RequestNode findRequest(int id) {
+    return read(() -> requestsById.get(id));
   }
 
-  private Set<RequestNode> findAllTipsSearch(
-      RequestNode requestToCheck, Set<RequestNode> currentMatches) {
+  public ArchiveNode findArchivedRequest(int id) {
+    return archive.get(id);
+  }
 
-    if (requestToCheck.isTip()) { // no more branches to search here
-      currentMatches.add(requestToCheck);
-      return currentMatches;
+  public ArrayList<RequestNode> findRequests(RequestDirection direction, Team team) {
+    if (direction == RequestDirection.FROM) {
+      // find requests that this team made / are the requester for
+      return read(() -> new ArrayList<>(requestsByRequester.get(team)));
     } else {
-      for (RequestNode branch : requestToCheck.getBranches()) { // search branches
-        currentMatches.addAll(findAllTipsSearch(branch, currentMatches));
+      // find requests that want info from this team / are the requestee in
+      return read(() -> new ArrayList<>(requestsByRequestee.get(team)));
+    }
+  }
+
+  public ArrayList<ArchiveNode> findArchivedRequests(RequestDirection direction, Team team) {
+    ensureArchiveIndexed();
+    return read(() -> archivedTimeline(direction, team).all());
+  }
+
+  /**
+   * Finds archived requests solved between two dates.
+   *
+   * @param from Earliest solution date, inclusive
+   * @param to Latest solution date, inclusive
+   * @return Matching archived requests, oldest solution first
+   */
+  public ArrayList<ArchiveNode> findArchivedRequests(Date from, Date to) {
+    return new ArrayList<>(archive.between(from, to)); // only reads the months in range
+  }
+
+  /**
+   * Finds archived requests to or from a team that were solved between two dates.
+   *
+   * @param direction FROM for requests the team made, TO for requests the team was asked
+   * @param team The team to find requests for
+   * @param from Earliest solution date, inclusive
+   * @param to Latest solution date, inclusive
+   * @return Matching archived requests, oldest solution first
+   */
+  public ArrayList<ArchiveNode> findArchivedRequests(
+      RequestDirection direction, Team team, Date from, Date to) {
+    return archive.between(from, to).stream() // only reads the months in range
+        .filter(archived -> team == (direction == RequestDirection.FROM
+            ? archived.requester() : archived.requestee()))
+        .collect(toCollection(ArrayList::new));
+  }
+
+  private ArchiveTimeline archivedTimeline(RequestDirection direction, Team team) {
+    if (direction == RequestDirection.FROM) {
+      // requests that this team made / are the requester for
+      return archivedByRequester.get(team);
+    } else {
+      // requests that wanted info from this team / are the requestee in
+      return archivedByRequestee.get(team);
+    }
+  }
+
+  public ArrayList<RequestNode> findRequests(String keywords) {
+    return findRequests(keywords, Integer.MAX_VALUE);
+  }
+
+  public ArrayList<RequestNode> findRequests(String keywords, int limit) {
+    return rankRequests(keywords, limit).collect(toCollection(ArrayList::new));
+  }
+
+  /**
+   * Ranks live requests by how relevant their details are to the keywords.
+   *
+   * @param keywords The search phrase
+   * @param limit Maximum number of requests to return
+   * @return The best matching requests, most relevant first
+   */
+  public Stream<RequestNode> rankRequests(String keywords, int limit) {
+    return read(() -> detailsIndex.rank(keywords, limit).mapToObj(requestsById::get).toList())
+        .stream();
+  }
+
+  public ArrayList<ArchiveNode> findInArchivedRequests(String keywords) {
+    return findInArchivedRequests(keywords, Integer.MAX_VALUE);
+  }
+
+  public ArrayList<ArchiveNode> findInArchivedRequests(String keywords, int limit) {
+    ensureArchiveIndexed();
+    return Arrays.stream(read(() -> archivedDetailsIndex.rank(keywords, limit).toArray()))
+        .mapToObj(archive::get)
+        .collect(toCollection(ArrayList::new));
+  }
+
+  public ArrayList<ArchiveNode> findInArchivedSolutions(String keywords) {
+    return findInArchivedSolutions(keywords, Integer.MAX_VALUE);
+  }
+
+  public ArrayList<ArchiveNode> findInArchivedSolutions(String keywords, int limit) {
+    ensureArchiveIndexed();
+    return Arrays.stream(read(() -> archivedSolutionsIndex.rank(keywords, limit).toArray()))
+        .mapToObj(archive::get)
+        .collect(toCollection(ArrayList::new));
+  }
+
+  /**
+   * Finds archived requests whose details or solution are near-duplicates of the query.
+   *
+   * Queries shorter than {@link MinHashIndex#MIN_QUERY_SHINGLES} words are too short for that,
+   * so the requests holding at least threshold of their words are found exactly instead.
+   *
+   * @param query The details of a request about to be made
+   * @param threshold Minimum estimated Jaccard similarity of their words, from 0 to 1
+   * @return Similar archived requests, those with the most similar details first
+   */
+  public ArrayList<ArchiveNode> findSimilarArchivedRequests(String query, double threshold) {
+    ensureArchiveIndexed();
+    if (!archivedDetailsSimilarity.canEstimate(query)) {
+      return findArchivedRequestsContaining(query, threshold);
+    }
+    int[] similar = read(() -> IntStream.concat(
+            archivedDetailsSimilarity.similar(query, threshold),
+            archivedSolutionsSimilarity.similar(query, threshold))
+        .distinct()
+        .toArray());
+    return Arrays.stream(similar)
+        .mapToObj(archive::get)
+        .collect(toCollection(ArrayList::new));
+  }
+
+  /*
+   * Finds archived requests whose details or solution hold at least threshold of the query's
+   * words, those holding the most first. Only the requests the indices find for some word are
+   * checked, as the others hold none of them.
+   */
+  private ArrayList<ArchiveNode> findArchivedRequestsContaining(String query, double threshold) {
+    int[] candidates = read(() -> IntStream.concat(
+            IntStream.of(archivedDetailsIndex.candidates(query)),
+            IntStream.of(archivedSolutionsIndex.candidates(query)))
+        .distinct()
+        .toArray());
+    Map<ArchiveNode, Double> shares = new LinkedHashMap<>();
+    for (int id : candidates) {
+      ArchiveNode archived = archive.get(id);
+      double share = Math.max(wordShare(query, archived.details()),
+          wordShare(query, archived.solution()));
+      if (share >= threshold) {
+        shares.put(archived, share);
       }
     }
-    return currentMatches;
+    return shares.keySet().stream()
+        .sorted(Comparator.comparing(shares::get).reversed())
+        .collect(toCollection(ArrayList::new));
+  }
+
+  public ArrayList<RequestNode> getImmediateProblems() {
+    return read(() -> new ArrayList<>(tipRequests));
+  }
+
+  public ArrayList<RequestNode> getImmediateProblems(Team requestee) {
+    return read(() -> new ArrayList<>(tipRequestsByRequestee.get(requestee)));
   }
 
   public boolean graphIsEmpty() {
-    return rootRequests.isEmpty();
+    return read(() -> rootRequests.isEmpty());
   }
 
   public boolean archiveIsEmpty() {
@@ -403,41 +1441,55 @@ public class RequestGraph {
   }
 
   public List<ArchiveNode> getArchive() {
-    return archive;
+    try (Stream<ArchiveNode> records = archive.stream()) {
+      return records.toList();
+    }
   }
 
   public void clearArchive() {
-    archive = new ArrayList<>();
-    saveArchiveData();
+    write(() -> {
+      try {
+        archive.clear();
+      } catch (IOException e) {
+        System.out.println(error + "An error occurred when clearing the archive.");
+      }
+      rebuildArchiveIndices();
+      checkpoint(); // the journal may hold changes to the cleared data
+    });
   }
 
   public void clearGraph() {
-    rootRequests = new ArrayList<>();
-    saveData();
+    write(() -> {
+      rootRequests = new ArrayList<>();
+      rebuildIndices();
+      checkpoint();
+    });
   }
 
   public void clearMetadata() {
-    IDGenerator.init(0);
+    idGenerator.init(0); // not while committing, as IDs are leased holding the commit lock
     saveMetadata();
   }
 
   @Override
   public String toString() {
-    StringBuilder output = new StringBuilder();
-    for (RequestNode root : rootRequests) {
-      output.append(root.toString()).append("\n\n");
-    }
-    try {
-      output.deleteCharAt(output.length() - 1);
-    } catch (Exception ignored) {
-    }
-    return output.toString();
+    return read(() -> {
+      StringBuilder output = new StringBuilder();
+      for (RequestNode root : rootRequests) {
+        output.append(root.toString()).append("\n\n");
+      }
+      try {
+        output.deleteCharAt(output.length() - 1);
+      } catch (Exception ignored) {
+      }
+      return output.toString();
+    });
   }
 
   public String archiveToString() {
     StringBuilder output = new StringBuilder();
-    for (ArchiveNode arch : archive) {
-      output.append(arch.toString()).append("\n\n");
+    try (Stream<ArchiveNode> records = archive.stream()) {
+      records.forEach(arch -> output.append(arch.toString()).append("\n\n"));
     }
     try {
       output.deleteCharAt(output.length() - 1);
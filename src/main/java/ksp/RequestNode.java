@@ -4,7 +4,7 @@
 
 package ksp;
 
-import static ksp.utilities.SearchUtilities.stringMatchPercentage;
+import static ksp.utilities.SearchUtilities.normalize;
 
 import java.io.Serializable;
 import java.util.Calendar;
@@ -13,15 +13,20 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import ksp.exceptions.IllegalRequestException;
-import ksp.utilities.IDGenerator;
+import ksp.storage.NodeRecord;
+import ksp.utilities.ArchiveNode;
+import ksp.utilities.SearchQuery;
 import ksp.utilities.Team;
 import org.jetbrains.annotations.NotNull;
 
 public class RequestNode implements Serializable {
+  private static final long serialVersionUID = -86073929101398744L; // matches existing save data
+
   private final Team requester;
   private final Date creationDate;
   private Team requestee;
   private String details;
+  private transient String normalizedDetails; // cached for matching, rebuilt after loading
   private RequestNode source;
   private List<RequestNode> branches = new LinkedList<>();
   private final int id;
@@ -46,26 +51,70 @@ public class RequestNode implements Serializable {
       RequestGraph requestGraph)
       throws IllegalRequestException {
 
-    this.requester = requester;
-    this.requestee = requestee;
-
-    this.details = details;
-
-    setSource(source, requestGraph);
+    this(requestGraph.getIDGenerator().generateNewID(), requester, requestee, details,
+        Calendar.getInstance().getTime(), source, requestGraph);
 
     if (branches != null) {
       if (branches.stream().allMatch(x -> (x.requester == this.requestee))) {
-        this.branches = branches;
+        for (RequestNode branch : branches) {
+          branch.setSource(this, requestGraph); // journaled, so the link survives a crash
+        }
 
       } else {
         throw new IllegalRequestException(
             "New request was generated with branch requests not made by requestee team");
       }
     }
+  }
+
+  /**
+   * Restores a request that already has an ID and creation date, e.g. when replaying saved
+   * changes.
+   *
+   * @param id ID the request was given when it was first made
+   * @param requester Team that is requesting (who the request is from)
+   * @param requestee Team that the request id directed to
+   * @param details String containing actual question or query
+   * @param creationDate When the request was first made
+   * @param source Request that this Request is trying to resolve
+   * @param requestGraph The graph that tracks this request - auto-links on construction
+   * @throws IllegalRequestException if the request is invalid
+   */
+  RequestNode(
+      int id,
+      Team requester,
+      Team requestee,
+      String details,
+      Date creationDate,
+      RequestNode source,
+      RequestGraph requestGraph)
+      throws IllegalRequestException {
 
-    id = IDGenerator.generateNewID();
+    this(id, requester, requestee, details, creationDate);
 
-    creationDate = Calendar.getInstance().getTime();
+    setSource(source, requestGraph); // id must be set first so the graph can index this request
+  }
+
+  /**
+   * Restores a saved request without linking it into a graph. Used when loading a saved graph,
+   * whose links are restored with restoreBranch and indexed once loading is done.
+   *
+   * @param id ID the request was given when it was first made
+   * @param requester Team that is requesting (who the request is from)
+   * @param requestee Team that the request id directed to
+   * @param details String containing actual question or query
+   * @param creationDate When the request was first made
+   */
+  RequestNode(int id, Team requester, Team requestee, String details, Date creationDate) {
+    this.requester = requester;
+    this.requestee = requestee;
+
+    this.details = details;
+    this.normalizedDetails = normalize(details);
+
+    this.id = id;
+
+    this.creationDate = creationDate;
   }
 
   protected boolean isRoot() {
@@ -96,8 +145,13 @@ public class RequestNode implements Serializable {
     return details;
   }
 
-  protected void setDetails(String details) {
-    this.details = details;
+  protected void setDetails(String details, RequestGraph requestGraph) {
+    requestGraph.write(() -> {
+      String oldDetails = this.details;
+      this.details = details;
+      this.normalizedDetails = normalize(details);
+      requestGraph.updateDetails(this, oldDetails);
+    });
   } //TODO:add edit function
 
   /**
@@ -107,15 +161,19 @@ public class RequestNode implements Serializable {
    * @param requestGraph The request graph that tracks this request
    */
   protected void removeRequest(RequestGraph requestGraph) {
-    if (!isRoot()) {
-      source.removeBranch(this);
-    } else {
-      requestGraph.removeRoot(this);
-    }
+    requestGraph.write(() -> {
+      if (!isRoot()) {
+        source.removeBranch(this, requestGraph);
+      } else {
+        requestGraph.removeRoot(this);
+      }
+      requestGraph.untrackRequest(this);
 
-    for (RequestNode branch : branches) {
-      branch.removeRequest(requestGraph);
-    }
+      // branches unlink themselves from this list as they are removed, so iterate over a copy
+      for (RequestNode branch : List.copyOf(branches)) {
+        branch.removeRequest(requestGraph);
+      }
+    });
 
     // TODO: send email to this requester and the source requester saying this request is solved.
     //      maybe save response in log. needs to be here, not in graph as when branches
@@ -143,22 +201,24 @@ public class RequestNode implements Serializable {
           "New request tried to solve for a request not directed to the team.");
     }
 
-    if (newSource != null) {
-      if (source == null) { // node is currently a root
-        requestGraph.removeRoot(this);
-      } else {
-        source.removeBranch(this);
+    requestGraph.write(() -> {
+      if (newSource != null) {
+        if (source == null) { // node is currently a root
+          requestGraph.removeRoot(this);
+        } else {
+          source.removeBranch(this, requestGraph);
+        }
+        this.source = newSource;
+        newSource.addBranch(this, requestGraph);
       }
-      this.source = newSource;
-      newSource.addBranch(this, requestGraph);
-    }
-    else { // we want to make this request a root
-      if (source != null) {
-        source.removeBranch(this);
+      else { // we want to make this request a root
+        if (source != null) {
+          source.removeBranch(this, requestGraph);
+        }
+        this.source = null;
+        requestGraph.addRoot(this); // let the graph know we have a new root to track
       }
-      this.source = null;
-      requestGraph.addRoot(this); // let the graph know we have a new root to track
-    }
+    });
   }
 
   /**
@@ -184,23 +244,53 @@ public class RequestNode implements Serializable {
   protected void addBranch(@NotNull RequestNode newBranch, RequestGraph requestGraph)
       throws IllegalRequestException {
     if (newBranch.getRequester() == requestee) {
-      if (newBranch.isRoot()) {
-        branches.add(newBranch);
-        requestGraph.removeRoot(newBranch); // let graph know we newBranch isn't a root anymore
-        newBranch.hardSetSource(this, requestGraph);
-      } else {
-        newBranch.getSource().removeBranch(newBranch);
-        branches.add(newBranch);
-        newBranch.hardSetSource(this, requestGraph);
-      }
+      requestGraph.write(() -> {
+        if (newBranch.isRoot()) {
+          branches.add(newBranch);
+          requestGraph.removeRoot(newBranch); // let graph know we newBranch isn't a root anymore
+          newBranch.hardSetSource(this, requestGraph);
+        } else {
+          newBranch.getSource().removeBranch(newBranch, requestGraph);
+          branches.add(newBranch);
+          newBranch.hardSetSource(this, requestGraph);
+        }
+        requestGraph.trackRequest(newBranch);
+        requestGraph.updateTipStatus(this);
+      });
     } else {
       throw new IllegalRequestException(
           "Branch could not be added as source requestee is not the branch requester.");
     }
   }
 
-  protected void removeBranch(RequestNode newBranch) {
-    branches.remove(newBranch);
+  /**
+   * Links a saved branch back to this request while loading, without notifying any graph. The
+   * branch must not already have a source.
+   *
+   * @param branch Saved branch of this request
+   */
+  void restoreBranch(RequestNode branch) {
+    branches.add(branch);
+    branch.source = this;
+  }
+
+  protected void removeBranch(RequestNode newBranch, RequestGraph requestGraph) {
+    requestGraph.write(() -> {
+      branches.remove(newBranch);
+      requestGraph.updateTipStatus(this);
+    });
+  }
+
+  /**
+   * Flattens this request into an archive record. Its source and branches are kept only as IDs.
+   *
+   * @param solution The answer to this request
+   * @param solutionDate When this request was solved
+   */
+  protected ArchiveNode toArchiveNode(String solution, Date solutionDate) {
+    return new ArchiveNode(id, requester, requestee, details, creationDate,
+        isRoot() ? NodeRecord.NO_SOURCE : source.getID(),
+        branches.stream().map(RequestNode::getID).toList(), solution, solutionDate);
   }
 
   @Override
@@ -242,7 +332,20 @@ public class RequestNode implements Serializable {
    * @param searchPhrase The string to check match on
    */
   public Integer matchPercentage(String searchPhrase){
-    return stringMatchPercentage(details,searchPhrase);
+    return matchPercentage(SearchQuery.compile(searchPhrase));
+  }
+
+  /**
+   * Same as {@link #matchPercentage(String)}, but for a query compiled once and matched against
+   * many requests.
+   *
+   * @param query The compiled search phrase to check match on
+   */
+  public int matchPercentage(SearchQuery query) {
+    if (normalizedDetails == null) { // transient, so missing on requests read from disk
+      normalizedDetails = normalize(details);
+    }
+    return query.matchPercentage(normalizedDetails);
   }
 
   @Override
@@ -257,6 +360,11 @@ public class RequestNode implements Serializable {
     return Objects.equals(id, that.id) && Objects.equals(creationDate, that.creationDate);
   }
 
+  @Override
+  public int hashCode() {
+    return Objects.hash(id, creationDate);
+  }
+
   protected int getID() {
     return id;
   }
@@ -0,0 +1,307 @@
+package ksp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import ksp.utilities.InterfaceUtilities;
+import ksp.utilities.Team;
+
+/**
+ * Serves console commands over HTTP on the loopback interface, running them against the graph
+ * already loaded by {@link RequestTracker}, so that a console connecting to it with a {@link
+ * RequestClient} skips loading the graph and its indices itself.
+ *
+ * <p>Each command is POSTed to {@value #COMMANDS} as the body, with the team of the session in
+ * the {@value #TEAM_HEADER} header and that team's token in the {@value #TOKEN_HEADER} header,
+ * and the reply holds what the command printed. Admin commands, which wipe or stop the server,
+ * are rejected.
+ *
+ * <p>A command that asks a yes or no question is answered no, and the reply carries the
+ * question, URL encoded, in the {@value #UNCONFIRMED_HEADER} header, with only what the command
+ * printed before asking it. Questions are only asked before a command changes anything, so the
+ * client sends the command again with the questions the user agreed to, URL encoded and comma
+ * separated, in the {@value #CONFIRM_HEADER} header. Only those questions are answered yes, so a
+ * different question, e.g. as the graph changed meanwhile, is asked in turn. The reply then
+ * holds only what the command printed after the last of them.
+ */
+public class RequestServer implements AutoCloseable {
+  public static final String COMMANDS = "/commands";
+  public static final String TEAM_HEADER = "X-Team";
+  public static final String TOKEN_HEADER = "X-Token";
+  public static final String CONFIRM_HEADER = "X-Confirm";
+  public static final String UNCONFIRMED_HEADER = "X-Unconfirmed";
+
+  /*
+   * Without TCP_NODELAY, the JDK server writes the headers and body of a reply in separate
+   * packets, and the second waits on a delayed ACK: about 40 ms per command. Read once, when the
+   * first server in the process is created.
+   */
+  private static final String NO_DELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+  private static RoutedOutput console; // installed as System.out once a server starts
+
+  private static final int TOKEN_BYTES = 32;
+
+  private final HttpServer server;
+  private final ExecutorService handlers;
+  private final Map<Team, byte[]> tokens = new EnumMap<>(Team.class);
+
+  /**
+   * Starts serving commands.
+   *
+   * @param port Port to listen on, on the loopback interface, or 0 for any free port
+   * @param tokens The token each team's sessions must send, see {@link #loadTokens}. Teams
+   *     without one cannot connect.
+   * @throws IOException if the port cannot be bound
+   */
+  public RequestServer(int port, Map<Team, String> tokens) throws IOException {
+    tokens.forEach((team, token) -> this.tokens.put(team, token.getBytes(UTF_8)));
+    if (System.getProperty(NO_DELAY_PROPERTY) == null) {
+      System.setProperty(NO_DELAY_PROPERTY, "true");
+    }
+    routeConsole();
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    handlers = newHandlerExecutor();
+    server.setExecutor(handlers);
+    server.createContext(COMMANDS, this::handle);
+    server.start();
+  }
+
+  /**
+   * Reads the token of each team from a properties file, e.g. {@code SYSTEMS=...}. Teams without
+   * one are given a new random token, saved to the file, which is made readable by its owner
+   * only where the file system allows.
+   *
+   * @param file File holding the tokens, created if missing
+   */
+  public static Map<Team, String> loadTokens(Path file) throws IOException {
+    Properties saved = new Properties();
+    if (Files.exists(file)) {
+      try (InputStream in = Files.newInputStream(file)) {
+        saved.load(in);
+      }
+    }
+    Map<Team, String> tokens = new EnumMap<>(Team.class);
+    boolean generated = false;
+    SecureRandom random = new SecureRandom();
+    for (Team team : Team.values()) {
+      String token = saved.getProperty(team.name());
+      if (token == null || token.isBlank()) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        saved.setProperty(team.name(), token);
+        generated = true;
+      }
+      tokens.put(team, token.strip());
+    }
+    if (generated) {
+      if (!Files.exists(file)) {
+        try {
+          Files.createFile(file,
+              PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+          Files.createFile(file); // not a POSIX file system
+        }
+      }
+      try (OutputStream out = Files.newOutputStream(file)) {
+        saved.store(out, "The token each team's consoles connect to the request server with");
+      }
+    }
+    return tokens;
+  }
+
+  /** The port the server listens on. */
+  public int port() {
+    return server.getAddress().getPort();
+  }
+
+  /*
+   * Handles each command on its own virtual thread where the runtime has them, as commands mostly
+   * wait on the graph's locks and the disk. The build targets Java 17, which has none, so they
+   * are looked up reflectively, falling back to a pool of platform threads.
+   */
+  private static ExecutorService newHandlerExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(
+          Math.max(4, Runtime.getRuntime().availableProcessors()), task -> {
+            Thread thread = new Thread(task, "request-server");
+            thread.setDaemon(true);
+            return thread;
+          });
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!exchange.getRequestMethod().equals("POST")) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      Team team;
+      try {
+        team = Team.valueOf(exchange.getRequestHeaders().getFirst(TEAM_HEADER).toUpperCase());
+      } catch (RuntimeException e) {
+        reply(exchange, 400, "Invalid team.\n".getBytes(UTF_8));
+        return;
+      }
+      if (!isTokenOf(team, exchange.getRequestHeaders().getFirst(TOKEN_HEADER))) {
+        reply(exchange, 401, ("Invalid token for team " + team + ".\n").getBytes(UTF_8));
+        return;
+      }
+      String line = new String(exchange.getRequestBody().readAllBytes(), UTF_8);
+      if (RequestTracker.isAdminCommand(line)) {
+        reply(exchange, 403,
+            "Admin commands can only be run on the server's own console.\n".getBytes(UTF_8));
+        return;
+      }
+      Set<String> confirmed = confirmedQuestions(exchange.getRequestHeaders().getFirst(
+          CONFIRM_HEADER));
+
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      String[] unconfirmed = {null};
+      int[] from = {0}; // printed before the last confirmed question, already sent
+      int[] to = {-1}; // printed before the first unconfirmed question, if one was asked
+      RequestTracker.user.set(team);
+      InterfaceUtilities.answerRemotely(question -> {
+        if (unconfirmed[0] == null && confirmed.contains(question)) {
+          from[0] = output.size();
+          return true;
+        }
+        if (unconfirmed[0] == null) {
+          unconfirmed[0] = question;
+          to[0] = output.size();
+        }
+        return false;
+      });
+      console.route(output);
+      try {
+        RequestTracker.execute(line);
+      } finally {
+        console.route(null);
+        InterfaceUtilities.answerOnConsole();
+        RequestTracker.user.remove();
+      }
+      byte[] printed = output.toByteArray();
+      if (unconfirmed[0] != null) {
+        exchange.getResponseHeaders()
+            .set(UNCONFIRMED_HEADER, URLEncoder.encode(unconfirmed[0], UTF_8));
+      }
+      reply(exchange, 200, Arrays.copyOfRange(printed, from[0],
+          unconfirmed[0] == null ? printed.length : to[0]));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /* Compares in constant time, so the time taken does not give away how much of it matched. */
+  private boolean isTokenOf(Team team, String token) {
+    byte[] expected = tokens.get(team);
+    return expected != null && token != null
+        && MessageDigest.isEqual(expected, token.strip().getBytes(UTF_8));
+  }
+
+  private static Set<String> confirmedQuestions(String header) {
+    Set<String> questions = new HashSet<>();
+    if (header != null) {
+      for (String question : header.split(",")) {
+        questions.add(URLDecoder.decode(question.strip(), UTF_8));
+      }
+    }
+    return questions;
+  }
+
+  private static void reply(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    if (body.length > 0) {
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+  }
+
+  /* Makes what each command prints go back to the client that sent it. */
+  private static synchronized void routeConsole() {
+    if (console == null) {
+      console = new RoutedOutput(System.out);
+      System.setOut(new PrintStream(console, true, UTF_8));
+    }
+  }
+
+  /** Stops serving, waiting up to a second for the commands already running to finish. */
+  @Override
+  public void close() {
+    server.stop(1);
+    handlers.shutdown();
+  }
+
+  /*
+   * Sends what a thread serving a command prints to the reply to that command, and what every
+   * other thread prints to the console.
+   */
+  private static final class RoutedOutput extends OutputStream {
+    private final PrintStream consoleOut;
+    private final ThreadLocal<OutputStream> reply = new ThreadLocal<>();
+
+    RoutedOutput(PrintStream consoleOut) {
+      this.consoleOut = consoleOut;
+    }
+
+    /* Routes what the current thread prints to target, or back to the console if null. */
+    void route(OutputStream target) {
+      if (target == null) {
+        reply.remove();
+      } else {
+        reply.set(target);
+      }
+    }
+
+    private OutputStream target() {
+      OutputStream target = reply.get();
+      return target == null ? consoleOut : target;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      target().write(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      target().write(bytes, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      target().flush();
+    }
+  }
+}
@@ -3,19 +3,28 @@ package ksp;
 import static ksp.RequestBuilder.ANewRequest;
 import static ksp.utilities.InterfaceUtilities.askYN;
 
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
 import ksp.exceptions.IllegalRequestException;
+import ksp.storage.CloudStorageBackend;
 import ksp.utilities.ArchiveNode;
 import ksp.utilities.RequestDirection;
 import ksp.utilities.Team;
 
 public class RequestTracker {
-  static Team user;
+  static final ThreadLocal<Team> user = new ThreadLocal<>(); // of the session being served
   static String input = "❔   ";
   static String error = "⚠️    ";
   static String success = "✅️   ";
@@ -24,7 +33,13 @@ public class RequestTracker {
   static String email = "✉️   ";
   static String adminAction = "🔥   ";
   static String spacer = "     ";
-  static int matchPercentageThresholdBeforeAskingForConformation = 50;
+  static double similarityThresholdBeforeAskingForConfirmation = 0.5;
+  static String cloudBucketScheme = "gs://";
+  static int searchResultLimit = 25;
+  static String serveOption = "--serve";
+  static String connectOption = "--connect";
+  static int serverPort = 8642;
+  static String serverTokensFile = "server-tokens.properties";
 
   static RequestGraph requestGraph;
   static boolean run = true;
@@ -33,9 +48,17 @@ public class RequestTracker {
   /**
    * Application entry point.
    *
-   * @param args TODO: to be used to specify to launch in gui mode
+   * @param args Optionally a {@code gs://bucket} URL to keep the save data in, cached locally in
+   *     save-data. With {@code --serve}, the graph is kept loaded to serve the commands of
+   *     consoles started with {@code --connect}, which do not load it themselves. Each team
+   *     connects with its token, kept in server-tokens.properties by the server. TODO: to be
+   *     used to specify to launch in gui mode
    */
   public static void main(String[] args) {
+    List<String> options = new ArrayList<>(Arrays.asList(args));
+    boolean serve = options.remove(serveOption);
+    boolean connect = options.remove(connectOption);
+    args = options.toArray(new String[0]);
     BufferedReader reader = new BufferedReader(new InputStreamReader(System.in)); //TODO : migrate to Console class
     System.out.println("\uD83D\uDE80   Welcome to the Karman Space programme Request Tracker");
     System.out.println("      To the stars -idk what the motto is but imagine that here\n");
@@ -45,12 +68,16 @@ public class RequestTracker {
 
         ----------------------------------------------
         """);
+    if (serve) {
+      serve(args);
+      return;
+    }
     String name = null;
     while (name == null) {
       try {
         System.out.print(input + "Enter your team " + Arrays.toString(Team.values()) + ": " );
         name = reader.readLine().toUpperCase();
-        user = Team.valueOf(name);
+        user.set(Team.valueOf(name));
       } catch (IOException e) {
         System.out.println(error + "Oops...There was an error reading input.");
       } catch (Exception e) {
@@ -59,29 +86,136 @@ public class RequestTracker {
       }
     }
     System.out.println(success + "Session team assigned: " + name);
+    if (connect) {
+      connect(reader);
+      return;
+    }
     //TODO: take user credentials for retrieving the graph and metadata
-    System.out.println(info + "Loading requests and metadata.... ");
-    requestGraph = new RequestGraph();
-    System.out.println(success + "Initialised.");
+    loadRequestGraph(args);
     System.out.println(info + "Entering console mode...");
     System.out.println(info + "Type \"help\" to show options.");
 
     String line = null;
     while(run){
+      System.out.print(prompt);
       try {
-        System.out.print(prompt);
         line = reader.readLine();
-        if (!parse(line)){
-          System.out.println(error + "Invalid command. Type help for command options.");
-        }
-      } catch (Exception e) {
-        System.out.println(error + "Debug log: " + e.getMessage());
-        System.out.println(error + "Invalid command. Type help for command options.");
+      } catch (IOException e) {
+        System.out.println(error + "Oops...There was an error reading input.");
+        continue;
       }
+      execute(line);
     }
     exit();
   }
 
+  private static void loadRequestGraph(String[] args) {
+    System.out.println(info + "Loading requests and metadata.... ");
+    long loadStarted = System.nanoTime();
+    requestGraph = openRequestGraph(args);
+    System.out.println(success + "Initialised in "
+        + Duration.ofNanos(System.nanoTime() - loadStarted).toMillis() + " ms.");
+    System.out.println(info + "Load phases: " + describeLoadTimings(requestGraph.loadTimings()));
+    if (!requestGraph.isArchiveLoaded()) {
+      System.out.println(info + "The archive is still loading in the background.");
+    }
+  }
+
+  /* Runs a command line of the session served by the current thread, reporting invalid ones. */
+  static void execute(String line) {
+    try {
+      requestGraph.refresh(); // with the changes other sessions made meanwhile
+      if (!parse(line)){
+        System.out.println(error + "Invalid command. Type help for command options.");
+      }
+    } catch (Exception e) {
+      System.out.println(error + "Debug log: " + e.getMessage());
+      System.out.println(error + "Invalid command. Type help for command options.");
+    }
+  }
+
+  /* Returns true if a line runs an admin command, which connected consoles may not run. */
+  static boolean isAdminCommand(String line) {
+    List<String> args;
+    try {
+      args = splitArgs(line);
+    } catch (Exception e) {
+      return false; // reported as invalid when run
+    }
+    return !args.isEmpty()
+        && (args.get(0).equalsIgnoreCase("clear") || args.get(0).equalsIgnoreCase("exit"));
+  }
+
+  /*
+   * Keeps the graph loaded, serving the commands of connected consoles on the loopback
+   * interface, until the process is stopped.
+   */
+  private static void serve(String[] args) {
+    loadRequestGraph(args);
+    RequestServer server;
+    try {
+      server = new RequestServer(serverPort, RequestServer.loadTokens(Path.of(serverTokensFile)));
+    } catch (IOException e) {
+      System.out.println(error + "Could not serve on port " + serverPort + ": " + e.getMessage());
+      exit();
+      return;
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      server.close();
+      exit();
+    }));
+    System.out.println(success + "Serving requests on port " + server.port()
+        + ". Press ctrl+c to stop.");
+    System.out.println(info + "Give each team its token from " + serverTokensFile + ".");
+  }
+
+  /* Runs the console against a server that already has the graph loaded, see serve. */
+  private static void connect(BufferedReader reader) {
+    String token = null;
+    while (token == null) {
+      System.out.print(input + "Enter your team's server token: ");
+      try {
+        token = reader.readLine();
+      } catch (IOException e) {
+        System.out.println(error + "Oops...There was an error reading input.");
+        continue;
+      }
+      if (token == null) {
+        return;
+      }
+      token = token.isBlank() ? null : token.strip();
+    }
+    RequestClient client = new RequestClient(serverPort, user.get(), token);
+    System.out.println(info + "Entering console mode, connected to port " + serverPort + "...");
+    System.out.println(info + "Type \"help\" to show options.");
+
+    while (true) {
+      System.out.print(prompt);
+      String line;
+      try {
+        line = reader.readLine();
+      } catch (IOException e) {
+        System.out.println(error + "Oops...There was an error reading input.");
+        continue;
+      }
+      if (line == null || line.strip().equalsIgnoreCase("exit")) {
+        return; // the server keeps the changes
+      }
+      try {
+        List<String> confirmed = new ArrayList<>();
+        RequestClient.Reply reply = client.send(line, confirmed);
+        System.out.print(reply.output());
+        while (reply.question() != null && askYN(reply.question())) {
+          confirmed.add(reply.question()); // the next question is asked in turn
+          reply = client.send(line, confirmed);
+          System.out.print(reply.output());
+        }
+      } catch (IOException e) {
+        System.out.println(error + "Could not reach the request server: " + e.getMessage());
+      }
+    }
+  }
+
   private static boolean parse(String line){
     List<String> args = null;
 
@@ -127,6 +261,35 @@ public class RequestTracker {
     return false;
   }
 
+  private static RequestGraph openRequestGraph(String[] args) {
+    if (args.length == 0 || !args[0].startsWith(cloudBucketScheme)) {
+      return new RequestGraph();
+    }
+    try {
+      Storage storage = StorageOptions.getDefaultInstance().getService();
+      return new RequestGraph(new CloudStorageBackend(storage,
+          args[0].substring(cloudBucketScheme.length()), Path.of("save-data")));
+    } catch (IOException e) {
+      System.out.println(error + "Could not open the save data cache, using local save data.");
+      return new RequestGraph();
+    }
+  }
+
+  /* Lists how long each load phase took, e.g. "graph 120 ms, indices 80 ms". */
+  static String describeLoadTimings(Map<RequestGraph.LoadPhase, Duration> timings) {
+    StringJoiner phases = new StringJoiner(", ");
+    timings.forEach((phase, took) ->
+        phases.add(phase.name().toLowerCase() + " " + took.toMillis() + " ms"));
+    return phases.toString();
+  }
+
+  /* Lets the user know why a command that needs the archive may take a moment. */
+  private static void noteArchiveLoading() {
+    if (!requestGraph.isArchiveLoaded()) {
+      System.out.println(info + "Waiting for the archive to finish loading...");
+    }
+  }
+
   private static List<String> splitArgs(String args){
     List<String> argParts = new ArrayList<>();
 
@@ -171,13 +334,15 @@ public class RequestTracker {
       return false;
     }
 
-    if (request.getRequestee() != user){
+    if (request.getRequestee() != user.get()){
       System.out.println(error + "Request with ID #" + id + " is not for your team. Only solve it if you think you are better suited to answer.");
       if (!askYN(input +"Would you still like to continue? ")){
-        return false;
+        System.out.println(info + "No changes were made.");
+        return true; // declined rather than invalid
       }
     }
 
+    noteArchiveLoading();
     requestGraph.resolveRequest(request,args.get(1));
     System.out.println(success + request + "\n" + success + "Marked as solved with solution: " + args.get(1));
 
@@ -186,9 +351,9 @@ public class RequestTracker {
 
   private static boolean request(List<String> args) {
     String query = args.get(0);
-    List<ArchiveNode> similar = requestGraph.getArchive().stream().filter(
-        x -> x.archivedNode().matchPercentage(query)
-            >= matchPercentageThresholdBeforeAskingForConformation).toList();
+    noteArchiveLoading();
+    List<ArchiveNode> similar = requestGraph.findSimilarArchivedRequests(
+        query, similarityThresholdBeforeAskingForConfirmation);
     if (!similar.isEmpty()){
       System.out.println(info + "There seems to be similar questions that have been answered before:\n");
       for (ArchiveNode alt : similar){
@@ -208,7 +373,7 @@ public class RequestTracker {
       System.out.println(error + "Invalid Team.");
       return false;
     }
-    RequestBuilder newRequest = ANewRequest(user, requestee)
+    RequestBuilder newRequest = ANewRequest(user.get(), requestee)
         .inGraph(requestGraph)
         .withQuery(query);
 
@@ -237,8 +402,8 @@ public class RequestTracker {
 
   private static void exit() {
     System.out.println(info + "Saving Requests and metadata...");
-    requestGraph.saveMetadata();
-    requestGraph.saveData();
+    requestGraph.checkpoint();
+    requestGraph.close(); // writes the checkpoint before returning
     System.out.println(success + "Saved and exited.");
   }
 
@@ -278,7 +443,7 @@ public class RequestTracker {
         System.out.println(error + "Provide a search term.");
       } else{
 
-        graphOutputs = requestGraph.findRequests(args.get(1));
+        graphOutputs = requestGraph.findRequests(args.get(1), searchResultLimit);
 
         if (graphOutputs == null || graphOutputs.isEmpty()){
           System.out.println(error + "No matches found. Try searching archived requests.\n");
@@ -296,8 +461,10 @@ public class RequestTracker {
         System.out.println(error + "Provide a search term.");
       } else{
 
-        archiveOutputs = requestGraph.findInArchivedRequests(args.get(1));
-        ArrayList<ArchiveNode> archiveSolutionOutputs = requestGraph.findInArchivedSolutions(args.get(1));
+        noteArchiveLoading();
+        archiveOutputs = requestGraph.findInArchivedRequests(args.get(1), searchResultLimit);
+        ArrayList<ArchiveNode> archiveSolutionOutputs =
+            requestGraph.findInArchivedSolutions(args.get(1), searchResultLimit);
 
         if ((archiveOutputs == null || archiveOutputs.isEmpty())
             && (archiveSolutionOutputs == null || archiveSolutionOutputs.isEmpty())){
@@ -334,6 +501,29 @@ public class RequestTracker {
       }
     }
 
+    else if (type.equalsIgnoreCase("recent")){ //recently solved by user case
+      int days;
+      try {
+        days = Integer.parseInt(args.get(1));
+      } catch (Exception e) {
+        System.out.println(error + "Provide a number of days.");
+        return;
+      }
+      Calendar since = Calendar.getInstance();
+      Date now = since.getTime();
+      since.add(Calendar.DAY_OF_MONTH, -days);
+      archiveOutputs = requestGraph.findArchivedRequests(RequestDirection.TO, user.get(), since.getTime(), now);
+
+      System.out.println(success + "All requests you have solved in the last " + days + " days:\n");
+      if (archiveOutputs.isEmpty()){
+        System.out.println(error + "No matches found.\n");
+      } else{
+        for (ArchiveNode request : archiveOutputs) {
+          System.out.println(request + "\n");
+        }
+      }
+    }
+
     else if (type.equalsIgnoreCase("archive")){ //archive case
       System.out.println(success + "All resolved requests:\n");
       if (requestGraph.archiveIsEmpty()){
@@ -352,7 +542,7 @@ public class RequestTracker {
         if ((out == null) && (archiveOut == null)){
           System.out.println(error + "No request found for Request #" + id);
         } else if (out == null){
-          System.out.println(success + "[SOLVED] " + archiveOut.archivedNode()
+          System.out.println(success + "[SOLVED] " + archiveOut.requestToString()
               + "\n" + spacer + "Solution: " + archiveOut.solution());
         } else{
           System.out.println(success + out);
@@ -361,24 +551,28 @@ public class RequestTracker {
         switch (type.toLowerCase()) {
           case "sent" -> {
             System.out.println(success + "All unresolved requests sent by you:\n");
-            graphOutputs = requestGraph.findRequests(RequestDirection.FROM, user);
+            graphOutputs = requestGraph.findRequests(RequestDirection.FROM, user.get());
           }
           case "sent-a", "answered" -> {
             System.out.println(success + "All resolved requests sent by you:\n");
-            archiveOutputs = requestGraph.findArchivedRequests(RequestDirection.FROM, user);
+            archiveOutputs = requestGraph.findArchivedRequests(RequestDirection.FROM, user.get());
           }
           case "received" -> {
             System.out.println(success + "All requests you still need to solve:\n");
-            graphOutputs = requestGraph.findRequests(RequestDirection.TO, user);
+            graphOutputs = requestGraph.findRequests(RequestDirection.TO, user.get());
           }
           case "received-a","solved" -> {
             System.out.println(success + "All requests you have solved:\n");
-            archiveOutputs = requestGraph.findArchivedRequests(RequestDirection.TO, user);
+            archiveOutputs = requestGraph.findArchivedRequests(RequestDirection.TO, user.get());
           }
           case "immediate" -> {
             System.out.println(success + "All requests that can be solved right now:\n");
             graphOutputs = requestGraph.getImmediateProblems();
           }
+          case "immediate-r" -> {
+            System.out.println(success + "All requests to you that can be solved right now:\n");
+            graphOutputs = requestGraph.getImmediateProblems(user.get());
+          }
           default -> {
             System.out.println(error + "Invalid Display type.");
             return;
@@ -446,7 +640,7 @@ public class RequestTracker {
                  e.g. solve 3 "The diameter is 1m. CAD model here: *some teams link*. Thanks"
                  
                  
-        display <type> <(if type is search) search phrase>
+        display <type> <(if type is search) search phrase / (if type is recent) days>
              - Shows the current request graph
                  type: One of:
                         sent       - displays queries that you are waiting on responses from
@@ -456,12 +650,15 @@ public class RequestTracker {
                         received   - displays queries you have yet to solve
                         received-a - displays queries that you have solved
                         solved     - displays queries that you have solved
+                        recent     - displays queries that you have solved in the last N days
+                                     (N provided after the type)
                         
                         live        - displays all unsolved requests
                         archive    - displays all solved requests
                         
                         immediate  - displays all unsolved requests, that can be solved right now!
                                     (i.e. they have no dependant requests they are waiting for)
+                        immediate-r - displays unsolved requests to you, that can be solved right now!
                                     
                         *ID*       - displays the request with ID entered (even if its archived)
                         
@@ -470,6 +667,7 @@ public class RequestTracker {
                         
                  e.g. display search "CPU"
                  e.g. display 67
+                 e.g. display recent 7
                  e.g. display search-a "CPU"
         
         """, info, Arrays.toString(Team.values()));
@@ -0,0 +1,414 @@
+package ksp.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+import ksp.utilities.ArchiveNode;
+import ksp.utilities.IntHashMap;
+import ksp.utilities.Team;
+
+/**
+ * Append-only file of archived requests, read through a memory mapping. Opening a store costs the
+ * same however large the archive is: records are only decoded when they are asked for, and the
+ * offset of each record is only indexed the first time a record is looked up or appended.
+ *
+ * <p>The file starts with a 4 byte magic number and a format version, followed by one frame per
+ * record of {@code [length][id][payload]}. A frame cut short by a crash is dropped when the
+ * offsets are indexed. Stores are limited to 2GB, the most a single mapping can cover.
+ */
+public class ArchiveStore implements AutoCloseable {
+  public static final int MAGIC = 0x4B535052; // "KSPR"
+  public static final byte VERSION = 1;
+
+  static final int HEADER_BYTES = Integer.BYTES + 1;
+  private static final int FRAME_HEADER_BYTES = 2 * Integer.BYTES;
+  private static final int SOLUTION_DATE_OFFSET = Integer.BYTES + 2 + Long.BYTES + Integer.BYTES;
+
+  private final FileChannel channel; // null for a store that is only held in memory
+  private ByteBuffer region; // mapping of the file, or the records themselves when in memory
+  private int end; // end of the last record
+
+  private int[] frameOffsets; // null until indexed
+  private int frameCount;
+  private IntHashMap<Integer> offsetsById;
+
+  private ArchiveStore(FileChannel channel, ByteBuffer region, int end) {
+    this.channel = channel;
+    this.region = region;
+    this.end = end;
+  }
+
+  /** Returns an empty store that is not backed by a file, for graphs that are not saved. */
+  public static ArchiveStore inMemory() {
+    ByteBuffer memory = ByteBuffer.allocate(4096);
+    memory.putInt(MAGIC).put(VERSION);
+    return new ArchiveStore(null, memory, HEADER_BYTES);
+  }
+
+  /* Wraps the bytes of a whole store, e.g. one decompressed from a sealed archive segment. */
+  static ArchiveStore fromImage(byte[] image) throws IOException {
+    ByteBuffer records = ByteBuffer.wrap(image);
+    if (image.length < HEADER_BYTES || records.getInt(0) != MAGIC) {
+      throw new IOException("Not an archive store image");
+    }
+    return new ArchiveStore(null, records, image.length);
+  }
+
+  /**
+   * Opens the store at path, creating it if the file is missing or empty.
+   *
+   * @param path Location of the store
+   * @throws IOException if the file is not an archive store or cannot be opened
+   */
+  public static ArchiveStore open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      if (channel.size() == 0) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).put(VERSION);
+        writeFully(channel, header.flip(), 0);
+      } else if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(path + " is too large to map");
+      }
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      channel.read(header, 0);
+      if (header.position() < HEADER_BYTES || header.getInt(0) != MAGIC) {
+        throw new IOException(path + " is not an archive store");
+      }
+      if (header.get(Integer.BYTES) != VERSION) {
+        throw new IOException(path + " has unsupported format version " + header.get(4));
+      }
+      return new ArchiveStore(channel, null, (int) channel.size());
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  public boolean isEmpty() {
+    return end == HEADER_BYTES;
+  }
+
+  public int size() {
+    ensureIndexed();
+    return frameCount;
+  }
+
+  public boolean contains(int id) {
+    ensureIndexed();
+    return offsetsById.containsKey(id);
+  }
+
+  /**
+   * Decodes the record stored under id. If an ID was archived more than once, the oldest record
+   * is returned.
+   *
+   * @return the archived request, or null if id is not archived
+   */
+  public ArchiveNode get(int id) {
+    ensureIndexed();
+    Integer offset = offsetsById.get(id);
+    return offset == null ? null : decodeAt(offset);
+  }
+
+  /** Decodes every record on demand, oldest first. */
+  public Stream<ArchiveNode> stream() {
+    ensureIndexed();
+    return Arrays.stream(frameOffsets, 0, frameCount).mapToObj(this::decodeAt);
+  }
+
+  /* Length of the whole records in the file, header included, dropping any torn record. */
+  int length() {
+    ensureIndexed();
+    return end;
+  }
+
+  public void append(ArchiveNode archived) throws IOException {
+    appendAll(List.of(archived));
+  }
+
+  /** Appends records in a single write. */
+  public void appendAll(List<ArchiveNode> batch) throws IOException {
+    ensureIndexed(); // drops any torn frame, so the new records follow a whole one
+    List<byte[]> payloads = new ArrayList<>(batch.size());
+    long length = 0;
+    for (ArchiveNode archived : batch) {
+      byte[] payload = encode(archived);
+      payloads.add(payload);
+      length += FRAME_HEADER_BYTES + payload.length;
+    }
+    if (end + length > Integer.MAX_VALUE) {
+      throw new IOException("The archive store is full");
+    }
+    ByteBuffer frames = ByteBuffer.allocate((int) length);
+    for (int i = 0; i < batch.size(); i++) {
+      frames.putInt(payloads.get(i).length).putInt(batch.get(i).id()).put(payloads.get(i));
+    }
+    frames.flip();
+
+    if (channel == null) {
+      if (region.capacity() < end + frames.remaining()) {
+        ByteBuffer grown =
+            ByteBuffer.allocate(Math.max(region.capacity() << 1, end + frames.remaining()));
+        grown.put(region.duplicate().position(0).limit(end));
+        region = grown;
+      }
+      region.position(end);
+      region.put(frames);
+    } else {
+      writeFully(channel, frames, end);
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      indexFrame(end, batch.get(i).id());
+      end += FRAME_HEADER_BYTES + payloads.get(i).length;
+    }
+  }
+
+  /* Copies out the bytes of the whole store, header included. */
+  byte[] image() {
+    ensureIndexed();
+    byte[] image = new byte[end];
+    region().get(0, image);
+    return image;
+  }
+
+  /** Removes every record. */
+  public void clear() throws IOException {
+    if (channel != null) {
+      channel.truncate(HEADER_BYTES);
+      region = null;
+    }
+    end = HEADER_BYTES;
+    frameOffsets = new int[16];
+    frameCount = 0;
+    offsetsById = new IntHashMap<>();
+  }
+
+  /**
+   * Picks up the records another process appended to the file since it was opened. Only safe
+   * while that process is kept from appending.
+   */
+  public void refresh() throws IOException {
+    long size = channel == null ? end : channel.size();
+    if (size == end) {
+      return;
+    } else if (size > Integer.MAX_VALUE) {
+      throw new IOException("The archive store is too large to map");
+    } else if (size < end) { // cleared, so indexed again when next used
+      end = (int) size;
+      region = null;
+      frameOffsets = null;
+      return;
+    }
+    int appendedFrom = end;
+    end = (int) size;
+    if (frameOffsets != null) {
+      indexFrom(appendedFrom);
+    }
+  }
+
+  /** Forces appended records to the storage device. */
+  public void force() throws IOException {
+    if (channel != null) {
+      channel.force(false);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+    }
+  }
+
+  /* Walks the frame headers once to find the offset of every record. */
+  private void ensureIndexed() {
+    if (frameOffsets != null) {
+      return;
+    }
+    frameOffsets = new int[16];
+    offsetsById = new IntHashMap<>();
+    indexFrom(HEADER_BYTES);
+  }
+
+  /* Indexes the frames from offset on, dropping a torn final frame. */
+  private void indexFrom(int offset) {
+    ByteBuffer records = region();
+    while (offset + FRAME_HEADER_BYTES <= end) {
+      int length = records.getInt(offset);
+      if (length < 0 || length > end - offset - FRAME_HEADER_BYTES) {
+        break; // torn final frame
+      }
+      indexFrame(offset, records.getInt(offset + Integer.BYTES));
+      offset += FRAME_HEADER_BYTES + length;
+    }
+    if (offset < end) {
+      truncateTo(offset);
+    }
+  }
+
+  private void indexFrame(int offset, int id) {
+    if (frameCount == frameOffsets.length) {
+      frameOffsets = Arrays.copyOf(frameOffsets, frameCount << 1);
+    }
+    frameOffsets[frameCount++] = offset;
+    if (!offsetsById.containsKey(id)) {
+      offsetsById.put(id, offset);
+    }
+  }
+
+  private void truncateTo(int offset) {
+    end = offset;
+    if (channel != null) {
+      try {
+        channel.truncate(offset);
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not drop a torn archive record", e);
+      }
+      region = null;
+    }
+  }
+
+  /* Maps the file again whenever records have been appended past the current mapping. */
+  private ByteBuffer region() {
+    if (channel != null && (region == null || region.capacity() < end)) {
+      try {
+        region = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not map the archive store", e);
+      }
+    }
+    return region;
+  }
+
+  private ArchiveNode decodeAt(int offset) {
+    ByteBuffer record = region().duplicate();
+    record.position(offset + FRAME_HEADER_BYTES);
+    return decode(record);
+  }
+
+  /* Writes the header of a store image, for images that are streamed rather than appended to. */
+  static void writeImageHeader(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+  }
+
+  /* Reads back the header written by writeImageHeader. */
+  static void readImageHeader(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+      throw new IOException("Not an archive store image");
+    }
+  }
+
+  /* Writes the frame of one record of a streamed store image. */
+  static void writeFrame(DataOutput out, ArchiveNode archived) throws IOException {
+    writeFrame(out, archived.id(), encode(archived));
+  }
+
+  /* Writes the frame of one record already encoded, see encode. */
+  static void writeFrame(DataOutput out, int id, byte[] payload) throws IOException {
+    out.writeInt(payload.length);
+    out.writeInt(id);
+    out.write(payload);
+  }
+
+  /*
+   * Offsets of the whole frames in the bytes of a store file up to end, for reading a file
+   * another store appends to, e.g. on another thread, without opening it.
+   */
+  static int[] frameOffsets(ByteBuffer file, int end) {
+    int[] offsets = new int[16];
+    int count = 0;
+    int offset = HEADER_BYTES;
+    while (offset + FRAME_HEADER_BYTES <= end) {
+      int length = file.getInt(offset);
+      if (length < 0 || length > end - offset - FRAME_HEADER_BYTES) {
+        break; // torn final frame
+      }
+      if (count == offsets.length) {
+        offsets = Arrays.copyOf(offsets, count << 1);
+      }
+      offsets[count++] = offset;
+      offset += FRAME_HEADER_BYTES + length;
+    }
+    return Arrays.copyOf(offsets, count);
+  }
+
+  /* The ID of the record framed at an offset, see frameOffsets. */
+  static int frameId(ByteBuffer file, int offset) {
+    return file.getInt(offset + Integer.BYTES);
+  }
+
+  /* Copies out the encoded record framed at an offset, see frameOffsets. */
+  static byte[] framePayload(ByteBuffer file, int offset) {
+    byte[] payload = new byte[file.getInt(offset)];
+    file.get(offset + FRAME_HEADER_BYTES, payload);
+    return payload;
+  }
+
+  /* Reads the solution date of an encoded record, without decoding the rest of it. */
+  static long solutionTime(byte[] payload) {
+    return ByteBuffer.wrap(payload).getLong(SOLUTION_DATE_OFFSET);
+  }
+
+  static byte[] encode(ArchiveNode archived) {
+    byte[] details = archived.details().getBytes(StandardCharsets.UTF_8);
+    byte[] solution = archived.solution().getBytes(StandardCharsets.UTF_8);
+    ByteBuffer out = ByteBuffer.allocate(Integer.BYTES + 2 + 2 * Long.BYTES
+        + Integer.BYTES * (2 + archived.branchIds().size())
+        + Integer.BYTES * 2 + details.length + solution.length);
+    out.putInt(archived.id())
+        .put((byte) archived.requester().ordinal())
+        .put((byte) archived.requestee().ordinal())
+        .putLong(archived.creationDate().getTime())
+        .putInt(archived.sourceId())
+        .putLong(archived.solutionDate().getTime())
+        .putInt(archived.branchIds().size());
+    for (int branchId : archived.branchIds()) {
+      out.putInt(branchId);
+    }
+    out.putInt(details.length).put(details).putInt(solution.length).put(solution);
+    return out.array();
+  }
+
+  /* Decodes one record, leaving in positioned after it. */
+  static ArchiveNode decode(ByteBuffer in) {
+    int id = in.getInt();
+    Team requester = Team.values()[in.get()];
+    Team requestee = Team.values()[in.get()];
+    Date creationDate = new Date(in.getLong());
+    int sourceId = in.getInt();
+    Date solutionDate = new Date(in.getLong());
+    int branchCount = in.getInt();
+    List<Integer> branchIds = new ArrayList<>(branchCount);
+    for (int b = 0; b < branchCount; b++) {
+      branchIds.add(in.getInt());
+    }
+    return new ArchiveNode(id, requester, requestee, getString(in), creationDate, sourceId,
+        branchIds, getString(in), solutionDate);
+  }
+
+  private static String getString(ByteBuffer in) {
+    byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package ksp.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * Replaces files so that a crash leaves each of them either as it was or as it was written, never
+ * truncated or half written.
+ *
+ * <p>New content is written to a temporary file next to its target, see {@link #stage}. {@link
+ * #commit} then forces every staged file to the storage device, renames each over its target,
+ * and forces each directory holding a target once, so the renames survive a crash too. Staging
+ * several files before committing lets them share that barrier, rather than each paying for its
+ * own directory sync.
+ *
+ * <p>Each staged file has a name of its own, so batches staging the same target at the same time,
+ * in this process or others, never write to the same file: whichever commits last replaces the
+ * target with its whole content.
+ */
+public class AtomicWriteBatch {
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final Map<Path, Path> staged = new LinkedHashMap<>(); // target to temporary file
+
+  /* Files staged this long ago were left behind by a batch that never committed. */
+  private static final Duration ABANDONED_AFTER = Duration.ofHours(1);
+
+  /**
+   * Returns where to write the new content of target, in place of target itself: a file next to
+   * it that does not exist yet. Staging a target again replaces what was staged for it.
+   */
+  public synchronized Path stage(Path target) {
+    Path temporary;
+    do {
+      temporary = target.resolveSibling(target.getFileName() + "."
+          + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + TEMP_SUFFIX);
+    } while (Files.exists(temporary));
+    Path replaced = staged.put(target, temporary);
+    if (replaced != null) {
+      deleteQuietly(replaced);
+    }
+    return temporary;
+  }
+
+  public synchronized boolean isEmpty() {
+    return staged.isEmpty();
+  }
+
+  /**
+   * Makes the staged files durable, then moves each over its target.
+   *
+   * @throws IOException if a file could not be forced or moved. The targets moved so far are
+   *     replaced; the others are left as they were and stay staged.
+   */
+  public synchronized void commit() throws IOException {
+    for (Path temporary : staged.values()) {
+      try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+        file.force(true);
+      }
+    }
+    Set<Path> directories = new LinkedHashSet<>();
+    for (Iterator<Map.Entry<Path, Path>> moving = staged.entrySet().iterator();
+        moving.hasNext(); ) {
+      Map.Entry<Path, Path> file = moving.next();
+      Files.move(file.getValue(), file.getKey(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      directories.add(file.getKey().toAbsolutePath().getParent());
+      moving.remove();
+    }
+    for (Path directory : directories) {
+      forceDirectory(directory);
+    }
+  }
+
+  /** Deletes the staged files, leaving their targets as they were. */
+  public synchronized void discard() {
+    for (Path temporary : staged.values()) {
+      deleteQuietly(temporary);
+    }
+    staged.clear();
+  }
+
+  /**
+   * Deletes the files in a directory staged by batches that were never committed or discarded,
+   * e.g. because the process crashed. Files staged recently are kept, as another process may
+   * still be writing them.
+   */
+  public static void deleteAbandoned(Path directory) {
+    FileTime before = FileTime.from(Instant.now().minus(ABANDONED_AFTER));
+    try (Stream<Path> files = Files.list(directory)) {
+      files.filter(file -> file.getFileName().toString().endsWith(TEMP_SUFFIX))
+          .filter(file -> {
+            try {
+              return Files.getLastModifiedTime(file).compareTo(before) < 0;
+            } catch (IOException e) {
+              return false; // already gone
+            }
+          })
+          .forEach(AtomicWriteBatch::deleteQuietly);
+    } catch (IOException ignored) {
+      // tried again the next time
+    }
+  }
+
+  private static void deleteQuietly(Path temporary) {
+    try {
+      Files.deleteIfExists(temporary);
+    } catch (IOException ignored) {
+      // only takes up space until it is deleted as abandoned
+    }
+  }
+
+  private static void forceDirectory(Path directory) throws IOException {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(directory, StandardOpenOption.READ);
+    } catch (IOException e) {
+      return; // some platforms, e.g. Windows, offer no way to force a directory
+    }
+    try (channel) {
+      channel.force(true);
+    }
+  }
+}
@@ -0,0 +1,257 @@
+package ksp.storage;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads back a stream written by a {@link BlockOutputStream}, decompressing one block at a time
+ * as it is read. Whatever {@link Compression} the stream was written with is used.
+ *
+ * <p>Given an executor, the stream reads ahead and decompresses the next few blocks on it while
+ * the current one is consumed, so a large stream is decoded on several cores.
+ */
+public class BlockInputStream extends InputStream {
+  private static final int READ_AHEAD_BLOCKS = 4;
+
+  private final DataInputStream in;
+  private final Compression compression;
+  private final Executor decoder; // null to decompress on the reading thread
+  private final ArrayDeque<CompletableFuture<byte[]>> readAhead = new ArrayDeque<>();
+  private final ConcurrentLinkedQueue<Compression.Codec> idleCodecs =
+      new ConcurrentLinkedQueue<>();
+  private final Compression.Codec codec; // null when blocks are decompressed by the decoder
+  private final byte[] compressed;
+  private byte[] block;
+  private int length;
+  private int position;
+  private int storedLength; // of the block whose header was read last, negative if stored
+  private boolean ended;
+
+  /** @param in Stream positioned at the start of the block stream, closed when this one is */
+  public BlockInputStream(InputStream in) throws IOException {
+    this(in, null);
+  }
+
+  /**
+   * @param in Stream positioned at the start of the block stream, closed when this one is
+   * @param decoder Where to decompress the blocks read ahead of the current one
+   */
+  public BlockInputStream(InputStream in, Executor decoder) throws IOException {
+    this(in, readCompression(in), decoder);
+  }
+
+  private BlockInputStream(InputStream in, Compression compression, Executor decoder) {
+    this.in = new DataInputStream(in);
+    this.compression = compression;
+    this.decoder = decoder;
+    if (decoder == null) {
+      this.codec = compression.newCodec();
+      this.block = new byte[BlockOutputStream.BLOCK_BYTES];
+      this.compressed =
+          new byte[Compression.Codec.maxCompressedLength(BlockOutputStream.BLOCK_BYTES)];
+    } else {
+      this.codec = null;
+      this.compressed = null;
+    }
+  }
+
+  /**
+   * Reads a block stream from one of its blocks on, e.g. one found through the {@link
+   * BlockOutputStream.BlockIndex} of the stream.
+   *
+   * @param in Stream positioned at the start of a block, closed when this one is
+   * @param compression The compression of the block stream, see {@link #compression}
+   */
+  public static BlockInputStream fromBlock(InputStream in, Compression compression) {
+    return new BlockInputStream(in, compression, null);
+  }
+
+  private static Compression readCompression(InputStream in) throws IOException {
+    int id = in.read();
+    if (id < 0) {
+      throw new EOFException("The block stream is empty");
+    }
+    return Compression.withId(id);
+  }
+
+  /** How the blocks are compressed. */
+  public Compression compression() {
+    return compression;
+  }
+
+  /**
+   * Finds where each block of a stream starts, reading only the block headers, e.g. for a stream
+   * whose {@link BlockOutputStream#index} was not kept.
+   *
+   * @param in Stream positioned at the start of the block stream, left open
+   * @throws IOException if the stream ends before its end block, or is corrupt
+   */
+  public static BlockOutputStream.BlockIndex scan(InputStream in) throws IOException {
+    BlockInputStream blocks = new BlockInputStream(in, readCompression(in), null);
+    long[] storedOffsets = new long[16];
+    long[] rawOffsets = new long[16];
+    int count = 0;
+    long stored = 1; // the compression ID comes first
+    long raw = 0;
+    int rawLength;
+    while ((rawLength = blocks.readBlockHeader()) > 0) {
+      if (count + 1 == storedOffsets.length) {
+        storedOffsets = Arrays.copyOf(storedOffsets, count << 1);
+        rawOffsets = Arrays.copyOf(rawOffsets, count << 1);
+      }
+      storedOffsets[count] = stored;
+      rawOffsets[count++] = raw;
+      int storedLength = blocks.storedLength < 0 ? rawLength : blocks.storedLength;
+      blocks.in.skipNBytes(storedLength);
+      stored += 2 * Integer.BYTES + storedLength;
+      raw += rawLength;
+    }
+    rawOffsets[count] = raw;
+    return new BlockOutputStream.BlockIndex(
+        Arrays.copyOf(storedOffsets, count), Arrays.copyOf(rawOffsets, count + 1));
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position == length && !nextBlock()) {
+      return -1;
+    }
+    return block[position++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int count) throws IOException {
+    if (count == 0) {
+      return 0;
+    }
+    if (position == length && !nextBlock()) {
+      return -1;
+    }
+    int copied = Math.min(count, length - position);
+    System.arraycopy(block, position, bytes, offset, copied);
+    position += copied;
+    return copied;
+  }
+
+  @Override
+  public int available() {
+    return length - position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try (in; codec) {
+      ended = true;
+      for (CompletableFuture<byte[]> pending : readAhead) {
+        pending.exceptionally(e -> null).join(); // so no codec is still in use when closed
+      }
+      readAhead.clear();
+      idleCodecs.forEach(Compression.Codec::close);
+    }
+  }
+
+  /*
+   * Reads and decompresses the next block.
+   *
+   * @return false at the end of the stream
+   * @throws EOFException if the stream ends before its end block
+   */
+  private boolean nextBlock() throws IOException {
+    if (decoder != null) {
+      return nextDecodedBlock();
+    }
+    int rawLength = readBlockHeader();
+    if (rawLength == 0) {
+      return false;
+    }
+    if (storedLength < 0) {
+      in.readFully(block, 0, rawLength);
+    } else {
+      in.readFully(compressed, 0, storedLength);
+      codec.decompress(compressed, storedLength, block, rawLength);
+    }
+    length = rawLength;
+    position = 0;
+    return true;
+  }
+
+  /* Tops up the blocks being decompressed ahead, then waits for the first of them. */
+  private boolean nextDecodedBlock() throws IOException {
+    int rawLength;
+    while (readAhead.size() < READ_AHEAD_BLOCKS && (rawLength = readBlockHeader()) > 0) {
+      byte[] raw = new byte[rawLength];
+      if (storedLength < 0) {
+        in.readFully(raw);
+        readAhead.add(CompletableFuture.completedFuture(raw));
+      } else {
+        byte[] payload = new byte[storedLength];
+        in.readFully(payload);
+        readAhead.add(CompletableFuture.supplyAsync(() -> decompress(payload, raw), decoder));
+      }
+    }
+    CompletableFuture<byte[]> next = readAhead.poll();
+    if (next == null) {
+      return false;
+    }
+    try {
+      block = next.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException corrupt) {
+        throw corrupt.getCause();
+      }
+      throw e;
+    }
+    length = block.length;
+    position = 0;
+    return true;
+  }
+
+  /* Runs on the decoder, with a codec no other block is using. */
+  private byte[] decompress(byte[] payload, byte[] raw) {
+    Compression.Codec blockCodec = idleCodecs.poll();
+    if (blockCodec == null) {
+      blockCodec = compression.newCodec();
+    }
+    try {
+      blockCodec.decompress(payload, payload.length, raw, raw.length);
+      return raw;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      idleCodecs.add(blockCodec);
+    }
+  }
+
+  /*
+   * Reads the header of the next block, leaving its stored length in storedLength.
+   *
+   * @return the raw length of the block, or 0 at the end of the stream
+   */
+  private int readBlockHeader() throws IOException {
+    if (ended) {
+      return 0;
+    }
+    int rawLength = in.readInt();
+    storedLength = in.readInt();
+    if (rawLength == 0) {
+      ended = true;
+      return 0;
+    }
+    boolean stored = storedLength < 0;
+    if (rawLength < 0 || rawLength > BlockOutputStream.BLOCK_BYTES || (stored
+        ? storedLength != -rawLength
+        : storedLength > Compression.Codec.maxCompressedLength(BlockOutputStream.BLOCK_BYTES))) {
+      throw new IOException("Corrupt block header");
+    }
+    return rawLength;
+  }
+}
@@ -0,0 +1,160 @@
+package ksp.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compresses a stream in blocks of {@value #BLOCK_BYTES} bytes, so neither writing nor reading
+ * it back ever holds more than a block in memory. Read it back with a {@link BlockInputStream}.
+ *
+ * <p>The stream starts with the ID of its {@link Compression}, followed by one block after
+ * another of {@code [raw length][stored length][bytes]}. A negative stored length marks a block
+ * stored as it is, because compressing it did not make it smaller. A block with a raw length of
+ * 0 ends the stream, so a stream cut short can be told apart from a whole one.
+ *
+ * <p>Where each block starts is kept, see {@link #index}, so a reader can later start at any
+ * block with {@link BlockInputStream#fromBlock}.
+ */
+public class BlockOutputStream extends OutputStream {
+  public static final int BLOCK_BYTES = 64 * 1024;
+
+  private final OutputStream out;
+  private final Compression.Codec codec;
+  private final byte[] block = new byte[BLOCK_BYTES];
+  private final byte[] compressed = new byte[Compression.Codec.maxCompressedLength(BLOCK_BYTES)];
+  private final byte[] blockHeader = new byte[2 * Integer.BYTES];
+  private int length;
+  private boolean closed;
+  private long[] storedOffsets = new long[16];
+  private long[] rawOffsets = new long[16];
+  private int blocks;
+  private long storedBytes = 1; // the compression ID comes first
+  private long rawBytes;
+
+  /**
+   * Where the blocks of a stream start.
+   *
+   * @param storedOffsets Offset of each block from the start of the stream
+   * @param rawOffsets Offset of the first byte of each block in the uncompressed data, and the
+   *     uncompressed length of the whole stream last
+   */
+  public record BlockIndex(long[] storedOffsets, long[] rawOffsets) {
+    public int blocks() {
+      return storedOffsets.length;
+    }
+
+    /** The block holding the byte at a raw offset. */
+    public int blockAt(long rawOffset) {
+      int block = Arrays.binarySearch(rawOffsets, 0, storedOffsets.length, rawOffset);
+      return block >= 0 ? block : -block - 2;
+    }
+  }
+
+  /**
+   * @param out Stream to write the blocks to, closed when this stream is
+   * @param compression How to compress the blocks
+   */
+  public BlockOutputStream(OutputStream out, Compression compression) throws IOException {
+    this.out = out;
+    this.codec = compression.newCodec();
+    out.write(compression.id());
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (length == block.length) {
+      writeBlock();
+    }
+    block[length++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int count) throws IOException {
+    while (count > 0) {
+      if (length == block.length) {
+        writeBlock();
+      }
+      int copied = Math.min(count, block.length - length);
+      System.arraycopy(bytes, offset, block, length, copied);
+      length += copied;
+      offset += copied;
+      count -= copied;
+    }
+  }
+
+  /** Writes what is buffered as a block of its own, and flushes the underlying stream. */
+  @Override
+  public void flush() throws IOException {
+    writeBlock();
+    out.flush();
+  }
+
+  /** Writes the last block and the end of the stream, then closes the underlying stream. */
+  @Override
+  public void close() throws IOException {
+    try (out) {
+      finish();
+    }
+  }
+
+  /**
+   * Writes the last block and the end of the stream, leaving the underlying stream open for
+   * whatever follows the block stream.
+   */
+  public void finish() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try (codec) {
+      writeBlock();
+      writeBlockHeader(0, 0);
+    }
+  }
+
+  /** Where each block written starts. Complete once the stream is finished. */
+  public BlockIndex index() {
+    long[] raw = Arrays.copyOf(rawOffsets, blocks + 1);
+    raw[blocks] = rawBytes + length;
+    return new BlockIndex(Arrays.copyOf(storedOffsets, blocks), raw);
+  }
+
+  private void writeBlock() throws IOException {
+    if (length == 0) {
+      return;
+    }
+    if (blocks == storedOffsets.length) {
+      storedOffsets = Arrays.copyOf(storedOffsets, blocks << 1);
+      rawOffsets = Arrays.copyOf(rawOffsets, blocks << 1);
+    }
+    storedOffsets[blocks] = storedBytes;
+    rawOffsets[blocks++] = rawBytes;
+    int compressedLength = codec.compress(block, length, compressed);
+    if (compressedLength < 0 || compressedLength >= length) {
+      writeBlockHeader(length, -length);
+      out.write(block, 0, length);
+      storedBytes += length;
+    } else {
+      writeBlockHeader(length, compressedLength);
+      out.write(compressed, 0, compressedLength);
+      storedBytes += compressedLength;
+    }
+    rawBytes += length;
+    length = 0;
+  }
+
+  private void writeBlockHeader(int rawLength, int storedLength) throws IOException {
+    putInt(rawLength, 0);
+    putInt(storedLength, Integer.BYTES);
+    out.write(blockHeader);
+    storedBytes += blockHeader.length;
+  }
+
+  private void putInt(int value, int at) {
+    blockHeader[at] = (byte) (value >>> 24);
+    blockHeader[at + 1] = (byte) (value >>> 16);
+    blockHeader[at + 2] = (byte) (value >>> 8);
+    blockHeader[at + 3] = (byte) value;
+  }
+}
@@ -0,0 +1,254 @@
+package ksp.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import ksp.utilities.ArchiveNode;
+import ksp.utilities.Metadata;
+import ksp.utilities.Team;
+
+/**
+ * Compact binary format for the graph, archive and metadata buckets.
+ *
+ * <p>Each bucket starts with a 4 byte magic number and a format version. The graph bucket then
+ * holds its stamp, the last journal generation it covers, followed by a {@link
+ * BlockOutputStream} holding the number of entries and a flat table of {@link NodeRecord} rows,
+ * so it is compressed and read back as it streams. Version 2 graph buckets had no stamp and
+ * version 1 held the table uncompressed; both are still read, with a stamp of 0. Archive
+ * buckets held a table of {@link ArchiveNode}s, and are now only read to convert them to an
+ * {@link ArchiveStore}. The metadata bucket holds the state of the ID generator. Teams are stored
+ * as ordinals, dates as epoch milliseconds and strings as a length followed by UTF-8 bytes.
+ * Nothing is nested, so neither writing nor reading recurses however long a chain of branch
+ * requests gets.
+ */
+public final class BucketCodec {
+  public static final int GRAPH_MAGIC = 0x4B535047; // "KSPG"
+  public static final int ARCHIVE_MAGIC = 0x4B535041; // "KSPA"
+  public static final int METADATA_MAGIC = 0x4B53504D; // "KSPM"
+  public static final byte VERSION = 3;
+
+  private static final byte UNCOMPRESSED_VERSION = 1;
+  private static final byte UNSTAMPED_VERSION = 2;
+  private static final byte METADATA_VERSION = 1;
+  private static final int BUFFER_BYTES = 64 * 1024;
+
+  private BucketCodec() {}
+
+  /**
+   * Returns true if the file at path starts with the given magic number, i.e. it was written by
+   * this codec rather than by Java serialization.
+   */
+  public static boolean hasMagic(Path path, int magic) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // keep reading until the header is full or the file ends
+      }
+      return !header.hasRemaining() && header.getInt(0) == magic;
+    }
+  }
+
+  /**
+   * Writes the node table of a graph, with a stamp of 0.
+   *
+   * @see #writeGraph(Path, List, Compression, int)
+   */
+  public static void writeGraph(Path path, List<NodeRecord> nodes, Compression compression)
+      throws IOException {
+    writeGraph(path, nodes, compression, 0);
+  }
+
+  /**
+   * Writes the node table of a graph. Every row must come after the row of its source.
+   *
+   * @param path File to overwrite
+   * @param nodes The rows of the graph, sources first
+   * @param compression How to compress the rows
+   * @param stamp The last journal generation the rows cover
+   */
+  public static void writeGraph(Path path, List<NodeRecord> nodes, Compression compression,
+      int stamp) throws IOException {
+    try (OutputStream file = Files.newOutputStream(path)) {
+      DataOutputStream header = new DataOutputStream(file);
+      header.writeInt(GRAPH_MAGIC);
+      header.writeByte(VERSION);
+      header.writeInt(stamp);
+      DataOutputStream out = new DataOutputStream(new BlockOutputStream(file, compression));
+      out.writeInt(nodes.size());
+      for (NodeRecord node : nodes) {
+        out.writeInt(node.id());
+        out.writeByte(node.requester().ordinal());
+        out.writeByte(node.requestee().ordinal());
+        out.writeLong(node.creationDate().getTime());
+        out.writeInt(node.sourceId());
+        writeString(out, node.details());
+      }
+      out.close(); // ends the block stream
+    }
+  }
+
+  /**
+   * Reads the node table of a graph, one block at a time. The blocks ahead of the rows being
+   * decoded are decompressed on the common fork-join pool.
+   */
+  public static List<NodeRecord> readGraph(Path path) throws IOException {
+    try (InputStream file = new BufferedInputStream(Files.newInputStream(path), BUFFER_BYTES);
+        DataInputStream in = new DataInputStream(openGraphRows(path, file))) {
+      int count = in.readInt();
+      List<NodeRecord> nodes = new ArrayList<>(Math.min(count, BUFFER_BYTES));
+      for (int i = 0; i < count; i++) {
+        int id = in.readInt();
+        Team requester = Team.values()[in.readByte()];
+        Team requestee = Team.values()[in.readByte()];
+        Date creationDate = new Date(in.readLong());
+        int sourceId = in.readInt();
+        nodes.add(new NodeRecord(id, requester, requestee, readString(in), creationDate, sourceId));
+      }
+      if (in.read() >= 0) { // also reads the end of a block stream, so a torn one is caught
+        throw new IOException(path + " has data past its last row");
+      }
+      return nodes;
+    }
+  }
+
+  /** Reads the stamp of a graph bucket, the last journal generation its rows cover. */
+  public static int readGraphStamp(Path path) throws IOException {
+    try (DataInputStream header = new DataInputStream(Files.newInputStream(path))) {
+      return readGraphHeader(path, header) == VERSION ? header.readInt() : 0;
+    }
+  }
+
+  /* Checks the header of a graph bucket, returning the stream of its rows. */
+  private static InputStream openGraphRows(Path path, InputStream file) throws IOException {
+    byte version = readGraphHeader(path, new DataInputStream(file));
+    if (version == UNCOMPRESSED_VERSION) {
+      return file;
+    } else if (version == VERSION) {
+      file.skipNBytes(Integer.BYTES); // the stamp
+    }
+    return new BlockInputStream(file, ForkJoinPool.commonPool());
+  }
+
+  /* Reads the magic number and version of a graph bucket, returning the version. */
+  private static byte readGraphHeader(Path path, DataInputStream header) throws IOException {
+    if (header.readInt() != GRAPH_MAGIC) {
+      throw new IOException(path + " is not a save data bucket of the expected type");
+    }
+    byte version = header.readByte();
+    if (version != UNCOMPRESSED_VERSION && version != UNSTAMPED_VERSION && version != VERSION) {
+      throw new IOException(path + " has unsupported format version " + version);
+    }
+    return version;
+  }
+
+  /**
+   * Reads an archive bucket written before archives were kept in an {@link ArchiveStore}, handing
+   * each entry to sink as soon as it is decoded. Its entries share the store's record encoding.
+   * Only a window of the file is held in memory, so buckets of any size can be migrated.
+   */
+  public static void readArchive(Path path, RecordSink<ArchiveNode> sink) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer window = ByteBuffer.allocate(BUFFER_BYTES).flip();
+      window = fill(channel, window, Integer.BYTES * 2 + 1, path);
+      if (window.getInt() != ARCHIVE_MAGIC) {
+        throw new IOException(path + " is not a save data bucket of the expected type");
+      }
+      byte version = window.get();
+      if (version != UNCOMPRESSED_VERSION) {
+        throw new IOException(path + " has unsupported format version " + version);
+      }
+      int count = window.getInt();
+      for (int i = 0; i < count; i++) {
+        ArchiveNode archived = null;
+        while (archived == null) {
+          int start = window.position();
+          try {
+            archived = ArchiveStore.decode(window);
+          } catch (BufferUnderflowException e) { // the entry runs past the window, so slide it
+            window.position(start);
+            window = fill(channel, window, window.remaining() + 1, path);
+          }
+        }
+        sink.accept(archived);
+      }
+    }
+  }
+
+  /**
+   * Writes the metadata bucket.
+   *
+   * @param path File to overwrite
+   * @param metadata The metadata to save
+   */
+  public static void writeMetadata(Path path, Metadata metadata) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+      out.write(ByteBuffer.allocate(Integer.BYTES * 2 + 1)
+          .putInt(METADATA_MAGIC)
+          .put(METADATA_VERSION)
+          .putInt(metadata.idGenState())
+          .array()); // one write, so the bucket is never left half written
+    }
+  }
+
+  public static Metadata readMetadata(Path path) throws IOException {
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+      if (in.readInt() != METADATA_MAGIC) {
+        throw new IOException(path + " is not a save data bucket of the expected type");
+      }
+      byte version = in.readByte();
+      if (version != METADATA_VERSION) {
+        throw new IOException(path + " has unsupported format version " + version);
+      }
+      return new Metadata(in.readInt());
+    }
+  }
+
+  /*
+   * Moves the unread bytes of the window to its start and reads on, growing the window when
+   * more than it holds is needed.
+   *
+   * @param needed Number of unread bytes the window must hold
+   * @throws EOFException if the file ends first
+   */
+  private static ByteBuffer fill(FileChannel channel, ByteBuffer window, int needed, Path path)
+      throws IOException {
+    if (needed > window.capacity()) {
+      window = ByteBuffer.allocate(Math.max(needed, window.capacity() << 1)).put(window);
+    } else {
+      window.compact();
+    }
+    while (window.position() < needed) {
+      if (channel.read(window) < 0) {
+        throw new EOFException(path + " ends part way through an entry");
+      }
+    }
+    return window.flip();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
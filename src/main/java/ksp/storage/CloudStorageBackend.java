@@ -0,0 +1,279 @@
+package ksp.storage;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.Storage.BlobListOption;
+import com.google.cloud.storage.Storage.BlobSourceOption;
+import com.google.cloud.storage.Storage.BlobWriteOption;
+import com.google.cloud.storage.StorageException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps the save data as objects in a Google Cloud Storage bucket, with a read-through cache of
+ * working copies in a local directory.
+ *
+ * <p>The cache remembers the generation of every object it holds, and the size and modification
+ * time of its working copy, in a state file that outlives the process. An object is only
+ * downloaded when the bucket holds a different generation, and only uploaded when its working
+ * copy changed. Uploads are conditional on the generation last seen, so a writer that missed
+ * another's changes gets a {@link StaleObjectException} instead of overwriting them. The objects
+ * of one publish are uploaded in parallel.
+ */
+public class CloudStorageBackend implements StorageBackend {
+  private static final String STATE_FILE = ".cache-state";
+  private static final int UPLOAD_THREADS = 4;
+
+  private final Storage storage;
+  private final String bucket;
+  private final Path cacheDirectory;
+  private final Map<String, CachedObject> cached = new ConcurrentHashMap<>();
+  private final ExecutorService uploader;
+
+  /* A generation of an object, and the working copy it was fetched to or published from. */
+  private record CachedObject(long generation, long size, long modifiedMillis) {
+
+    static CachedObject of(long generation, BasicFileAttributes copy) {
+      return new CachedObject(generation, copy.size(), copy.lastModifiedTime().toMillis());
+    }
+
+    static CachedObject parse(String value) {
+      String[] fields = value.split(",");
+      return new CachedObject(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+          Long.parseLong(fields[2]));
+    }
+
+    boolean matches(BasicFileAttributes copy) {
+      return size == copy.size() && modifiedMillis == copy.lastModifiedTime().toMillis();
+    }
+
+    @Override
+    public String toString() {
+      return generation + "," + size + "," + modifiedMillis;
+    }
+  }
+
+  /**
+   * @param storage Client of the storage service
+   * @param bucket Name of the bucket holding the objects
+   * @param cacheDirectory Directory to keep the working copies in, created if missing
+   */
+  public CloudStorageBackend(Storage storage, String bucket, Path cacheDirectory)
+      throws IOException {
+    this.storage = storage;
+    this.bucket = bucket;
+    this.cacheDirectory = cacheDirectory;
+    Files.createDirectories(cacheDirectory);
+    Path stateFile = cacheDirectory.resolve(STATE_FILE);
+    if (Files.exists(stateFile)) {
+      Properties state = new Properties();
+      try (InputStream in = Files.newInputStream(stateFile)) {
+        state.load(in);
+      }
+      state.forEach((name, value) -> cached.put((String) name, CachedObject.parse((String) value)));
+    }
+    this.uploader = Executors.newFixedThreadPool(UPLOAD_THREADS, task -> {
+      Thread thread = new Thread(task, "storage-uploader");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  public Path localDirectory() {
+    return cacheDirectory;
+  }
+
+  /*
+   * An object missing from the bucket is dropped from the cache if the cache had fetched it, as
+   * another writer deleted it. Otherwise its working copy is kept, as it is yet to be published.
+   * A working copy that changed since it was fetched or published is never overwritten or
+   * dropped, as its changes would be lost.
+   */
+  @Override
+  public Path fetch(String name) throws IOException {
+    Path copy = cacheDirectory.resolve(name);
+    CachedObject cachedObject = cached.get(name);
+    try {
+      Blob blob = storage.get(BlobId.of(bucket, name));
+      if (blob == null) {
+        if (cachedObject != null) {
+          if (Files.exists(copy) && !cachedObject.matches(attributes(copy))) {
+            throw new StaleObjectException(name);
+          }
+          cached.remove(name);
+          Files.deleteIfExists(copy);
+          saveState();
+        }
+        return Files.exists(copy) ? copy : null;
+      }
+      boolean exists = Files.exists(copy);
+      if (cachedObject != null && cachedObject.generation() != blob.getGeneration() && exists
+          && !cachedObject.matches(attributes(copy))) {
+        throw new StaleObjectException(name);
+      }
+      if (cachedObject == null || cachedObject.generation() != blob.getGeneration() || !exists) {
+        Files.createDirectories(copy.getParent());
+        Path download = copy.resolveSibling(copy.getFileName() + ".download");
+        blob.downloadTo(download);
+        Files.move(download, copy, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        cached.put(name, CachedObject.of(blob.getGeneration(), attributes(copy)));
+        saveState();
+      }
+      return copy;
+    } catch (StorageException e) {
+      throw new IOException("Could not fetch " + name, e);
+    }
+  }
+
+  @Override
+  public List<String> list(String prefix) throws IOException {
+    try {
+      List<String> names = new ArrayList<>();
+      for (Blob blob : storage.list(bucket, BlobListOption.prefix(prefix)).iterateAll()) {
+        names.add(blob.getName());
+      }
+      return names;
+    } catch (StorageException e) {
+      throw new IOException("Could not list " + prefix, e);
+    }
+  }
+
+  /* Objects whose working copy is missing are skipped; deleting an object is explicit. */
+  @Override
+  public void publish(Collection<String> names) throws IOException {
+    List<Future<?>> uploads = new ArrayList<>(names.size());
+    for (String name : names) {
+      uploads.add(uploader.submit(() -> {
+        upload(name);
+        return null;
+      }));
+    }
+
+    IOException failure = null;
+    for (Future<?> upload : uploads) {
+      try {
+        upload.get();
+      } catch (ExecutionException e) {
+        IOException cause = e.getCause() instanceof IOException io ? io : new IOException(e);
+        if (failure == null || cause instanceof StaleObjectException) {
+          failure = cause;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while uploading save data");
+      }
+    }
+    saveState();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /*
+   * Only the generation this cache fetched or published is deleted, so an object another writer
+   * stored since, or one it never saw, is kept. One already deleted elsewhere is not an error.
+   */
+  @Override
+  public void delete(String name) throws IOException {
+    CachedObject cachedObject = cached.get(name);
+    long expected = cachedObject == null ? 0 : cachedObject.generation();
+    long current = currentGeneration(name);
+    if (current != 0 && current != expected) {
+      throw new StaleObjectException(name);
+    }
+    if (current != 0) {
+      try {
+        storage.delete(BlobId.of(bucket, name, expected), BlobSourceOption.generationMatch());
+      } catch (StorageException e) {
+        current = currentGeneration(name);
+        if (current != 0 && current != expected) {
+          throw new StaleObjectException(name);
+        }
+        if (current != 0) {
+          throw new IOException("Could not delete " + name, e);
+        }
+      }
+    }
+    cached.remove(name);
+    Files.deleteIfExists(cacheDirectory.resolve(name));
+    saveState();
+  }
+
+  @Override
+  public void close() throws IOException {
+    uploader.shutdown();
+    saveState();
+  }
+
+  /* Runs on an uploader thread. */
+  private void upload(String name) throws IOException {
+    Path copy = cacheDirectory.resolve(name);
+    if (!Files.exists(copy)) {
+      return;
+    }
+    BasicFileAttributes uploaded = attributes(copy); // before uploading, as it may still change
+    CachedObject cachedObject = cached.get(name);
+    if (cachedObject != null && cachedObject.matches(uploaded)) {
+      return;
+    }
+
+    long expected = cachedObject == null ? 0 : cachedObject.generation();
+    BlobInfo info = BlobInfo.newBuilder(BlobId.of(bucket, name, expected)).build();
+    try {
+      Blob blob = storage.createFrom(info, copy,
+          expected == 0 ? BlobWriteOption.doesNotExist() : BlobWriteOption.generationMatch());
+      cached.put(name, CachedObject.of(blob.getGeneration(), uploaded));
+    } catch (StorageException e) {
+      if (currentGeneration(name) != expected) {
+        throw new StaleObjectException(name);
+      }
+      throw new IOException("Could not upload " + name, e);
+    }
+  }
+
+  /* The generation of an object the bucket holds, or 0 if there is none. */
+  private long currentGeneration(String name) throws IOException {
+    try {
+      Blob current = storage.get(BlobId.of(bucket, name));
+      return current == null ? 0 : current.getGeneration();
+    } catch (StorageException e) {
+      throw new IOException("Could not look up " + name, e);
+    }
+  }
+
+  private synchronized void saveState() throws IOException {
+    Properties state = new Properties();
+    cached.forEach((name, cachedObject) -> state.setProperty(name, cachedObject.toString()));
+    Path stateFile = cacheDirectory.resolve(STATE_FILE);
+    Path written = stateFile.resolveSibling(STATE_FILE + ".tmp");
+    try (OutputStream out = Files.newOutputStream(written)) {
+      state.store(out, null);
+    }
+    Files.move(written, stateFile, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static BasicFileAttributes attributes(Path file) throws IOException {
+    return Files.readAttributes(file, BasicFileAttributes.class);
+  }
+}
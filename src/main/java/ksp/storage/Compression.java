@@ -0,0 +1,131 @@
+package ksp.storage;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block compression methods for the save data files. Each is identified on disk by its ID, so a
+ * file can always be read back whatever method is configured when it is read.
+ */
+public enum Compression {
+  /** Blocks are stored as they are. */
+  NONE(0) {
+    @Override
+    Codec newCodec() {
+      return new Codec() {
+        @Override
+        public int compress(byte[] src, int length, byte[] dst) {
+          return -1; // never smaller, so every block is stored
+        }
+
+        @Override
+        public void decompress(byte[] src, int length, byte[] dst, int rawLength)
+            throws IOException {
+          throw new IOException("Uncompressed blocks are stored, not compressed");
+        }
+      };
+    }
+  },
+
+  /** zlib's DEFLATE at its default level: the smallest files, at the most CPU. */
+  DEFLATE(1) {
+    @Override
+    Codec newCodec() {
+      Deflater deflater = new Deflater();
+      Inflater inflater = new Inflater();
+      return new Codec() {
+        @Override
+        public int compress(byte[] src, int length, byte[] dst) {
+          deflater.reset();
+          deflater.setInput(src, 0, length);
+          deflater.finish();
+          int written = deflater.deflate(dst);
+          return deflater.finished() ? written : -1;
+        }
+
+        @Override
+        public void decompress(byte[] src, int length, byte[] dst, int rawLength)
+            throws IOException {
+          inflater.reset();
+          inflater.setInput(src, 0, length);
+          try {
+            if (inflater.inflate(dst, 0, rawLength) != rawLength || !inflater.finished()) {
+              throw new IOException("Corrupt compressed block");
+            }
+          } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block", e);
+          }
+        }
+
+        @Override
+        public void close() {
+          deflater.end();
+          inflater.end();
+        }
+      };
+    }
+  },
+
+  /** A fast LZ77 codec in the style of LZ4, see {@link LzCodec}. */
+  LZ(2) {
+    @Override
+    Codec newCodec() {
+      LzCodec lz = new LzCodec();
+      return new Codec() {
+        @Override
+        public int compress(byte[] src, int length, byte[] dst) {
+          return lz.compress(src, length, dst);
+        }
+
+        @Override
+        public void decompress(byte[] src, int length, byte[] dst, int rawLength)
+            throws IOException {
+          LzCodec.decompress(src, length, dst, rawLength);
+        }
+      };
+    }
+  };
+
+  private final int id;
+
+  Compression(int id) {
+    this.id = id;
+  }
+
+  int id() {
+    return id;
+  }
+
+  static Compression withId(int id) throws IOException {
+    for (Compression compression : values()) {
+      if (compression.id == id) {
+        return compression;
+      }
+    }
+    throw new IOException("Unknown compression method " + id);
+  }
+
+  /* Codecs may hold native state, so each stream makes its own and closes it when done. */
+  abstract Codec newCodec();
+
+  /** Compresses and decompresses single blocks. */
+  interface Codec extends AutoCloseable {
+    /**
+     * Compresses src[0, length) into dst, which holds at least maxCompressedLength(length) bytes.
+     *
+     * @return the compressed length, or -1 if the block should be stored uncompressed
+     */
+    int compress(byte[] src, int length, byte[] dst);
+
+    void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException;
+
+    @Override
+    default void close() {}
+
+    static int maxCompressedLength(int length) {
+      return LzCodec.maxCompressedLength(length) + 64; // also covers DEFLATE's worst case
+    }
+  }
+}
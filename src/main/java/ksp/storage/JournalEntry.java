@@ -0,0 +1,28 @@
+package ksp.storage;
+
+import java.util.Date;
+import ksp.utilities.Team;
+
+/** A single change to the request graph, as recorded in the {@link MutationJournal}. */
+public sealed interface JournalEntry {
+
+  /** ID of the request the change applies to. */
+  int id();
+
+  /** A new request was made. */
+  record Created(
+      int id, Team requester, Team requestee, String details, Date creationDate, int sourceId)
+      implements JournalEntry {}
+
+  /**
+   * A request was moved to solve a different source, or made a root if sourceId is {@link
+   * NodeRecord#NO_SOURCE}.
+   */
+  record Resourced(int id, int sourceId) implements JournalEntry {}
+
+  /** The details of a request were edited. */
+  record Edited(int id, String details) implements JournalEntry {}
+
+  /** A request was solved, removing it and its branches from the graph. */
+  record Resolved(int id, String solution, Date solutionDate) implements JournalEntry {}
+}
@@ -0,0 +1,55 @@
+package ksp.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+/** Keeps the save data as plain files in a directory, which is its own working copy. */
+public class LocalFileBackend implements StorageBackend {
+  private final Path directory;
+
+  public LocalFileBackend(Path directory) {
+    this.directory = directory;
+  }
+
+  @Override
+  public Path localDirectory() {
+    return directory;
+  }
+
+  @Override
+  public Path fetch(String name) {
+    Path file = directory.resolve(name);
+    return Files.exists(file) ? file : null;
+  }
+
+  @Override
+  public List<String> list(String prefix) throws IOException {
+    if (!Files.isDirectory(directory)) {
+      return List.of();
+    }
+    try (Stream<Path> files = Files.walk(directory)) {
+      return files.filter(Files::isRegularFile)
+          .map(file -> directory.relativize(file).toString().replace(file.getFileSystem()
+              .getSeparator(), "/"))
+          .filter(name -> name.startsWith(prefix))
+          .sorted()
+          .toList();
+    }
+  }
+
+  /* The working copies are the objects, so they are already published. */
+  @Override
+  public void publish(Collection<String> names) {}
+
+  @Override
+  public void delete(String name) throws IOException {
+    Files.deleteIfExists(directory.resolve(name));
+  }
+
+  @Override
+  public void close() {}
+}
@@ -0,0 +1,160 @@
+package ksp.storage;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A small LZ77 block codec in the style of LZ4, written in plain Java. It trades compression
+ * ratio for speed: matches are found through a single hash table probe, and encoded as
+ * {@code [token][literals][offset][match length]} sequences.
+ *
+ * <p>The token's high nibble is the literal count and its low nibble the match length minus 4,
+ * each extended with 255-valued bytes when it reaches 15. The last sequence of a block holds only
+ * literals, and the last 5 bytes of a block are always literals.
+ */
+final class LzCodec {
+  private static final int MIN_MATCH = 4;
+  private static final int LAST_LITERALS = 5;
+  private static final int MATCH_FIND_LIMIT = 12; // no match may start in the last 12 bytes
+  private static final int MAX_OFFSET = 0xFFFF;
+  private static final int HASH_LOG = 14;
+  private static final int SKIP_TRIGGER = 6;
+
+  private final int[] table = new int[1 << HASH_LOG]; // position + 1 of the last 4 byte hash hit
+
+  static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  /**
+   * Compresses src[0, length) into dst, which must hold at least maxCompressedLength(length)
+   * bytes.
+   *
+   * @return the number of bytes written to dst
+   */
+  int compress(byte[] src, int length, byte[] dst) {
+    Arrays.fill(table, 0);
+    int anchor = 0;
+    int in = 0;
+    int out = 0;
+    int matchLimit = length - LAST_LITERALS;
+    int findLimit = length - MATCH_FIND_LIMIT;
+    int misses = 0;
+    while (in < findLimit) {
+      int sequence = readInt(src, in);
+      int slot = (sequence * 0x9E3779B1) >>> (32 - HASH_LOG);
+      int candidate = table[slot] - 1;
+      table[slot] = in + 1;
+      if (candidate < 0 || in - candidate > MAX_OFFSET || readInt(src, candidate) != sequence) {
+        in += 1 + (misses++ >>> SKIP_TRIGGER); // step faster through data that does not compress
+        continue;
+      }
+      misses = 0;
+
+      while (in > anchor && candidate > 0 && src[in - 1] == src[candidate - 1]) {
+        in--; // extend the match back over literals that also match
+        candidate--;
+      }
+      int matchLength = MIN_MATCH;
+      while (in + matchLength < matchLimit
+          && src[in + matchLength] == src[candidate + matchLength]) {
+        matchLength++;
+      }
+
+      out = writeSequence(src, anchor, in - anchor, dst, out, matchLength - MIN_MATCH);
+      dst[out++] = (byte) (in - candidate);
+      dst[out++] = (byte) ((in - candidate) >>> 8);
+      out = writeLength(dst, out, matchLength - MIN_MATCH);
+      in += matchLength;
+      anchor = in;
+    }
+    return writeSequence(src, anchor, length - anchor, dst, out, 0);
+  }
+
+  /**
+   * Decompresses src[0, length) into dst[0, rawLength).
+   *
+   * @throws IOException if the block is corrupt
+   */
+  static void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+    int in = 0;
+    int out = 0;
+    try {
+      while (true) {
+        int token = src[in++] & 0xFF;
+        int literals = token >>> 4;
+        if (literals == 15) {
+          int extra;
+          do {
+            extra = src[in++] & 0xFF;
+            literals += extra;
+          } while (extra == 255);
+        }
+        System.arraycopy(src, in, dst, out, literals);
+        in += literals;
+        out += literals;
+        if (out >= rawLength) {
+          break;
+        }
+
+        int offset = (src[in++] & 0xFF) | (src[in++] & 0xFF) << 8;
+        int matchLength = token & 0x0F;
+        if (matchLength == 15) {
+          int extra;
+          do {
+            extra = src[in++] & 0xFF;
+            matchLength += extra;
+          } while (extra == 255);
+        }
+        matchLength += MIN_MATCH;
+        int from = out - offset;
+        if (offset == 0 || from < 0 || out + matchLength > rawLength) {
+          throw new IOException("Corrupt compressed block");
+        }
+        if (offset >= matchLength) {
+          System.arraycopy(dst, from, dst, out, matchLength);
+          out += matchLength;
+        } else {
+          for (int i = 0; i < matchLength; i++) { // byte by byte, as the match overlaps itself
+            dst[out++] = dst[from + i];
+          }
+        }
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt compressed block", e);
+    }
+    if (in != length || out != rawLength) {
+      throw new IOException("Corrupt compressed block");
+    }
+  }
+
+  private static int writeSequence(
+      byte[] src, int start, int literals, byte[] dst, int out, int matchLengthCode) {
+    int tokenAt = out++;
+    dst[tokenAt] = (byte) ((Math.min(literals, 15) << 4) | Math.min(matchLengthCode, 15));
+    if (literals >= 15) {
+      out = writeExtension(dst, out, literals - 15);
+    }
+    System.arraycopy(src, start, dst, out, literals);
+    return out + literals;
+  }
+
+  /* Writes what is left of a match length once its nibble is full. */
+  private static int writeLength(byte[] dst, int out, int matchLengthCode) {
+    return matchLengthCode >= 15 ? writeExtension(dst, out, matchLengthCode - 15) : out;
+  }
+
+  private static int writeExtension(byte[] dst, int out, int remaining) {
+    while (remaining >= 255) {
+      dst[out++] = (byte) 255;
+      remaining -= 255;
+    }
+    dst[out++] = (byte) remaining;
+    return out;
+  }
+
+  private static int readInt(byte[] src, int at) {
+    return (src[at] & 0xFF) | (src[at + 1] & 0xFF) << 8 | (src[at + 2] & 0xFF) << 16
+        | (src[at + 3] & 0xFF) << 24;
+  }
+}
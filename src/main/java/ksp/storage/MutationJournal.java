@@ -0,0 +1,418 @@
+package ksp.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+import ksp.storage.JournalEntry.Created;
+import ksp.storage.JournalEntry.Edited;
+import ksp.storage.JournalEntry.Resolved;
+import ksp.storage.JournalEntry.Resourced;
+import ksp.utilities.Team;
+
+/**
+ * Append-only log of the changes made to the request graph since its last snapshot. Each change
+ * costs one small append instead of a rewrite of the whole graph, and the graph is rebuilt on
+ * startup by replaying the journal over the snapshot.
+ *
+ * <p>A journal file starts with a 4 byte magic number, a format version and its generation, and
+ * every entry is then framed as {@code [length][payload][crc32]}. A crash mid-append leaves a torn
+ * final entry, which is detected and cut off when the journal is next read. Journals written
+ * before the header was added hold only entries, and journals written before generations were
+ * added have a shorter header; both are read as they are, then rotated.
+ *
+ * <p>When a snapshot is taken the journal is rotated: the entries so far are moved to a segment
+ * beside the journal file, numbered with their generation, and new entries start a fresh file of
+ * the next generation. A snapshot covers every generation up to the one it rotated out, so the
+ * segment can be deleted once the snapshot is written, and the snapshot can be written in the
+ * background without losing the entries appended meanwhile.
+ *
+ * <p>Processes sharing a save directory share its journal, which orders the changes they all
+ * commit. Each reads the entries the others appended, see {@link #readNewEntries}, before
+ * appending its own. Reading, appending and rotating must be done holding the directory's
+ * {@link SaveDirectoryLock}.
+ */
+public class MutationJournal implements AutoCloseable {
+  public static final int MAGIC = 0x4B53504A; // "KSPJ"
+  public static final byte VERSION = 2;
+
+  private static final byte UNNUMBERED_VERSION = 1; // header without a generation
+  private static final int HEADER_BYTES = Integer.BYTES + 1 + Integer.BYTES;
+  private static final byte CREATED = 1;
+  private static final byte RESOURCED = 2;
+  private static final byte EDITED = 3;
+  private static final byte RESOLVED = 4;
+  private static final int MAX_ENTRY_BYTES = 16 * 1024 * 1024; // larger lengths are corruption
+
+  private final File file;
+  private final List<JournalEntry> recovered;
+  private DataOutputStream out;
+  private int outGeneration; // of the file out appends to
+  private int size;
+  private volatile int generation; // of the file read up to position
+  private volatile long position; // end of the entries read or appended so far
+
+  private MutationJournal(File file, List<JournalEntry> recovered, int generation) {
+    this.file = file;
+    this.recovered = recovered;
+    this.size = recovered.size();
+    this.generation = generation;
+    this.outGeneration = generation;
+    this.position = HEADER_BYTES;
+  }
+
+  /** Returns a journal that records nothing, for graphs that are not saved. */
+  public static MutationJournal disabled() {
+    return new MutationJournal(null, List.of(), 1);
+  }
+
+  /**
+   * Opens the journal at path, reading back the entries it holds that a snapshot does not cover,
+   * oldest segment first, and discarding any torn entry at its end. The file is created if
+   * missing.
+   *
+   * @param path Location of the journal file
+   * @param coveredGeneration The last generation the snapshot covers, 0 if none
+   * @throws IOException if the journal cannot be read or opened for appending
+   */
+  public static MutationJournal open(String path, int coveredGeneration) throws IOException {
+    File file = new File(path);
+    List<JournalEntry> entries = new ArrayList<>();
+    int lastSegment = coveredGeneration;
+    for (int segment : segments(file)) { // left behind if a snapshot was never written
+      if (segment > coveredGeneration) {
+        readEntries(segmentFile(file, segment), readHeader(segmentFile(file, segment)).length(),
+            entries);
+      }
+      lastSegment = Math.max(lastSegment, segment);
+    }
+
+    Header header = file.exists() ? readHeader(file) : new Header(0, 0);
+    if (header.generation() > 0) {
+      MutationJournal journal = new MutationJournal(file, entries, header.generation());
+      journal.position = truncateTornTail(file, readEntries(file, header.length(), entries));
+      journal.size = entries.size();
+      journal.out = new DataOutputStream(new FileOutputStream(file, true));
+      return journal;
+    }
+
+    int generation = lastSegment + 1;
+    if (file.exists()) { // written before generations, so it becomes the segment of the next one
+      readEntries(file, header.length(), entries);
+      Files.move(file.toPath(), segmentFile(file, generation++).toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    MutationJournal journal = new MutationJournal(file, entries, generation);
+    journal.out = new DataOutputStream(new FileOutputStream(file, true));
+    journal.writeHeader();
+    return journal;
+  }
+
+  /** Entries found when the journal was opened, oldest first. */
+  public List<JournalEntry> recoveredEntries() {
+    return recovered;
+  }
+
+  public boolean isEnabled() {
+    return file != null;
+  }
+
+  /** Number of entries in the journal since it was last reset. */
+  public int size() {
+    return size;
+  }
+
+  public void append(JournalEntry entry) throws IOException {
+    if (!isEnabled()) {
+      return;
+    }
+    byte[] payload = encode(entry);
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+
+    ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 12);
+    DataOutputStream frameOut = new DataOutputStream(frame);
+    frameOut.writeInt(payload.length);
+    frameOut.write(payload);
+    frameOut.writeLong(crc.getValue());
+    out.write(frame.toByteArray()); // one write, so a crash can only tear the final entry
+    out.flush();
+    position += frame.size();
+    size++;
+  }
+
+  /**
+   * Reads the entries other processes appended since this journal last read or appended,
+   * following the journal through the segments it was rotated into meanwhile. New entries are
+   * appended after them.
+   *
+   * @return the new entries, oldest first, or null if a segment holding some of them was already
+   *     deleted, in which case the latest snapshot must be loaded instead, see {@link #resetTo}
+   * @throws IOException if the journal cannot be read
+   */
+  public List<JournalEntry> readNewEntries() throws IOException {
+    List<JournalEntry> entries = new ArrayList<>();
+    if (!isEnabled() || !file.exists()) {
+      return entries;
+    }
+    int current = readHeader(file).generation();
+    if (current < generation) {
+      return null;
+    }
+    for (; generation < current; generation++, position = HEADER_BYTES) {
+      File segment = segmentFile(file, generation);
+      if (!segment.exists()) {
+        return null;
+      }
+      readEntries(segment, position, entries);
+    }
+    if (outGeneration != current) { // rotated by another process
+      out.close();
+      out = new DataOutputStream(new FileOutputStream(file, true));
+      outGeneration = current;
+      size = 0;
+    }
+    int fromSegments = entries.size();
+    position = truncateTornTail(file, readEntries(file, position, entries));
+    size += entries.size() - fromSegments;
+    return entries;
+  }
+
+  /**
+   * Tells, without locking, whether another process appended to or rotated the journal since it
+   * was last read or appended to. Only a hint: an append under way may be missed, and is then
+   * found by the next {@link #readNewEntries}.
+   */
+  public boolean hasNewEntries() {
+    if (!isEnabled()) {
+      return false;
+    }
+    try {
+      return file.length() != position || readHeader(file).generation() != generation;
+    } catch (IOException e) { // e.g. being rotated, so it has changed
+      return true;
+    }
+  }
+
+  /**
+   * Makes the next {@link #readNewEntries} read every entry after a snapshot, e.g. one loaded
+   * because this journal fell too far behind to read only the new entries.
+   *
+   * @param coveredGeneration The last generation the snapshot covers
+   */
+  public void resetTo(int coveredGeneration) {
+    generation = coveredGeneration + 1;
+    position = HEADER_BYTES;
+  }
+
+  /**
+   * Moves the entries appended so far to a new segment and starts an empty journal. Called when a
+   * snapshot containing every entry so far is taken.
+   *
+   * Every entry must have been read first, see {@link #readNewEntries}.
+   *
+   * @return the generation of the segment, which the snapshot covers, to be passed to
+   *     discardThrough once the snapshot is saved
+   */
+  public int rotate() throws IOException {
+    if (!isEnabled()) {
+      return 0;
+    }
+    out.close();
+    Files.move(file.toPath(), segmentFile(file, generation).toPath(),
+        StandardCopyOption.ATOMIC_MOVE);
+    out = new DataOutputStream(new FileOutputStream(file, true));
+    outGeneration = ++generation;
+    writeHeader();
+    position = HEADER_BYTES;
+    size = 0;
+    return generation - 1;
+  }
+
+  /**
+   * Deletes the segments up to and including segment, whose entries are now in a saved snapshot.
+   * Safe to call from another thread than the one appending.
+   */
+  public void discardThrough(int segment) throws IOException {
+    if (!isEnabled()) {
+      return;
+    }
+    for (int saved : segments(file)) {
+      if (saved <= segment) {
+        Files.delete(segmentFile(file, saved).toPath());
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (out != null) {
+      out.close();
+    }
+  }
+
+  private void writeHeader() throws IOException {
+    out.write(ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).put(VERSION).putInt(generation)
+        .array()); // one write, so a crash cannot leave half a header
+    out.flush();
+  }
+
+  /*
+   * Reads the whole entries of a journal file from an offset, returning where they end. The
+   * offset must be the end of the header or of an entry.
+   */
+  private static long readEntries(File journalFile, long from, List<JournalEntry> entries)
+      throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+      in.skipNBytes(Math.min(from, journalFile.length()));
+      long validLength = from;
+      while (true) {
+        byte[] payload = readFrame(in);
+        if (payload == null) {
+          return validLength;
+        }
+        entries.add(decode(payload));
+        validLength += Integer.BYTES + payload.length + Long.BYTES;
+      }
+    }
+  }
+
+  /* Drops a torn tail, so new entries follow whole ones, returning the new length. */
+  private static long truncateTornTail(File journalFile, long validLength) throws IOException {
+    if (validLength < journalFile.length()) {
+      try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+        raf.setLength(validLength);
+      }
+    }
+    return validLength;
+  }
+
+  /* The generation of a journal file, 0 if it has none, and the length of its header. */
+  private record Header(int generation, int length) {}
+
+  /*
+   * Reads the header of a journal file. A journal written before there was a header has a
+   * header of length 0, and a header cut short counts as an empty journal.
+   */
+  private static Header readHeader(File journalFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(journalFile))) {
+      if (in.readInt() != MAGIC) { // a length, which never gets as large as the magic number
+        return new Header(0, 0);
+      }
+      byte version = in.readByte();
+      if (version == UNNUMBERED_VERSION) {
+        return new Header(0, Integer.BYTES + 1);
+      } else if (version != VERSION) {
+        throw new IOException(journalFile + " has unsupported format version " + version);
+      }
+      return new Header(in.readInt(), HEADER_BYTES);
+    } catch (EOFException e) {
+      return new Header(0, (int) journalFile.length());
+    }
+  }
+
+  /* Numbers of the rotated segments of a journal, oldest first. */
+  private static List<Integer> segments(File journalFile) {
+    String prefix = journalFile.getName() + ".";
+    String[] names = journalFile.getAbsoluteFile().getParentFile().list();
+    List<Integer> segments = new ArrayList<>();
+    for (String name : names == null ? new String[0] : names) {
+      if (name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+")) {
+        segments.add(Integer.parseInt(name.substring(prefix.length())));
+      }
+    }
+    segments.sort(null);
+    return segments;
+  }
+
+  private static File segmentFile(File journalFile, int segment) {
+    return new File(journalFile.getPath() + "." + segment);
+  }
+
+  private static byte[] readFrame(DataInputStream in) throws IOException {
+    try {
+      int length = in.readInt();
+      if (length < 0 || length > MAX_ENTRY_BYTES) {
+        return null;
+      }
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      long expected = in.readLong();
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      return crc.getValue() == expected ? payload : null;
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private static byte[] encode(JournalEntry entry) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    if (entry instanceof Created created) {
+      out.writeByte(CREATED);
+      out.writeInt(created.id());
+      out.writeByte(created.requester().ordinal());
+      out.writeByte(created.requestee().ordinal());
+      writeString(out, created.details());
+      out.writeLong(created.creationDate().getTime());
+      out.writeInt(created.sourceId());
+    } else if (entry instanceof Resourced resourced) {
+      out.writeByte(RESOURCED);
+      out.writeInt(resourced.id());
+      out.writeInt(resourced.sourceId());
+    } else if (entry instanceof Edited edited) {
+      out.writeByte(EDITED);
+      out.writeInt(edited.id());
+      writeString(out, edited.details());
+    } else if (entry instanceof Resolved resolved) {
+      out.writeByte(RESOLVED);
+      out.writeInt(resolved.id());
+      writeString(out, resolved.solution());
+      out.writeLong(resolved.solutionDate().getTime());
+    }
+    return bytes.toByteArray();
+  }
+
+  private static JournalEntry decode(byte[] payload) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    byte type = in.readByte();
+    int id = in.readInt();
+    return switch (type) {
+      case CREATED -> new Created(id, Team.values()[in.readByte()], Team.values()[in.readByte()],
+          readString(in), new Date(in.readLong()), in.readInt());
+      case RESOURCED -> new Resourced(id, in.readInt());
+      case EDITED -> new Edited(id, readString(in));
+      case RESOLVED -> new Resolved(id, readString(in), new Date(in.readLong()));
+      default -> throw new IOException("Unknown journal entry type " + type);
+    };
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
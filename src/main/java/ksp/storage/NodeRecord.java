@@ -0,0 +1,35 @@
+package ksp.storage;
+
+import java.util.Date;
+import ksp.utilities.Team;
+
+/**
+ * One row of the flat node table a request graph is saved as. Links between requests are kept
+ * only as the ID of each request's source, and rows are stored sources first so the graph can be
+ * relinked in a single pass.
+ *
+ * @param id ID of the request
+ * @param requester Team that made the request
+ * @param requestee Team the request is directed to
+ * @param details The question being asked
+ * @param creationDate When the request was made
+ * @param sourceId ID of the request this one solves, or NO_SOURCE for root requests
+ */
+public record NodeRecord(
+    int id, Team requester, Team requestee, String details, Date creationDate, int sourceId) {
+
+  public static final int NO_SOURCE = 0; // request IDs start at 1
+
+  public NodeRecord {
+    creationDate = new Date(creationDate.getTime());
+  }
+
+  @Override
+  public Date creationDate() {
+    return new Date(creationDate.getTime());
+  }
+
+  public boolean isRoot() {
+    return sourceId == NO_SOURCE;
+  }
+}
@@ -0,0 +1,9 @@
+package ksp.storage;
+
+import java.io.IOException;
+
+/** Receives records one at a time as they are read, e.g. while migrating a bucket. */
+@FunctionalInterface
+public interface RecordSink<T> {
+  void accept(T record) throws IOException;
+}
@@ -0,0 +1,9 @@
+package ksp.storage;
+
+import java.io.IOException;
+
+/** Produces records one at a time, e.g. by reading them from a bucket as it streams. */
+@FunctionalInterface
+public interface RecordSource<T> {
+  void forEachRecord(RecordSink<T> sink) throws IOException;
+}
@@ -0,0 +1,113 @@
+package ksp.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Excludes the other processes, and the other threads of this one, sharing a save directory
+ * while a change is committed to its files. It is held through a lock on a file in the directory,
+ * only for as long as a commit takes.
+ *
+ * <p>File locks are held on behalf of a whole JVM, so every lock on the same directory within
+ * one JVM shares a thread lock, which is taken first. Holding the lock is reentrant.
+ */
+public final class SaveDirectoryLock {
+  private static final String LOCK_FILE = "save-data.lock";
+
+  private static final Map<Path, Shared> locks = new ConcurrentHashMap<>();
+
+  private final Shared shared;
+
+  /** The lock file held between commits, and the thread lock guarding it. */
+  private static final class Shared {
+    private final ReentrantLock threads = new ReentrantLock();
+    private final Path file;
+    private FileChannel channel; // open only while the lock is held
+
+    Shared(Path file) {
+      this.file = file;
+    }
+  }
+
+  /** Something held until it is closed. */
+  @FunctionalInterface
+  public interface Hold extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  /**
+   * @param directory The save directory, created if missing
+   * @throws IOException if the directory cannot be created
+   */
+  public SaveDirectoryLock(Path directory) throws IOException {
+    Path key = Files.createDirectories(directory).toRealPath();
+    shared = locks.computeIfAbsent(key, k -> new Shared(k.resolve(LOCK_FILE)));
+  }
+
+  /**
+   * Waits until no other process or thread holds the lock, then holds it until the returned
+   * hold is closed.
+   *
+   * @throws IOException if the lock file cannot be opened or locked
+   */
+  public Hold acquire() throws IOException {
+    shared.threads.lock();
+    if (shared.threads.getHoldCount() == 1) {
+      try {
+        shared.channel = FileChannel.open(shared.file, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+        shared.channel.lock();
+      } catch (IOException e) {
+        release();
+        throw e;
+      }
+    }
+    return this::release;
+  }
+
+  /**
+   * Holds the lock if no other process or thread holds it, without waiting.
+   *
+   * @return the hold, to be closed, or null if the lock is held elsewhere
+   * @throws IOException if the lock file cannot be opened or locked
+   */
+  public Hold tryAcquire() throws IOException {
+    if (!shared.threads.tryLock()) {
+      return null;
+    }
+    if (shared.threads.getHoldCount() == 1) {
+      try {
+        shared.channel = FileChannel.open(shared.file, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+        if (shared.channel.tryLock() == null) {
+          release();
+          return null;
+        }
+      } catch (IOException e) {
+        release();
+        throw e;
+      }
+    }
+    return this::release;
+  }
+
+  private void release() {
+    try {
+      if (shared.threads.getHoldCount() == 1 && shared.channel != null) {
+        shared.channel.close(); // releases the file lock
+        shared.channel = null;
+      }
+    } catch (IOException ignored) {
+      // the lock is released when the channel closes, even if closing fails
+    } finally {
+      shared.threads.unlock();
+    }
+  }
+}
@@ -0,0 +1,973 @@
+package ksp.storage;
+
+import static java.util.stream.Collectors.toCollection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.InflaterInputStream;
+import ksp.utilities.ArchiveNode;
+
+/**
+ * The archive, split into one partition per calendar month (UTC) of solution date.
+ *
+ * <p>Requests solved in a month are appended to that month's active segment, an {@link
+ * ArchiveStore}. Once the month is over, a background compactor merges its active segment into a
+ * sealed segment: an immutable, compressed file with the records sorted by solution date. A
+ * solve therefore only ever appends to a small file, and date-bounded queries skip every month
+ * outside their range without reading it.
+ *
+ * <p>A sealed segment holds its records as a {@link BlockOutputStream}, followed by an
+ * uncompressed index of where each record and each block starts, so an ID lookup only
+ * decompresses the block holding the record. Neither sealing a month nor reading it back holds
+ * more than a block of it in memory at once. Active segments are left uncompressed, as they are
+ * memory-mapped and read at random.
+ *
+ * <p>Processes sharing the archive directory append and seal segments holding its {@link
+ * SaveDirectoryLock}, and pick up each other's changes with {@link #refresh}.
+ */
+public class SegmentedArchive implements AutoCloseable {
+  private static final int SEALED_MAGIC = 0x4B535053; // "KSPS"
+  private static final byte SEALED_VERSION = 3;
+  private static final byte BLOCKED_VERSION = 2; // record IDs in a header rather than a footer
+  private static final byte DEFLATED_VERSION = 1; // one Deflate stream rather than blocks
+  private static final String ACTIVE_SUFFIX = ".data";
+  private static final String SEALED_SUFFIX = ".sealed";
+  private static final String PREFIX = "archive-";
+  private static final int APPEND_BATCH_RECORDS = 1024;
+  private static final long COMPACTION_RETRY_SECONDS = 1;
+  private static final long MAX_COMPACTION_RETRY_SECONDS = 60 * 60;
+
+  private final File directory; // null for an archive that is only held in memory
+  private final Compression compression;
+  private final SaveDirectoryLock commitLock; // null if no other process shares the directory
+  private final TreeMap<YearMonth, Partition> partitions = new TreeMap<>();
+  private final BiConsumer<YearMonth, Exception> compactionFailed;
+  private final ScheduledExecutorService compactor;
+  private final Set<YearMonth> compactionsQueued = new HashSet<>();
+  private final Map<YearMonth, Integer> compactionFailures = new HashMap<>();
+
+  private SegmentedArchive(File directory, Compression compression, SaveDirectoryLock commitLock,
+      BiConsumer<YearMonth, Exception> compactionFailed) {
+    this.directory = directory;
+    this.compression = compression;
+    this.commitLock = commitLock;
+    this.compactionFailed = compactionFailed;
+    this.compactor = directory == null ? null : newCompactor();
+  }
+
+  private static ScheduledExecutorService newCompactor() {
+    ScheduledThreadPoolExecutor compactor = new ScheduledThreadPoolExecutor(1, task -> {
+      Thread thread = new Thread(task, "archive-compactor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    compactor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false); // retried once reopened
+    return compactor;
+  }
+
+  /** Returns an empty archive that is not backed by files, for graphs that are not saved. */
+  public static SegmentedArchive inMemory() {
+    return new SegmentedArchive(null, Compression.NONE, null, (month, e) -> { });
+  }
+
+  /**
+   * Opens the archive segments in directory, creating the directory if needed. Only the file
+   * names and the headers of active segments are read; sealed segments are read when first used.
+   * Months that are over but not yet sealed are handed to the compactor.
+   *
+   * @param directory Directory holding the segment files
+   * @param compression How to compress the segments sealed from now on
+   */
+  public static SegmentedArchive open(File directory, Compression compression)
+      throws IOException {
+    return open(directory, compression, null, (month, e) -> { });
+  }
+
+  /**
+   * Opens the archive segments in a directory shared with other processes. Months are sealed
+   * holding commitLock, which the callers appending must hold too. A month that fails to be
+   * sealed is kept active and tried again later, waiting twice as long after each failure.
+   *
+   * @param commitLock Held by whichever process is changing the directory
+   * @param compactionFailed Told of each month that failed to be sealed, on the compactor thread
+   */
+  public static SegmentedArchive open(File directory, Compression compression,
+      SaveDirectoryLock commitLock, BiConsumer<YearMonth, Exception> compactionFailed)
+      throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create archive directory " + directory);
+    }
+    SegmentedArchive archive =
+        new SegmentedArchive(directory, compression, commitLock, compactionFailed);
+    archive.refresh();
+    archive.scheduleCompaction();
+    return archive;
+  }
+
+  /**
+   * Picks up the changes other processes sharing the directory made since it was last read:
+   * records appended to active segments, and segments created, sealed or deleted. Only safe
+   * while those processes are kept from changing it.
+   */
+  public synchronized void refresh() throws IOException {
+    if (directory == null) {
+      return;
+    }
+    Set<YearMonth> active = new HashSet<>();
+    Set<YearMonth> sealed = new HashSet<>();
+    String[] names = directory.list();
+    for (String name : names == null ? new String[0] : names) {
+      YearMonth month = monthOf(name);
+      if (month != null) {
+        (name.endsWith(SEALED_SUFFIX) ? sealed : active).add(month);
+      }
+    }
+    for (Iterator<Map.Entry<YearMonth, Partition>> known = partitions.entrySet().iterator();
+        known.hasNext(); ) {
+      Map.Entry<YearMonth, Partition> partition = known.next();
+      if (!active.contains(partition.getKey()) && !sealed.contains(partition.getKey())) {
+        partition.getValue().closeActive(); // cleared
+        known.remove();
+      }
+    }
+    for (YearMonth month : union(active, sealed)) {
+      Partition partition = partitions.computeIfAbsent(month, key -> new Partition());
+      boolean resealed = false;
+      if (!sealed.contains(month)) {
+        partition.sealed = null;
+      } else if (partition.sealed == null || partition.sealed.isStale()) {
+        partition.sealed = new SealedSegment(sealedFile(month));
+        resealed = true;
+      }
+      if (!active.contains(month) || resealed) { // a resealed month's active file is a new one
+        partition.closeActive();
+      }
+      if (active.contains(month)) {
+        if (partition.active == null) {
+          partition.active = ArchiveStore.open(activeFile(month).toPath());
+        } else {
+          partition.active.refresh();
+        }
+      }
+    }
+  }
+
+  private static Set<YearMonth> union(Set<YearMonth> active, Set<YearMonth> sealed) {
+    Set<YearMonth> months = new HashSet<>(active);
+    months.addAll(sealed);
+    return months;
+  }
+
+  public synchronized boolean isEmpty() {
+    return partitions.values().stream().allMatch(Partition::isEmpty);
+  }
+
+  public synchronized boolean contains(int id) {
+    return partitions.values().stream().anyMatch(partition -> partition.contains(id));
+  }
+
+  /**
+   * Decodes the archived request with the given ID. If an ID was archived more than once, the
+   * record in the oldest month is returned.
+   *
+   * @return the archived request, or null if id is not archived
+   */
+  public synchronized ArchiveNode get(int id) {
+    for (Partition partition : partitions.values()) {
+      ArchiveNode archived = partition.get(id);
+      if (archived != null) {
+        return archived;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Streams every record, month by month. Sealed months are decoded lazily, a block at a time,
+   * from files opened now, so they are read as they were even if the compactor replaces them
+   * meanwhile. Active months are small, and copied up front. Close the stream, or read it to
+   * the end, to release the files; make it parallel to decode several months at once.
+   */
+  public synchronized Stream<ArchiveNode> stream() {
+    List<Stream<ArchiveNode>> months = new ArrayList<>(partitions.size());
+    try {
+      for (Partition partition : partitions.values()) {
+        months.add(partition.stream());
+      }
+    } catch (RuntimeException e) {
+      months.forEach(Stream::close);
+      throw e;
+    }
+    return months.stream().flatMap(month -> month)
+        .onClose(() -> months.forEach(Stream::close));
+  }
+
+  /**
+   * Decodes the records solved between two dates, reading only the months that overlap them.
+   *
+   * @param from Earliest solution date, inclusive
+   * @param to Latest solution date, inclusive
+   * @return Matching records, oldest solution first
+   */
+  public synchronized List<ArchiveNode> between(Date from, Date to) {
+    if (from.after(to)) {
+      return new ArrayList<>();
+    }
+    return partitions.subMap(monthOf(from), true, monthOf(to), true).values().stream()
+        .flatMap(Partition::stream)
+        .filter(archived -> !archived.solutionDate().before(from)
+            && !archived.solutionDate().after(to))
+        .sorted(Comparator.comparing(ArchiveNode::solutionDate)) // stable, so ties keep order
+        .collect(toCollection(ArrayList::new));
+  }
+
+  public synchronized void append(ArchiveNode archived) throws IOException {
+    YearMonth month = monthOf(archived.solutionDate());
+    activeSegment(month).append(archived);
+    if (month.isBefore(currentMonth())) { // e.g. replayed after the month ended
+      scheduleCompaction();
+    }
+  }
+
+  /**
+   * Appends every record of a source, e.g. an archive being migrated. The records of each month
+   * are written in batches, and months that are over are only compacted once every record is
+   * appended.
+   */
+  public synchronized void appendAll(RecordSource<ArchiveNode> source) throws IOException {
+    Map<YearMonth, List<ArchiveNode>> batches = new HashMap<>();
+    source.forEachRecord(archived -> {
+      YearMonth month = monthOf(archived.solutionDate());
+      List<ArchiveNode> batch = batches.computeIfAbsent(month, key -> new ArrayList<>());
+      batch.add(archived);
+      if (batch.size() == APPEND_BATCH_RECORDS) {
+        activeSegment(month).appendAll(batch);
+        batch.clear();
+      }
+    });
+    for (Map.Entry<YearMonth, List<ArchiveNode>> batch : batches.entrySet()) {
+      activeSegment(batch.getKey()).appendAll(batch.getValue());
+    }
+    scheduleCompaction();
+  }
+
+  private ArchiveStore activeSegment(YearMonth month) throws IOException {
+    Partition partition = partitions.computeIfAbsent(month, key -> new Partition());
+    if (partition.active == null) {
+      partition.active = directory == null
+          ? ArchiveStore.inMemory()
+          : ArchiveStore.open(activeFile(month).toPath());
+    }
+    return partition.active;
+  }
+
+  /** Removes every segment. */
+  public synchronized void clear() throws IOException {
+    for (Map.Entry<YearMonth, Partition> partition : partitions.entrySet()) {
+      if (partition.getValue().active != null) {
+        partition.getValue().active.close();
+      }
+      if (directory != null) {
+        Files.deleteIfExists(activeFile(partition.getKey()).toPath());
+        Files.deleteIfExists(sealedFile(partition.getKey()).toPath());
+      }
+    }
+    partitions.clear();
+  }
+
+  /** Forces the records appended to the active segments to the storage device. */
+  public synchronized void force() throws IOException {
+    for (Partition partition : partitions.values()) {
+      if (partition.active != null) {
+        partition.active.force();
+      }
+    }
+  }
+
+  /** Names of the segment files in the archive directory, none for an archive in memory. */
+  public synchronized List<String> segmentFiles() {
+    List<String> files = new ArrayList<>();
+    if (directory == null) {
+      return files;
+    }
+    partitions.forEach((month, partition) -> {
+      if (partition.sealed != null) {
+        files.add(sealedFile(month).getName());
+      }
+      if (partition.active != null) {
+        files.add(activeFile(month).getName());
+      }
+    });
+    return files;
+  }
+
+  /** Waits for any running compaction, then closes the segments. */
+  @Override
+  public void close() throws IOException {
+    if (compactor != null) {
+      compactor.shutdown();
+      try {
+        compactor.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      for (Partition partition : partitions.values()) {
+        if (partition.active != null) {
+          partition.active.close();
+        }
+      }
+    }
+  }
+
+  private synchronized void scheduleCompaction() {
+    if (compactor == null || compactor.isShutdown()) {
+      return;
+    }
+    for (Map.Entry<YearMonth, Partition> partition : partitions.entrySet()) {
+      YearMonth month = partition.getKey();
+      if (month.isBefore(currentMonth()) && partition.getValue().active != null
+          && compactionsQueued.add(month)) {
+        compactor.execute(() -> compact(month));
+      }
+    }
+  }
+
+  /*
+   * Runs on the compactor thread. Where the month's records end is read under the lock, but they
+   * are merged by date, compressed and written without it, so the console is not held up. The
+   * records are streamed a frame at a time from the sealed segment and the active one, so the
+   * month is never held in memory whole. If records were appended to the month meanwhile, the
+   * new segment is dropped and the month is compacted again later. If sealing fails, the active
+   * segment is kept, and the failure is reported and retried.
+   */
+  private void compact(YearMonth month) {
+    Partition partition;
+    SealedSegment sealed;
+    int activeSize;
+    int activeLength;
+    synchronized (this) {
+      compactionsQueued.remove(month); // appends from now on need another compaction
+      partition = partitions.get(month);
+      if (partition == null || partition.active == null) {
+        return; // already sealed, or cleared
+      }
+      sealed = partition.sealed;
+      activeSize = partition.active.size();
+      activeLength = partition.active.length();
+    }
+
+    File sealedFile = sealedFile(month);
+    AtomicWriteBatch sealing = new AtomicWriteBatch();
+    try {
+      try (FileChannel active = FileChannel.open(activeFile(month).toPath(),
+              StandardOpenOption.READ);
+          SealedSegment.FrameReader sealedFrames = sealed == null ? null : sealed.frames()) {
+        FrameSource activeFrames =
+            byDate(active.map(FileChannel.MapMode.READ_ONLY, 0, activeLength), activeLength);
+        SealedSegment.write(sealing.stage(sealedFile.toPath()).toFile(),
+            sealedFrames == null ? activeFrames : mergeByDate(sealedFrames, activeFrames),
+            compression);
+      }
+
+      SaveDirectoryLock.Hold held = commitLock == null ? null : commitLock.acquire();
+      try {
+        synchronized (this) {
+          refresh(); // another process may have appended to the month, or sealed it
+          if (partitions.get(month) != partition || partition.active == null
+              || partition.active.size() != activeSize) {
+            sealing.discard();
+            return;
+          }
+          sealing.commit(); // durable before the active segment it replaces is deleted
+          partition.active.close();
+          Files.delete(activeFile(month).toPath());
+          partition.active = null;
+          partition.sealed = new SealedSegment(sealedFile);
+          compactionFailures.remove(month);
+        }
+      } finally {
+        if (held != null) {
+          held.close();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      sealing.discard(); // the active segment is kept, so nothing is lost
+      retryCompaction(month, e);
+    }
+  }
+
+  /* Reports a month that failed to be sealed, and seals it again after a growing delay. */
+  private void retryCompaction(YearMonth month, Exception cause) {
+    compactionFailed.accept(month, cause);
+    synchronized (this) {
+      int failures = compactionFailures.merge(month, 1, Integer::sum);
+      if (compactor.isShutdown() || !compactionsQueued.add(month)) {
+        return;
+      }
+      long delay = Math.min(COMPACTION_RETRY_SECONDS << Math.min(failures - 1, 16),
+          MAX_COMPACTION_RETRY_SECONDS);
+      compactor.schedule(() -> compact(month), delay, TimeUnit.SECONDS);
+    }
+  }
+
+  /* One record, encoded as in an archive store, see ArchiveStore#encode. */
+  private record Frame(int id, byte[] payload) {
+    long solutionTime() {
+      return ArchiveStore.solutionTime(payload);
+    }
+
+    ArchiveNode decode() {
+      return ArchiveStore.decode(ByteBuffer.wrap(payload));
+    }
+  }
+
+  /* Hands out records one at a time. */
+  @FunctionalInterface
+  private interface FrameSource {
+    /* Returns the next record, or null once there are none left. */
+    Frame next() throws IOException;
+  }
+
+  /* The records of an active segment's file, oldest solution first, copied out one by one. */
+  private static FrameSource byDate(ByteBuffer file, int length) {
+    int[] offsets = ArchiveStore.frameOffsets(file, length);
+    long[] solutionTimes = new long[offsets.length];
+    Integer[] order = new Integer[offsets.length];
+    for (int i = 0; i < offsets.length; i++) {
+      solutionTimes[i] = ArchiveStore.solutionTime(ArchiveStore.framePayload(file, offsets[i]));
+      order[i] = i;
+    }
+    Arrays.sort(order, Comparator.comparingLong(i -> solutionTimes[i])); // stable
+    int[] next = {0};
+    return () -> {
+      if (next[0] == order.length) {
+        return null;
+      }
+      int offset = offsets[order[next[0]++]];
+      return new Frame(ArchiveStore.frameId(file, offset),
+          ArchiveStore.framePayload(file, offset));
+    };
+  }
+
+  /* Merges two sources sorted by solution date. On a tie, older's record comes first. */
+  private static FrameSource mergeByDate(FrameSource older, FrameSource newer)
+      throws IOException {
+    Frame[] heads = {older.next(), newer.next()};
+    return () -> {
+      Frame first = heads[0];
+      Frame second = heads[1];
+      if (first != null
+          && (second == null || first.solutionTime() <= second.solutionTime())) {
+        heads[0] = older.next();
+        return first;
+      }
+      if (second != null) {
+        heads[1] = newer.next();
+      }
+      return second;
+    };
+  }
+
+  private File activeFile(YearMonth month) {
+    return new File(directory, PREFIX + month + ACTIVE_SUFFIX);
+  }
+
+  private File sealedFile(YearMonth month) {
+    return new File(directory, PREFIX + month + SEALED_SUFFIX);
+  }
+
+  private static YearMonth monthOf(String fileName) {
+    if (!fileName.startsWith(PREFIX)
+        || !(fileName.endsWith(ACTIVE_SUFFIX) || fileName.endsWith(SEALED_SUFFIX))) {
+      return null;
+    }
+    try {
+      return YearMonth.parse(fileName.substring(PREFIX.length(), fileName.lastIndexOf('.')));
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  private static YearMonth monthOf(Date date) {
+    return YearMonth.from(date.toInstant().atZone(ZoneOffset.UTC));
+  }
+
+  private static YearMonth currentMonth() {
+    return YearMonth.now(ZoneOffset.UTC);
+  }
+
+  /* The sealed and active segments of one month. Sealed records come first. */
+  private static final class Partition {
+    private SealedSegment sealed;
+    private ArchiveStore active;
+
+    void closeActive() throws IOException {
+      if (active != null) {
+        active.close();
+        active = null;
+      }
+    }
+
+    boolean isEmpty() {
+      return (sealed == null || sealed.size() == 0) && (active == null || active.isEmpty());
+    }
+
+    boolean contains(int id) {
+      return (sealed != null && sealed.contains(id)) || (active != null && active.contains(id));
+    }
+
+    ArchiveNode get(int id) {
+      ArchiveNode archived = sealed == null ? null : sealed.get(id);
+      return archived != null || active == null ? archived : active.get(id);
+    }
+
+    Stream<ArchiveNode> stream() {
+      Stream<ArchiveNode> sealedRecords = sealed == null ? Stream.empty() : sealed.stream();
+      Stream<ArchiveNode> activeRecords =
+          active == null ? Stream.empty() : active.stream().toList().stream();
+      return Stream.concat(sealedRecords, activeRecords);
+    }
+  }
+
+  /*
+   * An immutable, compressed segment. Its index is read on first use, and each lookup only
+   * decompresses the block holding the record, keeping the last block read while memory allows.
+   *
+   * The records are an archive store image written as a block stream, followed by a footer of
+   * each record's ID and offset in the image, in the order written, and of each block's offset in
+   * the file and in the image. The file ends with the offset of the footer.
+   */
+  private static final class SealedSegment {
+    private static final int HEADER_BYTES = Integer.BYTES + 1;
+
+    private final File file;
+    private final long length; // with modified, tells whether the file was replaced since
+    private final long modified;
+    private volatile Index index; // null until read; the compactor reads it off the lock
+    private int cachedBlock = -1; // only used under the archive's lock
+    private SoftReference<byte[]> cachedBlockBytes = new SoftReference<>(null);
+
+    /*
+     * Where the records of a segment are. Read once, then never changed.
+     *
+     * entries holds each record's ID and offset in the image, by ID, and is null while a
+     * segment sealed before the footer was added is being indexed. blocks is null for a segment
+     * sealed as one Deflate stream.
+     */
+    private record Index(byte version, int count, long recordsStart, long[] entries,
+        BlockOutputStream.BlockIndex blocks, Compression blockCompression) {}
+
+    SealedSegment(File file) {
+      this.file = file;
+      this.length = file.length();
+      this.modified = file.lastModified();
+    }
+
+    /* Returns true if the file was sealed again, e.g. by another process, since it was opened. */
+    boolean isStale() {
+      return file.length() != length || file.lastModified() != modified;
+    }
+
+    static void write(File file, FrameSource frames, Compression compression)
+        throws IOException {
+      try (FileOutputStream fileOut = new FileOutputStream(file);
+          DataOutputStream out = new DataOutputStream(
+              new BufferedOutputStream(fileOut, BlockOutputStream.BLOCK_BYTES))) {
+        out.writeInt(SEALED_MAGIC);
+        out.writeByte(SEALED_VERSION);
+        BlockOutputStream blockStream = new BlockOutputStream(out, compression);
+        DataOutputStream records = new DataOutputStream(blockStream);
+        ArchiveStore.writeImageHeader(records);
+        int[] ids = new int[64];
+        int[] offsets = new int[64];
+        int written = 0;
+        for (Frame frame = frames.next(); frame != null; frame = frames.next()) {
+          if (written == ids.length) {
+            ids = Arrays.copyOf(ids, written << 1);
+            offsets = Arrays.copyOf(offsets, written << 1);
+          }
+          ids[written] = frame.id();
+          offsets[written++] = records.size();
+          ArchiveStore.writeFrame(records, frame.id(), frame.payload());
+          if (records.size() == Integer.MAX_VALUE) { // the count saturates there
+            throw new IOException("The archive segment is too large to seal");
+          }
+        }
+        blockStream.finish();
+        out.flush();
+
+        long footerStart = fileOut.getChannel().position();
+        out.writeInt(written);
+        for (int i = 0; i < written; i++) {
+          out.writeInt(ids[i]);
+          out.writeInt(offsets[i]);
+        }
+        BlockOutputStream.BlockIndex index = blockStream.index();
+        out.writeInt(index.blocks());
+        for (long storedOffset : index.storedOffsets()) {
+          out.writeLong(storedOffset);
+        }
+        for (long rawOffset : index.rawOffsets()) {
+          out.writeLong(rawOffset);
+        }
+        out.writeLong(footerStart);
+      }
+    }
+
+    int size() {
+      return readIndex().count();
+    }
+
+    boolean contains(int id) {
+      return find(id) >= 0;
+    }
+
+    ArchiveNode get(int id) {
+      Index read = readIndex();
+      int at = find(id);
+      if (at < 0) {
+        return null;
+      }
+      try {
+        if (read.blocks() == null) { // no blocks to start from, so read up to the record
+          try (FrameReader frames = frames()) {
+            for (Frame frame = frames.next(); frame != null; frame = frames.next()) {
+              if (frame.id() == id) {
+                return frame.decode();
+              }
+            }
+          }
+          throw new IOException("Record #" + id + " is missing");
+        }
+        return frameAt(read, (int) read.entries()[at]).decode();
+      } catch (IOException | RuntimeException e) {
+        throw corrupt(e);
+      }
+    }
+
+    /*
+     * Decodes the records lazily, a block at a time, from a file opened now, so the records are
+     * read as they were even if the month is sealed again meanwhile. The file is closed once the
+     * last record is read, or when the stream is closed.
+     */
+    Stream<ArchiveNode> stream() {
+      if (size() == 0) {
+        return Stream.empty();
+      }
+      FrameReader frames;
+      try {
+        frames = frames();
+      } catch (IOException e) {
+        throw corrupt(e);
+      }
+      Spliterator<ArchiveNode> records = new Spliterators.AbstractSpliterator<>(
+          frames.remaining, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED) {
+        @Override
+        public boolean tryAdvance(Consumer<? super ArchiveNode> action) {
+          ArchiveNode archived;
+          try {
+            Frame frame = frames.next();
+            if (frame == null) {
+              frames.close();
+              return false;
+            }
+            archived = frame.decode();
+          } catch (IOException | RuntimeException e) {
+            throw corrupt(e);
+          }
+          action.accept(archived);
+          return true;
+        }
+      };
+      return StreamSupport.stream(records, false).onClose(() -> {
+        try {
+          frames.close();
+        } catch (IOException e) {
+          throw corrupt(e);
+        }
+      });
+    }
+
+    private IllegalStateException corrupt(Exception cause) {
+      return new IllegalStateException("Sealed archive segment " + file + " is corrupt", cause);
+    }
+
+    /* The position in entries of the first record with the ID, or -1 if there is none. */
+    private int find(int id) {
+      long[] entries = readIndex().entries();
+      int at = Arrays.binarySearch(entries, entry(id, 0));
+      at = at >= 0 ? at : -at - 1; // never found, as no record is at offset 0
+      return at < entries.length && (int) (entries[at] >> 32) == id ? at : -1;
+    }
+
+    /* Sorts by ID, then by offset, so the oldest record of an ID archived twice comes first. */
+    private static long entry(int id, int offset) {
+      return (long) id << 32 | offset;
+    }
+
+    /* Reads the record at an offset of the image, from the block holding it. */
+    private Frame frameAt(Index read, int offset) throws IOException {
+      BlockOutputStream.BlockIndex blocks = read.blocks();
+      int block = blocks.blockAt(offset);
+      byte[] bytes = block(read, block);
+      int at = (int) (offset - blocks.rawOffsets()[block]);
+      if (at + 2 * Integer.BYTES <= bytes.length) {
+        ByteBuffer frame = ByteBuffer.wrap(bytes, at, bytes.length - at);
+        int payloadLength = frame.getInt();
+        int id = frame.getInt();
+        if (payloadLength >= 0 && payloadLength <= frame.remaining()) {
+          byte[] payload = new byte[payloadLength];
+          frame.get(payload);
+          return new Frame(id, payload);
+        }
+      }
+      try (DataInputStream in = new DataInputStream(blocksFrom(read, block))) { // spans blocks
+        in.skipNBytes(at);
+        return readFrame(in);
+      }
+    }
+
+    /* Decompresses one block, or returns it if it was the last one read. */
+    private byte[] block(Index read, int block) throws IOException {
+      byte[] bytes = cachedBlockBytes.get();
+      if (cachedBlock != block || bytes == null) {
+        long[] rawOffsets = read.blocks().rawOffsets();
+        try (InputStream in = blocksFrom(read, block)) {
+          bytes = in.readNBytes((int) (rawOffsets[block + 1] - rawOffsets[block]));
+        }
+        cachedBlock = block;
+        cachedBlockBytes = new SoftReference<>(bytes);
+      }
+      return bytes;
+    }
+
+    /* Decompresses the image from the start of a block on. */
+    private InputStream blocksFrom(Index read, int block) throws IOException {
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      channel.position(read.recordsStart() + read.blocks().storedOffsets()[block]);
+      return BlockInputStream.fromBlock(new BufferedInputStream(
+          Channels.newInputStream(channel), BlockOutputStream.BLOCK_BYTES),
+          read.blockCompression());
+    }
+
+    /* Reads the records of the segment in order, a block at a time. */
+    FrameReader frames() throws IOException {
+      return new FrameReader(readIndex());
+    }
+
+    /*
+     * Streams the records of a segment, from a file of its own. The file is opened up front, but
+     * nothing is read or decompressed until the first record is asked for.
+     */
+    final class FrameReader implements FrameSource, AutoCloseable {
+      private final Index index;
+      private final InputStream fileIn;
+      private DataInputStream in; // null until the first record is read
+      private int remaining;
+      private int position = ArchiveStore.HEADER_BYTES; // of the next record in the image
+
+      private FrameReader(Index index) throws IOException {
+        this.index = index;
+        this.remaining = index.count();
+        this.fileIn = Files.newInputStream(file.toPath());
+      }
+
+      @Override
+      public Frame next() throws IOException {
+        if (remaining == 0) {
+          return null;
+        }
+        if (in == null) {
+          in = records();
+        }
+        remaining--;
+        Frame frame = readFrame(in);
+        position += 2 * Integer.BYTES + frame.payload().length;
+        return frame;
+      }
+
+      private DataInputStream records() throws IOException {
+        InputStream buffered = new BufferedInputStream(fileIn, BlockOutputStream.BLOCK_BYTES);
+        buffered.skipNBytes(index.recordsStart());
+        DataInputStream records;
+        if (index.version() == DEFLATED_VERSION) {
+          buffered.skipNBytes(2 * Integer.BYTES); // the raw and compressed lengths
+          records = new DataInputStream(new InflaterInputStream(buffered));
+        } else {
+          records = new DataInputStream(new BlockInputStream(buffered));
+        }
+        ArchiveStore.readImageHeader(records);
+        return records;
+      }
+
+      @Override
+      public void close() throws IOException {
+        try (fileIn) {
+          if (in != null) {
+            in.close(); // also ends the decompressor
+            in = null;
+          }
+        }
+      }
+    }
+
+    private static Frame readFrame(DataInputStream in) throws IOException {
+      int payloadLength = in.readInt();
+      int id = in.readInt();
+      if (payloadLength < 0) {
+        throw new IOException("Corrupt record frame");
+      }
+      byte[] payload = in.readNBytes(payloadLength);
+      if (payload.length != payloadLength) {
+        throw new EOFException("Truncated record frame");
+      }
+      return new Frame(id, payload);
+    }
+
+    /* Reads the index on first use. Two threads may both read it; either result is the same. */
+    private Index readIndex() {
+      Index read = index;
+      if (read != null) {
+        return read;
+      }
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, 0);
+        byte version = header.get(Integer.BYTES);
+        if (header.getInt(0) != SEALED_MAGIC) {
+          throw new IOException("unknown format");
+        }
+        if (version == SEALED_VERSION) {
+          read = readFooter(channel);
+        } else if (version == BLOCKED_VERSION || version == DEFLATED_VERSION) {
+          read = readIds(channel, version);
+        } else {
+          throw new IOException("unknown format");
+        }
+      } catch (IOException | RuntimeException e) {
+        throw new IllegalStateException("Could not read sealed archive segment " + file, e);
+      }
+      index = read;
+      return read;
+    }
+
+    private Index readFooter(FileChannel channel) throws IOException {
+      ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES);
+      readFully(channel, trailer, channel.size() - Long.BYTES);
+      long footerStart = trailer.getLong(0);
+      if (footerStart < HEADER_BYTES || footerStart > channel.size() - Long.BYTES) {
+        throw new IOException("corrupt footer");
+      }
+      ByteBuffer footer = ByteBuffer.allocate((int) (channel.size() - Long.BYTES - footerStart));
+      readFully(channel, footer, footerStart);
+      footer.flip();
+      int records = footer.getInt();
+      long[] indexed = new long[records];
+      for (int i = 0; i < records; i++) {
+        indexed[i] = entry(footer.getInt(), footer.getInt());
+      }
+      long[] storedOffsets = new long[footer.getInt()];
+      long[] rawOffsets = new long[storedOffsets.length + 1];
+      for (int i = 0; i < storedOffsets.length; i++) {
+        storedOffsets[i] = footer.getLong();
+      }
+      for (int i = 0; i < rawOffsets.length; i++) {
+        rawOffsets[i] = footer.getLong();
+      }
+      ByteBuffer compressionId = ByteBuffer.allocate(1);
+      readFully(channel, compressionId, HEADER_BYTES);
+      Arrays.sort(indexed);
+      return new Index(SEALED_VERSION, records, HEADER_BYTES, indexed,
+          new BlockOutputStream.BlockIndex(storedOffsets, rawOffsets),
+          Compression.withId(compressionId.get(0)));
+    }
+
+    /*
+     * Reads the IDs saved at the start of a segment sealed before the footer was added. If it
+     * was block compressed, the blocks and records are found by reading it through once.
+     */
+    private Index readIds(FileChannel channel, byte version) throws IOException {
+      ByteBuffer countBytes = ByteBuffer.allocate(Integer.BYTES);
+      readFully(channel, countBytes, HEADER_BYTES);
+      int count = countBytes.getInt(0);
+      long recordsStart = HEADER_BYTES + Integer.BYTES * (1L + count);
+      long[] indexed = new long[count];
+      if (version == DEFLATED_VERSION) {
+        ByteBuffer ids = ByteBuffer.allocate(Integer.BYTES * count);
+        readFully(channel, ids, HEADER_BYTES + Integer.BYTES);
+        for (int i = 0; i < count; i++) {
+          indexed[i] = entry(ids.getInt(Integer.BYTES * i), ArchiveStore.HEADER_BYTES); // unused
+        }
+        Arrays.sort(indexed);
+        return new Index(version, count, recordsStart, indexed, null, null);
+      }
+      ByteBuffer compressionId = ByteBuffer.allocate(1);
+      readFully(channel, compressionId, recordsStart);
+      Compression blockCompression = Compression.withId(compressionId.get(0));
+      BlockOutputStream.BlockIndex blocks;
+      try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()),
+          BlockOutputStream.BLOCK_BYTES)) {
+        in.skipNBytes(recordsStart);
+        blocks = BlockInputStream.scan(in);
+      }
+      Index scanning = new Index(version, count, recordsStart, null, blocks, blockCompression);
+      try (FrameReader frames = new FrameReader(scanning)) {
+        for (int i = 0; i < count; i++) {
+          int offset = frames.position;
+          indexed[i] = entry(frames.next().id(), offset);
+        }
+      }
+      Arrays.sort(indexed);
+      return new Index(version, count, recordsStart, indexed, blocks, blockCompression);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+        throws IOException {
+      while (buffer.hasRemaining()) {
+        int read = channel.read(buffer, position + buffer.position());
+        if (read < 0) {
+          throw new IOException("truncated");
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,12 @@
+package ksp.storage;
+
+import java.io.IOException;
+
+/** Thrown when a stored object was changed by another writer since it was last read. */
+public class StaleObjectException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  public StaleObjectException(String name) {
+    super(name + " was changed by another writer");
+  }
+}
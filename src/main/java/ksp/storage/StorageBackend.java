@@ -0,0 +1,56 @@
+package ksp.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Where the save data is kept. Buckets are stored as named objects, e.g. {@code
+ * request-graph-bucket.data} or {@code archive/archive-2024-01.sealed}, and are always read and
+ * written through a working copy in a local directory: fetching an object brings its working
+ * copy up to date, and publishing it stores the working copy as the object.
+ *
+ * <p>The change journal is only ever kept in the local directory, as it is appended to on every
+ * change.
+ */
+public interface StorageBackend extends AutoCloseable {
+
+  /** Directory holding the working copy of every object. */
+  Path localDirectory();
+
+  /**
+   * Brings the working copy of an object up to date.
+   *
+   * @param name Name of the object, relative to the local directory
+   * @return the working copy, or null if there is no such object
+   * @throws StaleObjectException if the working copy changed since it was fetched or last
+   *     published, and another writer changed the object too, in which case the working copy is
+   *     left as it is
+   */
+  Path fetch(String name) throws IOException;
+
+  /** Lists the objects whose names start with prefix. */
+  List<String> list(String prefix) throws IOException;
+
+  /**
+   * Stores the working copies of objects as the objects. Working copies that did not change
+   * since they were fetched or last published may be skipped.
+   *
+   * @param names Names of the objects to publish
+   * @throws StaleObjectException if another writer changed one of the objects since it was
+   *     fetched, in which case that object is left as the other writer stored it
+   */
+  void publish(Collection<String> names) throws IOException;
+
+  /**
+   * Deletes an object and its working copy.
+   *
+   * @throws StaleObjectException if another writer stored the object since it was fetched or
+   *     last published, or stored an object this backend never saw, which is then kept
+   */
+  void delete(String name) throws IOException;
+
+  @Override
+  void close() throws IOException;
+}
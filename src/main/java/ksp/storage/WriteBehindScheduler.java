@@ -0,0 +1,124 @@
+package ksp.storage;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes dirty save data buckets on a background thread, so commands do not wait on the disk.
+ *
+ * <p>Marking a bucket dirty schedules a write at most {@code delayMillis} later. A bucket marked
+ * again before then only keeps its latest write, so a burst of changes costs one write per
+ * bucket. Writes run in {@link Bucket} order on a single thread.
+ */
+public class WriteBehindScheduler implements AutoCloseable {
+
+  /** Save data written by the scheduler, in the order they are written. */
+  public enum Bucket {
+    GRAPH,
+    ARCHIVE,
+    SYNC, // moving the buckets above into place once they are all on the storage device
+    PUBLISH, // storing the buckets above in the storage backend
+    JOURNAL // discarding journal segments covered by the buckets above, so always last
+  }
+
+  /** A write of one bucket. Captures what to write, and reports failures itself. */
+  @FunctionalInterface
+  public interface BucketWrite {
+    /** @return true if the bucket was written */
+    boolean write();
+  }
+
+  private final ScheduledExecutorService writer;
+  private final long delayMillis;
+  private final Map<Bucket, BucketWrite> dirty = new EnumMap<>(Bucket.class);
+  private ScheduledFuture<?> scheduled;
+
+  public WriteBehindScheduler(long delayMillis) {
+    this.delayMillis = delayMillis;
+    this.writer = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "save-data-writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Marks a bucket dirty, replacing any write of it that has not run yet.
+   *
+   * @param bucket The bucket that changed
+   * @param write Writes the bucket as it is now
+   */
+  public synchronized void markDirty(Bucket bucket, BucketWrite write) {
+    dirty.put(bucket, write);
+    if (scheduled == null) {
+      scheduled = writer.schedule(this::writeDirty, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public synchronized boolean isDirty() {
+    return !dirty.isEmpty();
+  }
+
+  /**
+   * Writes every dirty bucket now, waiting until they are written.
+   *
+   * @return true if every bucket was written
+   */
+  public boolean flush() {
+    Future<Boolean> written;
+    synchronized (this) {
+      if (scheduled != null) {
+        scheduled.cancel(false);
+        scheduled = null;
+      }
+      written = writer.submit(this::writeDirty);
+    }
+    try {
+      return written.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      return false;
+    }
+  }
+
+  /** Flushes the dirty buckets and stops the background thread. */
+  @Override
+  public void close() {
+    flush();
+    writer.shutdown();
+  }
+
+  /*
+   * Runs on the writer thread. A failed write stops the later ones, as the journal must outlive
+   * the buckets it covers, and is kept to be retried unless a newer write has replaced it.
+   */
+  private boolean writeDirty() {
+    EnumMap<Bucket, BucketWrite> toWrite;
+    synchronized (this) {
+      scheduled = null;
+      toWrite = new EnumMap<>(dirty);
+      dirty.clear();
+    }
+    for (Map.Entry<Bucket, BucketWrite> bucket : toWrite.entrySet()) {
+      if (!bucket.getValue().write()) {
+        synchronized (this) {
+          toWrite.forEach((unwritten, write) -> {
+            if (unwritten.compareTo(bucket.getKey()) >= 0) {
+              dirty.putIfAbsent(unwritten, write);
+            }
+          });
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+}
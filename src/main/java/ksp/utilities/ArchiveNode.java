@@ -1,14 +1,61 @@
 package ksp.utilities;
 
 import java.io.Serializable;
-import java.util.Calendar;
 import java.util.Date;
-import ksp.RequestNode;
+import java.util.List;
+import ksp.storage.NodeRecord;
 
-public record ArchiveNode(RequestNode archivedNode, String solution, Date solutionDate) implements Serializable {
+/**
+ * Immutable record of a solved request. Only the request's own fields are kept, with its source
+ * and branches referred to by ID, so archiving a request never drags the live graph around it
+ * into the archive.
+ *
+ * @param id ID of the solved request
+ * @param requester Team that made the request
+ * @param requestee Team the request was directed to
+ * @param details The question that was asked
+ * @param creationDate When the request was made
+ * @param sourceId ID of the request this was made to solve, or NodeRecord.NO_SOURCE for root requests
+ * @param branchIds IDs of the requests still open to solve this one when it was solved
+ * @param solution The answer to the request
+ * @param solutionDate When the request was solved
+ */
+public record ArchiveNode(
+    int id,
+    Team requester,
+    Team requestee,
+    String details,
+    Date creationDate,
+    int sourceId,
+    List<Integer> branchIds,
+    String solution,
+    Date solutionDate)
+    implements Serializable {
 
-  public ArchiveNode(RequestNode archivedNode, String solution){
-    this(archivedNode,solution, Calendar.getInstance().getTime());
+  public ArchiveNode {
+    branchIds = List.copyOf(branchIds);
+    creationDate = new Date(creationDate.getTime());
+    solutionDate = new Date(solutionDate.getTime());
+  }
+
+  @Override
+  public Date creationDate() {
+    return new Date(creationDate.getTime());
+  }
+
+  @Override
+  public Date solutionDate() {
+    return new Date(solutionDate.getTime());
+  }
+
+  public boolean isRoot() {
+    return sourceId == NodeRecord.NO_SOURCE;
+  }
+
+  /* Describes the archived request in the same format as a live RequestNode. */
+  public String requestToString() {
+    return (isRoot() ? "Root" : "Branch") + " Request #" + id + " from " + requester + " to "
+        + requestee + ": " + details;
   }
 
   @Override
@@ -16,6 +63,6 @@ public record ArchiveNode(RequestNode archivedNode, String solution, Date soluti
     return """
   %s
   %s
-  Solution: %s""".formatted(solutionDate, archivedNode.toString(),solution);
+  Solution: %s""".formatted(solutionDate, requestToString(), solution);
   }
 }
@@ -0,0 +1,54 @@
+package ksp.utilities;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Archived requests ordered by the date they were solved, so that date range queries only visit
+ * the requests inside the range.
+ */
+public class ArchiveTimeline {
+  private final TreeMap<Date, List<ArchiveNode>> bySolutionDate = new TreeMap<>();
+  private int size;
+
+  public void add(ArchiveNode archived) {
+    bySolutionDate.computeIfAbsent(archived.solutionDate(), k -> new ArrayList<>(1)).add(archived);
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** Returns every archived request, oldest solution first. */
+  public ArrayList<ArchiveNode> all() {
+    return flatten(bySolutionDate.values());
+  }
+
+  /**
+   * Returns the archived requests solved between from and to, both inclusive, oldest solution
+   * first.
+   */
+  public ArrayList<ArchiveNode> between(Date from, Date to) {
+    if (from.after(to)) {
+      return new ArrayList<>();
+    }
+    return flatten(bySolutionDate.subMap(from, true, to, true).values());
+  }
+
+  public void clear() {
+    bySolutionDate.clear();
+    size = 0;
+  }
+
+  private static ArrayList<ArchiveNode> flatten(Collection<List<ArchiveNode>> groups) {
+    ArrayList<ArchiveNode> output = new ArrayList<>();
+    for (List<ArchiveNode> group : groups) {
+      output.addAll(group);
+    }
+    return output;
+  }
+}
@@ -1,25 +1,87 @@
 package ksp.utilities;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongUnaryOperator;
+import ksp.exceptions.IllegalRequestException;
 
+/**
+ * Hands out request IDs. Each graph has its own generator, so each has its own ID space.
+ *
+ * <p>IDs are leased in blocks: the lease store saves the end of each new block before any ID in
+ * the block is handed out. Restarting from the saved lease therefore carries on past every ID
+ * already used, even after a crash, and the lease is saved once per block rather than once per
+ * request. IDs inside the current block are drawn without locking.
+ *
+ * <p>The store chooses where each block ends. Generators sharing a save directory lease from the
+ * same saved lease, so a block may start past the end of the last one, skipping the IDs leased by
+ * the others meanwhile. A block ending past the last int is rejected whole rather than cut short,
+ * so IDs never wrap around onto live ones, and the lease handed out is always the one saved.
+ */
 public class IDGenerator {
+  /** Number of IDs leased at a time. */
+  public static final int BLOCK_SIZE = 1024;
 
-  private static final AtomicInteger prevUsedID = new AtomicInteger(0);
+  private final AtomicLong nextID = new AtomicLong(1); // counted in 64 bits, so it never wraps
+  private volatile Block block = new Block(1, 0); // the current lease, empty until leased
+  private final LongUnaryOperator leaseStore;
 
-  public static boolean init(int restoredVal) {
-    prevUsedID.set(restoredVal);
+  /** The IDs from first to last, both included. */
+  private record Block(long first, long last) {
+    boolean contains(long id) {
+      return id >= first && id <= last;
+    }
+  }
+
+  /** Creates a generator whose leases are not saved, for graphs that are not saved. */
+  public IDGenerator() {
+    this(leasedThrough -> leasedThrough + BLOCK_SIZE);
+  }
+
+  /**
+   * @param leaseStore Given the end of the current lease, leases the next block and returns its
+   *     end once it is saved. The block is the {@link #BLOCK_SIZE} IDs up to that end.
+   */
+  public IDGenerator(LongUnaryOperator leaseStore) {
+    this.leaseStore = leaseStore;
+  }
+
+  /** Carries on after restoredVal, the saved lease; the next ID drawn leases a new block. */
+  public synchronized boolean init(int restoredVal) {
+    block = new Block(restoredVal + 1L, restoredVal);
+    nextID.set(restoredVal + 1L);
     return true;
   }
 
-  public static int generateNewID() {
-    if (prevUsedID.get() == Integer.MAX_VALUE) { // overflow check
-      prevUsedID.set(0);
+  /** @throws IllegalRequestException if every request ID is in use */
+  public int generateNewID() throws IllegalRequestException {
+    Block current = block;
+    long id = nextID.getAndIncrement();
+    return current.contains(id) ? (int) id : lease(id);
+  }
+
+  /*
+   * Leases blocks until an ID inside one is drawn. Another thread may have leased it meanwhile,
+   * and IDs drawn from before the start of a block that skipped ahead are drawn again.
+   */
+  private synchronized int lease(long id) throws IllegalRequestException {
+    while (!block.contains(id)) {
+      if (id > block.last) {
+        long end = leaseStore.applyAsLong(block.last);
+        if (end > Integer.MAX_VALUE) {
+          throw new IllegalRequestException(
+              "Cannot create a request, every request ID is in use");
+        }
+        block = new Block(end - BLOCK_SIZE + 1, end);
+        nextID.accumulateAndGet(block.first, Math::max);
+      } else {
+        id = nextID.getAndIncrement();
+      }
     }
-    return prevUsedID.incrementAndGet();
+    return (int) id;
   }
 
-  /* Only to be used when saving the generator state to disk*/
-  public static int saveState() {
-    return prevUsedID.get();
+  /* Only to be used when saving the generator state to disk: the end of the current lease */
+  public int saveState() {
+    return (int) block.last;
   }
 }
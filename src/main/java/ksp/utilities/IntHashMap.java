@@ -0,0 +1,156 @@
+package ksp.utilities;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map keyed by primitive ints. Lookups, inserts and removals do not box the
+ * key or allocate entry objects, which keeps ID lookups on large graphs cheap.
+ *
+ * <p>Null values are not supported - a null value marks an empty slot.
+ *
+ * @param <V> value type
+ */
+public class IntHashMap<V> {
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.6f;
+
+  private int[] keys;
+  private Object[] values;
+  private int size;
+  private int resizeThreshold;
+  private int mask;
+
+  public IntHashMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public IntHashMap(int expectedSize) {
+    allocate(tableSizeFor(expectedSize));
+  }
+
+  public V get(int key) {
+    int slot = findSlot(key);
+    return slot < 0 ? null : valueAt(slot);
+  }
+
+  public boolean containsKey(int key) {
+    return findSlot(key) >= 0;
+  }
+
+  /**
+   * Associates value with key, replacing any previous mapping.
+   *
+   * @return the previous value for key, or null if there was none
+   */
+  public V put(int key, V value) {
+    if (value == null) {
+      throw new IllegalArgumentException("IntHashMap does not support null values");
+    }
+    int slot = slotFor(key);
+    while (values[slot] != null) {
+      if (keys[slot] == key) {
+        V previous = valueAt(slot);
+        values[slot] = value;
+        return previous;
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size > resizeThreshold) {
+      resize(values.length << 1);
+    }
+    return null;
+  }
+
+  /**
+   * Removes the mapping for key, shifting later entries of the probe chain back so that no
+   * tombstones are left behind.
+   *
+   * @return the removed value, or null if key was not present
+   */
+  public V remove(int key) {
+    int slot = findSlot(key);
+    if (slot < 0) {
+      return null;
+    }
+    V removed = valueAt(slot);
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while (values[next] != null) {
+      int home = slotFor(keys[next]);
+      // move the entry into the gap if its home slot is not cyclically within (gap, next]
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        keys[gap] = keys[next];
+        values[gap] = values[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    values[gap] = null;
+    size--;
+    return removed;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  private int findSlot(int key) {
+    int slot = slotFor(key);
+    while (values[slot] != null) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private int slotFor(int key) {
+    int hash = key * 0x9E3779B9; // fibonacci hashing spreads sequential IDs
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  @SuppressWarnings("unchecked")
+  private V valueAt(int slot) {
+    return (V) values[slot];
+  }
+
+  private void resize(int capacity) {
+    int[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldValues.length; i++) {
+      if (oldValues[i] != null) {
+        int slot = slotFor(oldKeys[i]);
+        while (values[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+    resizeThreshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private static int tableSizeFor(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(2, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+    return Math.max(DEFAULT_CAPACITY, capacity);
+  }
+}
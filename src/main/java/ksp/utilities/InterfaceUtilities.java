@@ -2,10 +2,29 @@ package ksp.utilities;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.function.Predicate;
 
 public class InterfaceUtilities {
+  /* Answers the questions asked on a thread serving a remote session, which has no console. */
+  private static final ThreadLocal<Predicate<String>> remoteAnswers = new ThreadLocal<>();
+
+  /**
+   * Answers the yes or no questions asked on the current thread with answers, instead of asking
+   * on the console, until {@link #answerOnConsole()}.
+   */
+  public static void answerRemotely(Predicate<String> answers) {
+    remoteAnswers.set(answers);
+  }
+
+  public static void answerOnConsole() {
+    remoteAnswers.remove();
+  }
 
   public static boolean askYN(String question) {
+    Predicate<String> remote = remoteAnswers.get();
+    if (remote != null) {
+      return remote.test(question);
+    }
     BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
 
     String ans;
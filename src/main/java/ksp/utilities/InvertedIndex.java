@@ -0,0 +1,209 @@
+package ksp.utilities;
+
+import static ksp.utilities.SearchUtilities.tokenize;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Maps each token of an indexed text field to the IDs of the requests containing it, so that
+ * searches only need to score requests that contain at least one of the query words.
+ *
+ * <p>Search phrases are split into words by the same tokenizer as the indexed text, so e.g.
+ * "O-ring" is searched for as "o" and "ring". Query words match any token they are a prefix of
+ * (e.g. "cpu" finds "CPUs"), mirroring the substring matching of {@link
+ * SearchUtilities#stringMatchPercentage}. Matches are ranked with Okapi BM25, using the term
+ * frequencies and document lengths recorded at indexing time.
+ */
+public class InvertedIndex {
+  private static final double K1 = 1.2; // term frequency saturation
+  private static final double B = 0.75; // document length normalisation
+
+  private final TreeMap<String, PostingList> postings = new TreeMap<>();
+  private final IntHashMap<Integer> documentLengths = new IntHashMap<>();
+  private long totalLength;
+
+  /**
+   * Indexes text under id. If id is already indexed the call is ignored, so the first document
+   * added for a reused ID is the one that is searched.
+   */
+  public void add(int id, String text) {
+    if (documentLengths.containsKey(id)) {
+      return;
+    }
+    List<String> tokens = tokenize(text);
+    for (Map.Entry<String, Integer> term : termFrequencies(tokens).entrySet()) {
+      postings.computeIfAbsent(term.getKey(), k -> new PostingList()).add(id, term.getValue());
+    }
+    documentLengths.put(id, tokens.size());
+    totalLength += tokens.size();
+  }
+
+  public void remove(int id, String text) {
+    Integer length = documentLengths.remove(id);
+    if (length == null) {
+      return;
+    }
+    totalLength -= length;
+    for (String token : new LinkedHashSet<>(tokenize(text))) {
+      PostingList list = postings.get(token);
+      if (list != null) {
+        list.remove(id);
+        if (list.isEmpty()) {
+          postings.remove(token);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the distinct, ascending IDs of every request containing a token that starts with one
+   * of the words in searchPhrase.
+   *
+   * @param searchPhrase The string to find candidate matches for
+   */
+  public int[] candidates(String searchPhrase) {
+    return candidates(matchingPostings(searchPhrase));
+  }
+
+  private static int[] candidates(List<PostingList> matching) {
+    int[] buffer = new int[16];
+    int count = 0;
+    for (PostingList list : matching) {
+      if (count + list.size() > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, count + list.size()));
+      }
+      for (int i = 0; i < list.size(); i++) {
+        buffer[count++] = list.get(i);
+      }
+    }
+    Arrays.sort(buffer, 0, count);
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (distinct == 0 || buffer[i] != buffer[distinct - 1]) {
+        buffer[distinct++] = buffer[i];
+      }
+    }
+    return Arrays.copyOf(buffer, distinct);
+  }
+
+  /**
+   * Scores every candidate for searchPhrase once with BM25 and returns the IDs of the best
+   * limit matches, most relevant first. Equal scores are ordered oldest request first.
+   *
+   * @param searchPhrase The string to rank requests against
+   * @param limit Maximum number of IDs to return
+   */
+  public IntStream rank(String searchPhrase, int limit) {
+    List<PostingList> matching = matchingPostings(searchPhrase);
+    int[] candidates = candidates(matching);
+    if (candidates.length == 0 || limit <= 0) {
+      return IntStream.empty();
+    }
+
+    double[] scores = new double[candidates.length];
+    double averageLength = Math.max(1.0, (double) totalLength / documentLengths.size());
+    for (PostingList list : matching) {
+      double idf = Math.log(1 + (documentLengths.size() - list.size() + 0.5) / (list.size() + 0.5));
+      for (int i = 0; i < list.size(); i++) {
+        int id = list.get(i);
+        int frequency = list.frequency(i);
+        double lengthRatio = documentLengths.get(id) / averageLength;
+        scores[Arrays.binarySearch(candidates, id)] +=
+            idf * frequency * (K1 + 1) / (frequency + K1 * (1 - B + B * lengthRatio));
+      }
+    }
+
+    // bounded min-heap of candidate positions, weakest match at the top
+    int[] heap = new int[Math.min(limit, candidates.length)];
+    int heapSize = 0;
+    for (int position = 0; position < candidates.length; position++) {
+      if (heapSize < heap.length) {
+        heap[heapSize] = position;
+        siftUp(heap, heapSize++, scores);
+      } else if (ranksAbove(position, heap[0], scores)) {
+        heap[0] = position;
+        siftDown(heap, heapSize, scores);
+      }
+    }
+
+    int[] ranked = new int[heapSize];
+    for (int i = heapSize - 1; i >= 0; i--) { // pop weakest first, filling from the back
+      ranked[i] = candidates[heap[0]];
+      heap[0] = heap[--heapSize];
+      siftDown(heap, heapSize, scores);
+    }
+    return Arrays.stream(ranked);
+  }
+
+  public void clear() {
+    postings.clear();
+    documentLengths.clear();
+    totalLength = 0;
+  }
+
+  private List<PostingList> matchingPostings(String searchPhrase) {
+    Set<String> tokens = new LinkedHashSet<>();
+    for (String word : tokenize(searchPhrase)) {
+      tokens.addAll(postings.subMap(word, true, word + Character.MAX_VALUE, false).keySet());
+    }
+    return tokens.stream().map(postings::get).toList();
+  }
+
+  private static Map<String, Integer> termFrequencies(List<String> tokens) {
+    Map<String, Integer> frequencies = new HashMap<>();
+    for (String token : tokens) {
+      frequencies.merge(token, 1, Integer::sum);
+    }
+    return frequencies;
+  }
+
+  /* Higher score wins. Positions follow ascending ID, so on a tie the older request wins. */
+  private static boolean ranksAbove(int position, int other, double[] scores) {
+    return scores[position] > scores[other]
+        || (scores[position] == scores[other] && position < other);
+  }
+
+  private static void siftUp(int[] heap, int index, double[] scores) {
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      if (!ranksAbove(heap[parent], heap[index], scores)) {
+        return;
+      }
+      swap(heap, parent, index);
+      index = parent;
+    }
+  }
+
+  private static void siftDown(int[] heap, int size, double[] scores) {
+    int index = 0;
+    while (true) {
+      int weakest = index;
+      int left = 2 * index + 1;
+      int right = left + 1;
+      if (left < size && ranksAbove(heap[weakest], heap[left], scores)) {
+        weakest = left;
+      }
+      if (right < size && ranksAbove(heap[weakest], heap[right], scores)) {
+        weakest = right;
+      }
+      if (weakest == index) {
+        return;
+      }
+      swap(heap, index, weakest);
+      index = weakest;
+    }
+  }
+
+  private static void swap(int[] heap, int i, int j) {
+    int temp = heap[i];
+    heap[i] = heap[j];
+    heap[j] = temp;
+  }
+}
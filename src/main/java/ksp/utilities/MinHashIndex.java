@@ -0,0 +1,193 @@
+package ksp.utilities;
+
+import static ksp.utilities.SearchUtilities.tokenize;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Locality-sensitive hashing index for finding near-duplicate texts without comparing against
+ * every indexed text.
+ *
+ * <p>Each text is reduced to a MinHash signature over its word shingles, whose slots agree with
+ * another signature's with probability equal to the Jaccard similarity of the two shingle sets.
+ * Signatures are split into bands, and texts sharing any whole band land in the same bucket, so
+ * a lookup only compares against the texts in the query's buckets. With the default 20 bands of
+ * 3 rows, pairs with a similarity of 0.5 are found ~93% of the time, while pairs below ~0.3 are
+ * mostly never compared.
+ */
+public class MinHashIndex {
+  /** Fewest shingles a query needs for its similarity to be estimated, see canEstimate. */
+  public static final int MIN_QUERY_SHINGLES = 4;
+
+  private static final long SEED = 0x5DEECE66DL; // fixed so signatures are stable across runs
+
+  private final int bands;
+  private final int rows;
+  private final int shingleSize;
+  private final long[] multipliers;
+  private final long[] increments;
+  private final IntHashMap<int[]> signatures = new IntHashMap<>();
+  private final HashMap<Long, PostingList> buckets = new HashMap<>();
+
+  public MinHashIndex() {
+    this(20, 3, 1);
+  }
+
+  /**
+   * @param bands Number of LSH bands - more bands find less similar texts
+   * @param rows Signature slots per band - more rows make each bucket more selective
+   * @param shingleSize Number of consecutive words in each shingle
+   */
+  public MinHashIndex(int bands, int rows, int shingleSize) {
+    this.bands = bands;
+    this.rows = rows;
+    this.shingleSize = shingleSize;
+    Random random = new Random(SEED);
+    multipliers = new long[bands * rows];
+    increments = new long[bands * rows];
+    for (int i = 0; i < multipliers.length; i++) {
+      multipliers[i] = random.nextLong() | 1;
+      increments[i] = random.nextLong();
+    }
+  }
+
+  /**
+   * Indexes text under id. If id is already indexed, or text has no words, the call is ignored.
+   */
+  public void add(int id, String text) {
+    if (signatures.containsKey(id)) {
+      return;
+    }
+    int[] signature = signature(text);
+    if (signature == null) {
+      return;
+    }
+    signatures.put(id, signature);
+    for (int band = 0; band < bands; band++) {
+      buckets.computeIfAbsent(bandKey(signature, band), k -> new PostingList()).add(id);
+    }
+  }
+
+  /**
+   * Returns the IDs of indexed texts whose estimated Jaccard similarity to text is at least
+   * threshold, most similar first.
+   *
+   * @param text The text to find near-duplicates of
+   * @param threshold Minimum estimated similarity, from 0 to 1
+   */
+  public IntStream similar(String text, double threshold) {
+    int[] signature = signature(text);
+    if (signature == null) {
+      return IntStream.empty();
+    }
+
+    int[] merged = new int[0];
+    for (int band = 0; band < bands; band++) {
+      PostingList bucket = buckets.get(bandKey(signature, band));
+      if (bucket != null) {
+        merged = merge(merged, bucket);
+      }
+    }
+    int[] candidates = merged;
+
+    double[] similarities = new double[candidates.length];
+    for (int i = 0; i < candidates.length; i++) {
+      similarities[i] = estimateSimilarity(signature, signatures.get(candidates[i]));
+    }
+    return IntStream.range(0, candidates.length)
+        .filter(i -> similarities[i] >= threshold)
+        .boxed()
+        .sorted((i, j) -> Double.compare(similarities[j], similarities[i]))
+        .mapToInt(i -> candidates[i]);
+  }
+
+  /**
+   * Returns true if text has enough shingles for {@link #similar} to be worth asking. A query of
+   * a few words has a low Jaccard similarity even to a text containing all of them, so such
+   * queries are best matched exactly instead.
+   */
+  public boolean canEstimate(String text) {
+    return tokenize(text).size() - shingleSize + 1 >= MIN_QUERY_SHINGLES;
+  }
+
+  public void clear() {
+    signatures.clear();
+    buckets.clear();
+  }
+
+  private int[] signature(String text) {
+    List<String> words = tokenize(text);
+    if (words.isEmpty()) {
+      return null;
+    }
+    int[] signature = new int[multipliers.length];
+    Arrays.fill(signature, Integer.MAX_VALUE);
+    int shingles = Math.max(1, words.size() - shingleSize + 1);
+    for (int start = 0; start < shingles; start++) {
+      long shingle = 0;
+      for (int w = start; w < Math.min(words.size(), start + shingleSize); w++) {
+        shingle = shingle * 31 + words.get(w).hashCode();
+      }
+      shingle = mix(shingle);
+      for (int i = 0; i < signature.length; i++) {
+        int hash = (int) ((multipliers[i] * shingle + increments[i]) >>> 33);
+        if (hash < signature[i]) {
+          signature[i] = hash;
+        }
+      }
+    }
+    return signature;
+  }
+
+  private long bandKey(int[] signature, int band) {
+    long key = band;
+    for (int row = band * rows; row < (band + 1) * rows; row++) {
+      key = key * 0x100000001B3L + signature[row];
+    }
+    return mix(key);
+  }
+
+  private static double estimateSimilarity(int[] signature, int[] other) {
+    int agreeing = 0;
+    for (int i = 0; i < signature.length; i++) {
+      if (signature[i] == other[i]) {
+        agreeing++;
+      }
+    }
+    return (double) agreeing / signature.length;
+  }
+
+  /* Merges a sorted bucket into a sorted, distinct candidate array. */
+  private static int[] merge(int[] candidates, PostingList bucket) {
+    int[] merged = new int[candidates.length + bucket.size()];
+    int i = 0;
+    int j = 0;
+    int size = 0;
+    while (i < candidates.length || j < bucket.size()) {
+      int next;
+      if (j == bucket.size() || (i < candidates.length && candidates[i] <= bucket.get(j))) {
+        next = candidates[i++];
+      } else {
+        next = bucket.get(j++);
+      }
+      if (size == 0 || merged[size - 1] != next) {
+        merged[size++] = next;
+      }
+    }
+    return Arrays.copyOf(merged, size);
+  }
+
+  /* Finalisation step of MurmurHash3, spreads similar inputs across all 64 bits. */
+  private static long mix(long value) {
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdL;
+    value ^= value >>> 33;
+    value *= 0xc4ceb9fe1a85ec53L;
+    value ^= value >>> 33;
+    return value;
+  }
+}
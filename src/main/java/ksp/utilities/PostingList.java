@@ -0,0 +1,72 @@
+package ksp.utilities;
+
+import java.util.Arrays;
+
+/**
+ * Sorted, duplicate-free list of request IDs that contain a given term, along with how many times
+ * the term occurs in each. Request IDs are handed out in increasing order, so new postings are
+ * almost always cheap appends.
+ */
+public class PostingList {
+  private int[] ids = new int[4];
+  private int[] frequencies = new int[4];
+  private int size;
+
+  /** Adds id if not already present. */
+  public void add(int id) {
+    add(id, 1);
+  }
+
+  /** Adds id with the given term frequency if not already present. */
+  public void add(int id, int frequency) {
+    if (size == 0 || id > ids[size - 1]) { // fast path - newest request
+      ensureCapacity();
+      ids[size] = id;
+      frequencies[size++] = frequency;
+      return;
+    }
+    int position = Arrays.binarySearch(ids, 0, size, id);
+    if (position >= 0) {
+      return;
+    }
+    int insertAt = -(position + 1);
+    ensureCapacity();
+    System.arraycopy(ids, insertAt, ids, insertAt + 1, size - insertAt);
+    System.arraycopy(frequencies, insertAt, frequencies, insertAt + 1, size - insertAt);
+    ids[insertAt] = id;
+    frequencies[insertAt] = frequency;
+    size++;
+  }
+
+  public void remove(int id) {
+    int position = Arrays.binarySearch(ids, 0, size, id);
+    if (position >= 0) {
+      System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+      System.arraycopy(frequencies, position + 1, frequencies, position, size - position - 1);
+      size--;
+    }
+  }
+
+  public int get(int index) {
+    return ids[index];
+  }
+
+  public int frequency(int index) {
+    return frequencies[index];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  private void ensureCapacity() {
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, size << 1);
+      frequencies = Arrays.copyOf(frequencies, size << 1);
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package ksp.utilities;
+
+import static ksp.utilities.SearchUtilities.queryWords;
+
+/**
+ * A search phrase normalised once up front, so that it can be matched against many requests
+ * without re-parsing it. Matching against already normalised text allocates nothing.
+ */
+public class SearchQuery {
+  private final String[] words;
+
+  private SearchQuery(String[] words) {
+    this.words = words;
+  }
+
+  public static SearchQuery compile(String searchPhrase) {
+    return new SearchQuery(queryWords(searchPhrase));
+  }
+
+  /**
+   * Returns an int from 0-100 based on how many of the query words appear in the text.
+   *
+   * @param normalizedText Text already passed through {@link SearchUtilities#normalize}
+   */
+  public int matchPercentage(String normalizedText) {
+    int matches = 0;
+    for (String word : words) {
+      if (normalizedText.contains(word)) {
+        matches++;
+      }
+    }
+    return (100 * matches) / words.length;
+  }
+}
@@ -1,15 +1,54 @@
 package ksp.utilities;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 public class SearchUtilities {
 
+  /* Kept for one-off matches. Repeated matching should compile a SearchQuery once instead. */
   public static Integer stringMatchPercentage(String stringToSearch, String searchPhrase) {
-    String[] words = searchPhrase.replaceAll("\\p{Punct}", "").toLowerCase().split(" ");
-    int matches = 0;
-    for (String word : words) {
-      if (stringToSearch.toLowerCase().contains(word)) {
-        matches++;
+    return SearchQuery.compile(searchPhrase).matchPercentage(normalize(stringToSearch));
+  }
+
+  /* Normalises text that search phrases are matched against. */
+  public static String normalize(String text) {
+    return text.toLowerCase();
+  }
+
+  /*
+   * Normalises a search phrase into the words whose share is matched against requests, see
+   * SearchQuery. Indexed searches split phrases with tokenize instead, like the text they index.
+   */
+  public static String[] queryWords(String searchPhrase) {
+    return searchPhrase.replaceAll("\\p{Punct}", "").toLowerCase().split(" ");
+  }
+
+  /* Returns the share of the distinct words of phrase that are tokens of text, from 0 to 1. */
+  public static double wordShare(String phrase, String text) {
+    Set<String> words = new HashSet<>(tokenize(phrase));
+    if (words.isEmpty()) {
+      return 0;
+    }
+    int found = words.size();
+    words.removeAll(tokenize(text));
+    return (double) (found - words.size()) / found;
+  }
+
+  /* Splits indexed text into lower case tokens of letters and digits. */
+  public static List<String> tokenize(String text) {
+    List<String> tokens = new ArrayList<>();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean tokenChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (tokenChar && start < 0) {
+        start = i;
+      } else if (!tokenChar && start >= 0) {
+        tokens.add(text.substring(start, i).toLowerCase());
+        start = -1;
       }
     }
-    return (100 * matches) / words.length;
+    return tokens;
   }
 }
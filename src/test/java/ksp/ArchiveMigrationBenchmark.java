@@ -0,0 +1,127 @@
+package ksp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import ksp.storage.BucketCodec;
+import ksp.storage.Compression;
+import ksp.storage.SegmentedArchive;
+import ksp.utilities.ArchiveNode;
+import ksp.utilities.Team;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures migrating a binary archive bucket into monthly archive segments, streaming it entry by
+ * entry in batched appends, against reading the whole bucket into memory first and appending one
+ * entry at a time, as the migration used to.
+ *
+ * <p>The fork runs with a small heap on purpose: the streamed migration only ever holds a read
+ * window of the bucket, while the materialized one holds every entry, so it fails once the
+ * bucket no longer fits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = "-Xmx512m")
+public class ArchiveMigrationBenchmark {
+
+  @Param({"1000000"})
+  public int entries;
+
+  private Path bucket;
+  private File segments;
+
+  @Setup(Level.Trial)
+  public void writeBucket() throws IOException {
+    bucket = Files.createTempFile("request-archive-bucket", ".data");
+    Random random = new Random(42);
+    long solvedAt = 1_500_000_000_000L;
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(bucket)))) {
+      out.writeInt(BucketCodec.ARCHIVE_MAGIC);
+      out.writeByte(1);
+      out.writeInt(entries);
+      for (int id = 1; id <= entries; id++) {
+        byte[] details = ("Question " + id + " about the fuel line of stage "
+            + random.nextInt(5)).getBytes(StandardCharsets.UTF_8);
+        byte[] solution = ("Answer " + random.nextInt(1000)).getBytes(StandardCharsets.UTF_8);
+        solvedAt += random.nextInt(300_000);
+        out.writeInt(id);
+        out.writeByte(random.nextInt(Team.values().length));
+        out.writeByte(random.nextInt(Team.values().length));
+        out.writeLong(solvedAt - random.nextInt(86_400_000));
+        out.writeInt(0);
+        out.writeLong(solvedAt);
+        out.writeInt(0);
+        out.writeInt(details.length);
+        out.write(details);
+        out.writeInt(solution.length);
+        out.write(solution);
+      }
+    }
+    System.out.printf("%nBucket of %,d entries: %,d bytes%n", entries, Files.size(bucket));
+  }
+
+  @Setup(Level.Invocation)
+  public void createSegmentDirectory() throws IOException {
+    segments = Files.createTempDirectory("archive").toFile();
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteSegmentDirectory() throws IOException {
+    try (Stream<Path> files = Files.walk(segments.toPath())) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteBucket() throws IOException {
+    Files.deleteIfExists(bucket);
+  }
+
+  @Benchmark
+  public void streamed() throws IOException {
+    try (SegmentedArchive archive = SegmentedArchive.open(segments, Compression.DEFLATE)) {
+      archive.appendAll(sink -> BucketCodec.readArchive(bucket, sink));
+      archive.force();
+    }
+  }
+
+  @Benchmark
+  public void materialized() throws IOException {
+    List<ArchiveNode> saved = new ArrayList<>();
+    BucketCodec.readArchive(bucket, saved::add);
+    try (SegmentedArchive archive = SegmentedArchive.open(segments, Compression.DEFLATE)) {
+      for (ArchiveNode archived : saved) {
+        archive.append(archived);
+      }
+      archive.force();
+    }
+  }
+}
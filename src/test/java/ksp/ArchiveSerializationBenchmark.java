@@ -0,0 +1,99 @@
+package ksp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import ksp.exceptions.IllegalRequestException;
+import ksp.utilities.ArchiveNode;
+import ksp.utilities.Team;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares saving an archive of flattened ArchiveNode records with saving the same archive in the
+ * old shape, where each entry held its RequestNode and, through its source, the live graph.
+ *
+ * <p>Each root request has a number of branch requests, half of which are solved while the rest
+ * stay live, as happens when a team works through the questions it was asked.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArchiveSerializationBenchmark {
+
+  @Param({"500"})
+  public int roots;
+
+  @Param({"20"})
+  public int branchesPerRoot;
+
+  private final ArrayList<LegacyArchiveNode> legacyArchive = new ArrayList<>();
+  private final ArrayList<ArchiveNode> flatArchive = new ArrayList<>();
+
+  @Setup
+  public void setUp() throws IllegalRequestException, IOException {
+    RequestGraph requestGraph = new RequestGraph(new ArrayList<>());
+    ArrayList<RequestNode> toSolve = new ArrayList<>();
+    for (int r = 0; r < roots; r++) {
+      RequestNode root = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.AVIONICS)
+          .inGraph(requestGraph)
+          .withQuery("Root question number " + r + " about the avionics bay layout?")
+          .build();
+      for (int b = 0; b < branchesPerRoot; b++) {
+        RequestNode branch = RequestBuilder.ANewRequest(Team.AVIONICS, Team.STRUCTURES)
+            .inGraph(requestGraph)
+            .withQuery("Branch question " + b + " on the mounting of board " + r + "?")
+            .toSolve(root)
+            .build();
+        if (b % 2 == 0) {
+          toSolve.add(branch);
+        }
+      }
+    }
+
+    for (RequestNode request : toSolve) {
+      String solution = "Bolted to rail " + request.getID() + " with M3 fasteners.";
+      Date solutionDate = Calendar.getInstance().getTime();
+      flatArchive.add(request.toArchiveNode(solution, solutionDate));
+      request.removeRequest(requestGraph); // old archiving kept the node after removal
+      legacyArchive.add(new LegacyArchiveNode(request, solution, solutionDate));
+    }
+
+    System.out.printf("%nlegacy archive: %d bytes, flat archive: %d bytes%n",
+        serialize(legacyArchive).size(), serialize(flatArchive).size());
+  }
+
+  @Benchmark
+  public ByteArrayOutputStream saveLegacyArchive() throws IOException {
+    return serialize(legacyArchive);
+  }
+
+  @Benchmark
+  public ByteArrayOutputStream saveFlatArchive() throws IOException {
+    return serialize(flatArchive);
+  }
+
+  private static ByteArrayOutputStream serialize(Object archive) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(archive);
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,97 @@
+package ksp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import ksp.storage.AtomicWriteBatch;
+import ksp.storage.BucketCodec;
+import ksp.storage.Compression;
+import ksp.storage.NodeRecord;
+import ksp.utilities.Metadata;
+import ksp.utilities.Team;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency of committing a checkpoint's graph and metadata buckets: overwritten in
+ * place as they used to be, which a crash can leave half written; each replaced atomically behind
+ * its own barrier; or both replaced behind one shared barrier, as checkpoints now do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class BucketCommitBenchmark {
+  @Param({"100", "10000"})
+  public int requests;
+
+  private List<NodeRecord> nodes;
+  private Path directory;
+  private Path graphBucket;
+  private Path metadataBucket;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    nodes = new ArrayList<>();
+    for (int id = 1; id <= requests; id++) {
+      nodes.add(new NodeRecord(id, Team.SYSTEMS, Team.values()[id % Team.values().length],
+          "What is the torque budget of bolt " + id + "?", new Date(1_600_000_000_000L + id),
+          id % 10 == 1 ? NodeRecord.NO_SOURCE : id - 1));
+    }
+    directory = Files.createTempDirectory("bucket-commit");
+    graphBucket = directory.resolve("request-graph-bucket.data");
+    metadataBucket = directory.resolve("metadata-bucket.data");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Benchmark
+  public void overwriteInPlace() throws IOException {
+    BucketCodec.writeGraph(graphBucket, nodes, Compression.LZ);
+    BucketCodec.writeMetadata(metadataBucket, new Metadata(requests));
+  }
+
+  @Benchmark
+  public void commitEachBucket() throws IOException {
+    AtomicWriteBatch graph = new AtomicWriteBatch();
+    BucketCodec.writeGraph(graph.stage(graphBucket), nodes, Compression.LZ);
+    graph.commit();
+    AtomicWriteBatch metadata = new AtomicWriteBatch();
+    BucketCodec.writeMetadata(metadata.stage(metadataBucket), new Metadata(requests));
+    metadata.commit();
+  }
+
+  @Benchmark
+  public void commitBucketsTogether() throws IOException {
+    AtomicWriteBatch batch = new AtomicWriteBatch();
+    BucketCodec.writeGraph(batch.stage(graphBucket), nodes, Compression.LZ);
+    BucketCodec.writeMetadata(batch.stage(metadataBucket), new Metadata(requests));
+    batch.commit();
+  }
+}
@@ -0,0 +1,131 @@
+package ksp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import ksp.storage.BlockInputStream;
+import ksp.storage.BlockOutputStream;
+import ksp.storage.Compression;
+import ksp.utilities.Team;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the block compression methods on a synthetic archive, to choose how save data is
+ * compressed. Each record is laid out as in an archive store, with details and solutions drawn
+ * from a small vocabulary, as requests between teams tend to reuse the same words.
+ *
+ * <p>The compressed size of each method is printed once its benchmarks have run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class BucketCompressionBenchmark {
+  private static final String[] WORDS = {"fuel", "line", "diameter", "engine", "ratio", "what",
+      "is", "the", "of", "cpu", "avionics", "bay", "wing", "load", "tank", "pressure", "how",
+      "many", "are", "we", "using", "thrust", "stage", "mass", "budget", "bolt", "torque", "metres",
+      "kilograms", "launch", "window", "orbit", "heat", "shield", "valve", "pump"};
+
+  @Param({"1000000"})
+  public int records;
+
+  @Param({"NONE", "DEFLATE", "LZ"})
+  public Compression compression;
+
+  private byte[] archive;
+  private Path file;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    Random random = new Random(42);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(records * 128);
+    DataOutputStream out = new DataOutputStream(bytes);
+    long solvedAt = 1_600_000_000_000L;
+    for (int id = 1; id <= records; id++) {
+      byte[] details = sentence(random, 6 + random.nextInt(10));
+      byte[] solution = sentence(random, 2 + random.nextInt(6));
+      int branches = random.nextInt(3);
+      out.writeInt(4 + 2 + 8 + 4 + 8 + 4 + 4 * branches + 4 + details.length + 4
+          + solution.length);
+      out.writeInt(id);
+      out.writeInt(id);
+      out.writeByte(random.nextInt(Team.values().length));
+      out.writeByte(random.nextInt(Team.values().length));
+      out.writeLong(solvedAt - random.nextInt(86_400_000));
+      out.writeInt(id > 1 && random.nextBoolean() ? random.nextInt(id - 1) + 1 : 0);
+      solvedAt += random.nextInt(60_000);
+      out.writeLong(solvedAt);
+      out.writeInt(branches);
+      for (int b = 0; b < branches; b++) {
+        out.writeInt(id + 1 + random.nextInt(1000));
+      }
+      out.writeInt(details.length);
+      out.write(details);
+      out.writeInt(solution.length);
+      out.write(solution);
+    }
+    archive = bytes.toByteArray();
+    file = Files.createTempFile("archive-" + compression, ".blocks");
+    write();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    System.out.printf("%n%s: %,d bytes compressed to %,d (%.1f%%)%n", compression,
+        archive.length, Files.size(file), 100.0 * Files.size(file) / archive.length);
+    Files.deleteIfExists(file);
+  }
+
+  @Benchmark
+  public Path write() throws IOException {
+    try (OutputStream out = new BlockOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(file)), compression)) {
+      out.write(archive);
+    }
+    return file;
+  }
+
+  @Benchmark
+  public long read() throws IOException {
+    byte[] buffer = new byte[BlockOutputStream.BLOCK_BYTES];
+    long total = 0;
+    try (InputStream in =
+        new BlockInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      for (int read; (read = in.read(buffer)) >= 0; ) {
+        total += read;
+      }
+    }
+    return total;
+  }
+
+  private static byte[] sentence(Random random, int words) {
+    StringBuilder sentence = new StringBuilder();
+    for (int w = 0; w < words; w++) {
+      sentence.append(w == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return sentence.append('?').toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,105 @@
+package ksp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import ksp.exceptions.IllegalRequestException;
+import ksp.utilities.RequestDirection;
+import ksp.utilities.Team;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how reads of one shared graph scale with the number of reader threads, alone and
+ * while a writer keeps editing requests. Run it with JMH's {@code -t} option at 1, 2, 4... to
+ * compare the throughput per thread count; reads share the read lock, so they should scale with
+ * cores until the writer holds them up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class GraphReadScalingBenchmark {
+  private static final String[] WORDS = {
+      "cpu", "enclosure", "diameter", "engine", "fuel", "ratio", "carbon", "fibre", "nose",
+      "cone", "sponsor", "budget", "avionics", "parachute", "altitude", "telemetry", "battery"};
+
+  @Param({"10000"})
+  public int requests;
+
+  private RequestGraph requestGraph;
+  private final List<RequestNode> nodes = new ArrayList<>();
+
+  @Setup
+  public void setUp() throws IllegalRequestException {
+    requestGraph = new RequestGraph(new ArrayList<>());
+    Random random = new Random(42);
+    for (int i = 0; i < requests; i++) {
+      RequestNode source = i % 4 == 0 ? null : nodes.get(random.nextInt(nodes.size()));
+      nodes.add(RequestBuilder.ANewRequest(
+              source == null ? Team.SYSTEMS : source.getRequestee(), Team.values()[i % 4])
+          .inGraph(requestGraph)
+          .withQuery(sentence(random))
+          .toSolve(source)
+          .build());
+    }
+  }
+
+  @Benchmark
+  public int findRequestsByTeam() {
+    return requestGraph.findRequests(RequestDirection.TO, Team.AVIONICS).size();
+  }
+
+  @Benchmark
+  public int getImmediateProblems() {
+    return requestGraph.getImmediateProblems(Team.AVIONICS).size();
+  }
+
+  @Benchmark
+  public int findRequestsByKeywords() {
+    return requestGraph.findRequests("diameter of the cpu enclosure", 10).size();
+  }
+
+  @Benchmark
+  @Group("readWhileWriting")
+  @GroupThreads(3)
+  public int readWhileWriting() {
+    return requestGraph.getImmediateProblems(Team.AVIONICS).size();
+  }
+
+  @Benchmark
+  @Group("readWhileWriting")
+  @GroupThreads(1)
+  public void writeWhileReading(WriterState writer) {
+    RequestNode request = nodes.get(writer.random.nextInt(nodes.size()));
+    request.setDetails(sentence(writer.random), requestGraph);
+  }
+
+  /** Each writer thread draws its own edits. */
+  @State(Scope.Thread)
+  public static class WriterState {
+    final Random random = new Random(7);
+  }
+
+  private static String sentence(Random random) {
+    StringBuilder details = new StringBuilder("What");
+    for (int w = 0; w < 12; w++) {
+      details.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return details.append('?').toString();
+  }
+}
@@ -0,0 +1,89 @@
+package ksp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import ksp.exceptions.IllegalRequestException;
+import ksp.storage.AtomicWriteBatch;
+import ksp.storage.BucketCodec;
+import ksp.utilities.IDGenerator;
+import ksp.utilities.Metadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of drawing a request ID that survives a crash: saving the generator state
+ * after every ID, as each new request used to, or saving a lease once per block of IDs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@Threads(4)
+public class IDAllocationBenchmark {
+  private Path directory;
+  private Path metadataBucket;
+  private IDGenerator leased;
+  private IDGenerator unleased;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("id-allocation");
+    metadataBucket = directory.resolve("metadata-bucket.data");
+    leased = new IDGenerator(leasedThrough -> {
+      save((int) (leasedThrough + IDGenerator.BLOCK_SIZE));
+      return leasedThrough + IDGenerator.BLOCK_SIZE;
+    });
+    unleased = new IDGenerator();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Benchmark
+  public int saveEveryId() throws IllegalRequestException {
+    int id = unleased.generateNewID();
+    synchronized (this) { // one metadata bucket, so saves take turns
+      save(id);
+    }
+    return id;
+  }
+
+  @Benchmark
+  public int saveEveryBlock() throws IllegalRequestException {
+    return leased.generateNewID();
+  }
+
+  private void save(int leasedThrough) {
+    try {
+      AtomicWriteBatch batch = new AtomicWriteBatch();
+      BucketCodec.writeMetadata(batch.stage(metadataBucket), new Metadata(leasedThrough));
+      batch.commit();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
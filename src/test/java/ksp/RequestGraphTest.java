@@ -3,7 +3,14 @@ package ksp;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 
@@ -14,21 +21,58 @@ import com.google.cloud.storage.Bucket;
 import com.google.cloud.storage.BucketInfo;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
 import com.google.common.collect.Lists;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 import ksp.exceptions.IllegalRequestException;
+import ksp.storage.AtomicWriteBatch;
+import ksp.storage.BucketCodec;
+import ksp.storage.CloudStorageBackend;
+import ksp.storage.Compression;
+import ksp.storage.NodeRecord;
+import ksp.storage.SaveDirectoryLock;
+import ksp.storage.StaleObjectException;
+import ksp.utilities.ArchiveNode;
 import ksp.utilities.IDGenerator;
+import ksp.utilities.Metadata;
 import ksp.utilities.RequestDirection;
 import ksp.utilities.Team;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class RequestGraphTest {
   RequestGraph requestGraph = new RequestGraph(new ArrayList<>());
-  boolean successfulIDGenCreation = IDGenerator.init(0);
+
+  @Rule
+  public TemporaryFolder saveDirectory = new TemporaryFolder();
 
   @Test
   public void addingASingleRootRequestCorrectlyLinksToGraph(){
@@ -157,6 +201,40 @@ public class RequestGraphTest {
                     """,requestGraph.toString());
   }
 
+  @Test
+  public void searchUsingIDReturnsDeeplyNestedRequest(){
+    RequestNode deepBranch = null;
+
+    try {
+      RequestNode root = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.AVIONICS)
+          .inGraph(requestGraph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+
+      RequestNode branch = RequestBuilder.ANewRequest(Team.AVIONICS,Team.STRUCTURES)
+          .inGraph(requestGraph)
+          .withQuery("What's the diameter of the inner tube where the CPUs sit?")
+          .toSolve(root).build();
+
+      deepBranch = RequestBuilder.ANewRequest(Team.STRUCTURES,Team.PROPULSION)
+          .inGraph(requestGraph)
+          .withQuery("How much vibration does the engine produce?")
+          .toSolve(branch).build();
+    } catch (
+        IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+
+    assertEquals(deepBranch, requestGraph.findRequest(3));
+    assertNull(requestGraph.findRequest(4));
+
+    requestGraph.resolveRequest(requestGraph.findRequest(2), "About 10cm");
+
+    assertNull(requestGraph.findRequest(2));
+    assertNull(requestGraph.findRequest(3));
+    assertEquals(1, requestGraph.findRequest(1).getID());
+  }
+
   @Test
   public void searchUsingRequesterReturnsCorrectRequests(){
 
@@ -253,6 +331,44 @@ public class RequestGraphTest {
                     """,requestGraph.toString());
   }
 
+  @Test
+  public void searchUsingTeamOnlyReturnsUnresolvedRequests(){
+    RequestNode root = null;
+    RequestNode branch = null;
+
+    try {
+      root = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.AVIONICS)
+          .inGraph(requestGraph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+
+      branch = RequestBuilder.ANewRequest(Team.AVIONICS,Team.STRUCTURES)
+          .inGraph(requestGraph)
+          .withQuery("What's the diameter of the inner tube where the CPUs sit?")
+          .toSolve(root).build();
+
+      RequestBuilder.ANewRequest(Team.SYSTEMS,Team.STRUCTURES)
+          .inGraph(requestGraph)
+          .withQuery("Are we using carbon fibre?")
+          .build();
+    } catch (
+        IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+
+    assertThat("List equality without order",
+        requestGraph.findRequests(RequestDirection.TO, Team.STRUCTURES),
+        containsInAnyOrder(List.of(branch, requestGraph.findRequest(3)).toArray()));
+
+    requestGraph.resolveRequest(root, "Two");
+
+    assertEquals(List.of(requestGraph.findRequest(3)),
+        requestGraph.findRequests(RequestDirection.FROM, Team.SYSTEMS));
+    assertEquals(List.of(requestGraph.findRequest(3)),
+        requestGraph.findRequests(RequestDirection.TO, Team.STRUCTURES));
+    assertTrue(requestGraph.findRequests(RequestDirection.FROM, Team.AVIONICS).isEmpty());
+  }
+
   @Test
   public void searchForPhraseReturnsCorrectRequests(){
 
@@ -295,6 +411,214 @@ public class RequestGraphTest {
         containsInAnyOrder(List.of(requestGraph.findRequest(2),requestGraph.findRequest(1)).toArray()));
   }
 
+  @Test
+  public void searchForPhraseReflectsEditedAndResolvedRequests(){
+    RequestNode cpuRequest = null;
+
+    try {
+      cpuRequest = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.AVIONICS)
+          .inGraph(requestGraph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+
+      RequestBuilder.ANewRequest(Team.PROPULSION,Team.SPONSORSHIP)
+          .inGraph(requestGraph)
+          .withQuery("What engine do we have money for?")
+          .build();
+    } catch (
+        IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+
+    cpuRequest.setDetails("Which flight computer are you using?", requestGraph);
+
+    assertTrue(requestGraph.findRequests("CPU").isEmpty());
+    assertEquals(List.of(cpuRequest), requestGraph.findRequests("computer"));
+
+    requestGraph.resolveRequest(cpuRequest, "A Raspberry Pi for now");
+
+    assertTrue(requestGraph.findRequests("computer").isEmpty());
+    assertEquals(1, requestGraph.findInArchivedRequests("computer").size());
+    assertEquals(1, requestGraph.findInArchivedSolutions("raspberry").size());
+    assertTrue(requestGraph.findInArchivedSolutions("engine").isEmpty());
+    assertEquals("Which flight computer are you using?", requestGraph.findArchivedRequest(1).details());
+  }
+
+  @Test
+  public void searchForPhraseRanksMostRelevantRequestsFirst(){
+    try {
+      RequestBuilder.ANewRequest(Team.SYSTEMS,Team.STRUCTURES)
+          .inGraph(requestGraph)
+          .withQuery("Who supplies our carbon?")
+          .build();
+
+      RequestBuilder.ANewRequest(Team.SYSTEMS,Team.STRUCTURES)
+          .inGraph(requestGraph)
+          .withQuery("Are we using carbon fibre for the carbon fibre body tube?")
+          .build();
+
+      RequestBuilder.ANewRequest(Team.SYSTEMS,Team.STRUCTURES)
+          .inGraph(requestGraph)
+          .withQuery("Is the fibre glass nose cone finished?")
+          .build();
+
+      RequestBuilder.ANewRequest(Team.SYSTEMS,Team.AVIONICS)
+          .inGraph(requestGraph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+    } catch (
+        IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+
+    assertEquals(List.of(requestGraph.findRequest(2), requestGraph.findRequest(1),
+            requestGraph.findRequest(3)), requestGraph.findRequests("carbon fibre"));
+    assertEquals(List.of(requestGraph.findRequest(2)), requestGraph.findRequests("carbon fibre", 1));
+    assertTrue(requestGraph.findRequests("engine").isEmpty());
+  }
+
+  @Test
+  public void similarArchivedRequestsAreFoundByDetailsAndSolution(){
+    RequestNode fuelRequest = null;
+    RequestNode cpuRequest = null;
+
+    try {
+      fuelRequest = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.PROPULSION)
+          .inGraph(requestGraph)
+          .withQuery("What fuel ratio are we using?")
+          .build();
+
+      cpuRequest = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.AVIONICS)
+          .inGraph(requestGraph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+    } catch (
+        IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+
+    requestGraph.resolveRequest(fuelRequest, "Six to one");
+    requestGraph.resolveRequest(cpuRequest, "We are using two flight computers");
+
+    assertEquals(List.of(requestGraph.findArchivedRequest(1)),
+        requestGraph.findSimilarArchivedRequests("What fuel ratio do we use?", 0.4));
+    assertEquals(List.of(requestGraph.findArchivedRequest(2)),
+        requestGraph.findSimilarArchivedRequests("Are we using two flight computers?", 0.4));
+    assertTrue(requestGraph.findSimilarArchivedRequests("Is the nose cone painted?", 0.4).isEmpty());
+  }
+
+  @Test
+  public void twoWordQueriesFindTheArchivedRequestsHoldingTheirWords() throws Exception {
+    RequestNode fuelRequest = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.PROPULSION)
+        .inGraph(requestGraph)
+        .withQuery("What fuel ratio are we using for the hot fire test?")
+        .build();
+    RequestNode cpuRequest = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.AVIONICS)
+        .inGraph(requestGraph)
+        .withQuery("How many CPUS are you using?")
+        .build();
+    requestGraph.resolveRequest(fuelRequest, "Six to one");
+    requestGraph.resolveRequest(cpuRequest, "We are using two flight computers");
+
+    assertEquals(List.of(requestGraph.findArchivedRequest(fuelRequest.getID())),
+        requestGraph.findSimilarArchivedRequests("Fuel ratio?", 0.5));
+    assertEquals(List.of(requestGraph.findArchivedRequest(cpuRequest.getID())),
+        requestGraph.findSimilarArchivedRequests("flight computers", 0.5));
+    assertTrue(requestGraph.findSimilarArchivedRequests("nose cone", 0.5).isEmpty());
+  }
+
+  @Test
+  public void archivedRequestsCanBeFoundByTeamAndSolutionDate(){
+    RequestNode fuelRequest = null;
+    RequestNode cpuRequest = null;
+
+    try {
+      fuelRequest = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.PROPULSION)
+          .inGraph(requestGraph)
+          .withQuery("What fuel ratio are we using?")
+          .build();
+
+      cpuRequest = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.AVIONICS)
+          .inGraph(requestGraph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+    } catch (
+        IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+
+    Date beforeSolving = new Date(System.currentTimeMillis() - 1000);
+    requestGraph.resolveRequest(fuelRequest, "Six to one");
+    requestGraph.resolveRequest(cpuRequest, "Two");
+    Date afterSolving = new Date(System.currentTimeMillis() + 1000);
+
+    ArchiveNode fuelArchive = requestGraph.findArchivedRequest(1);
+    ArchiveNode cpuArchive = requestGraph.findArchivedRequest(2);
+
+    assertEquals(List.of(fuelArchive, cpuArchive),
+        requestGraph.findArchivedRequests(RequestDirection.FROM, Team.SYSTEMS));
+    assertEquals(List.of(cpuArchive),
+        requestGraph.findArchivedRequests(RequestDirection.TO, Team.AVIONICS));
+    assertEquals(List.of(fuelArchive, cpuArchive),
+        requestGraph.findArchivedRequests(beforeSolving, afterSolving));
+    assertEquals(List.of(fuelArchive), requestGraph.findArchivedRequests(
+        RequestDirection.TO, Team.PROPULSION, beforeSolving, afterSolving));
+    assertTrue(requestGraph.findArchivedRequests(new Date(0), beforeSolving).isEmpty());
+  }
+
+  @Test
+  public void archivingABranchRequestOnlyKeepsLinkedRequestIDs(){
+    RequestNode root = null;
+    RequestNode branch = null;
+
+    try {
+      root = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.AVIONICS)
+          .inGraph(requestGraph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+
+      branch = RequestBuilder.ANewRequest(Team.AVIONICS,Team.STRUCTURES)
+          .inGraph(requestGraph)
+          .withQuery("What's the diameter of the inner tube where the CPUs sit?")
+          .toSolve(root).build();
+
+      RequestBuilder.ANewRequest(Team.STRUCTURES,Team.PROPULSION)
+          .inGraph(requestGraph)
+          .withQuery("How much vibration does the engine produce?")
+          .toSolve(branch).build();
+    } catch (
+        IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+
+    requestGraph.resolveRequest(branch, "10cm");
+    ArchiveNode archived = requestGraph.findArchivedRequest(2);
+
+    assertEquals(1, archived.sourceId());
+    assertEquals(List.of(3), archived.branchIds());
+    assertEquals(
+        "Branch Request #2 from Avionics to Structures: What's the diameter of the inner tube where the CPUs sit?",
+        archived.requestToString());
+  }
+
+  @Test
+  public void legacyArchiveEntriesAreMigratedToFlatRecords() throws Exception {
+    List<?> stored;
+    try (ObjectInputStream in = new LegacyArchiveNode.Reader(
+        getClass().getResourceAsStream("/legacy-archive-bucket.data"))) {
+      stored = (List<?>) in.readObject();
+    }
+
+    ArchiveNode migrated = ((LegacyArchiveNode) stored.get(0)).migrate();
+
+    assertEquals(1, migrated.id());
+    assertEquals(Team.SYSTEMS, migrated.requester());
+    assertEquals(Team.PROPULSION, migrated.requestee());
+    assertEquals("What fuel ratio are we using?", migrated.details());
+    assertTrue(migrated.isRoot());
+    assertEquals("Realised we dont need this. Sorry", migrated.solution());
+  }
+
   @Test
   public void addingABranchFromExistingRequestUpdatesGraph(){
     RequestNode mainNode = null;
@@ -526,6 +850,875 @@ public class RequestGraphTest {
         requestGraph.findRequest(4),
         requestGraph.findRequest(5)).toArray()));
   }
+
+  @Test
+  public void immediateProblemsAreUpdatedAsBranchesAreAddedAndResolved(){
+    RequestNode root = null;
+    RequestNode branch = null;
+    RequestNode anotherRoot = null;
+
+    try {
+      root = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.AVIONICS)
+          .inGraph(requestGraph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+
+      assertEquals(List.of(root), requestGraph.getImmediateProblems());
+
+      branch = RequestBuilder.ANewRequest(Team.AVIONICS,Team.STRUCTURES)
+          .inGraph(requestGraph)
+          .withQuery("What's the diameter of the inner tube where the CPUs sit?")
+          .toSolve(root).build();
+
+      anotherRoot = RequestBuilder.ANewRequest(Team.PROPULSION,Team.AVIONICS)
+          .inGraph(requestGraph)
+          .withQuery("How much power do the CPUs draw?")
+          .build();
+    } catch (
+        IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+
+    assertThat("List equality without order", requestGraph.getImmediateProblems(),
+        containsInAnyOrder(List.of(branch, anotherRoot).toArray()));
+    assertEquals(List.of(anotherRoot), requestGraph.getImmediateProblems(Team.AVIONICS));
+    assertEquals(List.of(branch), requestGraph.getImmediateProblems(Team.STRUCTURES));
+
+    requestGraph.resolveRequest(branch, "10cm");
+
+    assertThat("List equality without order", requestGraph.getImmediateProblems(Team.AVIONICS),
+        containsInAnyOrder(List.of(root, anotherRoot).toArray()));
+    assertTrue(requestGraph.getImmediateProblems(Team.STRUCTURES).isEmpty());
+
+    requestGraph.resolveRequest(root, "Two");
+
+    assertEquals(List.of(anotherRoot), requestGraph.getImmediateProblems());
+  }
+
+  @Test
+  public void changesSinceTheLastCheckpointAreReplayedFromTheJournal() throws IOException {
+    String directory = saveDirectory.getRoot().getPath();
+    RequestGraph savedGraph = new RequestGraph(directory);
+    RequestNode root = null;
+    RequestNode branch = null;
+    try {
+      root = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.AVIONICS)
+          .inGraph(savedGraph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+      savedGraph.addNewRequest(root);
+      branch = RequestBuilder.ANewRequest(Team.AVIONICS,Team.STRUCTURES)
+          .inGraph(savedGraph)
+          .withQuery("What's the diameter of the inner tube where the CPUs sit?")
+          .toSolve(root).build();
+      savedGraph.addNewRequest(branch);
+    } catch (IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+    root.setDetails("How many CPUs and GPUs are you using?", savedGraph);
+    savedGraph.resolveRequest(branch, "10cm");
+
+    // simulate a crash part way through appending the next change
+    try (FileOutputStream journal =
+        new FileOutputStream(new File(directory, "request-journal.data"), true)) {
+      journal.write(new byte[] {0, 0, 0, 42, 1, 2, 3});
+    }
+
+    RequestGraph reloaded = new RequestGraph(directory);
+    RequestNode reloadedRoot = reloaded.findRequest(root.getID());
+    assertEquals("How many CPUs and GPUs are you using?", reloadedRoot.getDetails());
+    assertTrue(reloadedRoot.isTip());
+    assertNull(reloaded.findRequest(branch.getID()));
+    assertEquals("10cm", reloaded.findArchivedRequest(branch.getID()).solution());
+    assertEquals(IDGenerator.BLOCK_SIZE, reloaded.getIDGenerator().saveState()); // leased
+
+    reloaded.checkpoint();
+    assertEquals(9, new File(directory, "request-journal.data").length()); // only the header
+    reloaded.close(); // writes the checkpoint
+    assertEquals(List.of(reloaded.findRequest(root.getID())),
+        new RequestGraph(directory).findRequests("GPUs"));
+  }
+
+  @Test
+  public void branchesGivenToANewRequestAreReplayedFromTheJournal() throws Exception {
+    String directory = saveDirectory.getRoot().getPath();
+    try (RequestGraph savedGraph = new RequestGraph(directory)) {
+      RequestNode branch = RequestBuilder.ANewRequest(Team.AVIONICS, Team.STRUCTURES)
+          .inGraph(savedGraph)
+          .withQuery("What's the diameter of the inner tube?")
+          .build();
+      RequestNode root = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.AVIONICS)
+          .inGraph(savedGraph)
+          .withQuery("How many CPUs are you using?")
+          .withBranch(branch)
+          .build();
+      assertEquals(root, branch.getSource());
+      assertEquals(List.of(branch), root.getBranches());
+
+      try (RequestGraph reloaded = new RequestGraph(directory)) { // before any checkpoint
+        RequestNode reloadedBranch = reloaded.findRequest(branch.getID());
+        assertEquals(root.getID(), reloadedBranch.getSource().getID());
+        assertEquals(List.of(reloadedBranch), reloaded.findRequest(root.getID()).getBranches());
+        assertEquals(List.of(reloadedBranch), reloaded.getImmediateProblems());
+      }
+    }
+  }
+
+  @Test
+  public void longBranchChainsSurviveASaveAndReload() {
+    String directory = saveDirectory.getRoot().getPath();
+    RequestGraph savedGraph = new RequestGraph(directory);
+    Team[] teams = {Team.SYSTEMS, Team.AVIONICS};
+    RequestNode tip = null;
+    try {
+      for (int i = 0; i < 20000; i++) {
+        tip = RequestBuilder.ANewRequest(teams[i % 2], teams[(i + 1) % 2])
+            .inGraph(savedGraph)
+            .withQuery("Follow up question " + i)
+            .toSolve(tip)
+            .build();
+      }
+    } catch (IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+    savedGraph.checkpoint();
+    savedGraph.close(); // writes the checkpoint
+
+    RequestGraph reloaded = new RequestGraph(directory);
+    RequestNode reloadedTip = reloaded.findRequest(tip.getID());
+    assertEquals("Follow up question 19999", reloadedTip.getDetails());
+    assertEquals(List.of(reloadedTip), reloaded.getImmediateProblems());
+    int depth = 0;
+    for (RequestNode request = reloadedTip; !request.isRoot(); request = request.getSource()) {
+      depth++;
+    }
+    assertEquals(19999, depth);
+  }
+
+  @Test
+  public void bucketsLoadedInParallelAreIndexedAsBeforeTheyWereSaved() {
+    String directory = saveDirectory.getRoot().getPath();
+    RequestGraph savedGraph = new RequestGraph(directory);
+    List<RequestNode> tips = new ArrayList<>();
+    try {
+      for (int i = 0; i < 300; i++) {
+        RequestNode root = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.values()[i % 4])
+            .inGraph(savedGraph)
+            .withQuery("Thermal question " + i)
+            .build();
+        tips.add(RequestBuilder.ANewRequest(Team.values()[i % 4], Team.PROPULSION)
+            .inGraph(savedGraph)
+            .withQuery("Nozzle follow up " + i)
+            .toSolve(root)
+            .build());
+      }
+    } catch (IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+    savedGraph.resolveRequest(tips.get(0), "Use the ablative liner");
+    savedGraph.checkpoint();
+    assertTrue(savedGraph.flush());
+
+    RequestGraph reloaded = new RequestGraph(directory);
+    assertThat(reloaded.getImmediateProblems(),
+        containsInAnyOrder(savedGraph.getImmediateProblems().toArray()));
+    assertEquals(savedGraph.findRequests(RequestDirection.FROM, Team.SYSTEMS),
+        reloaded.findRequests(RequestDirection.FROM, Team.SYSTEMS));
+    assertEquals(savedGraph.findRequests("Nozzle", 10), reloaded.findRequests("Nozzle", 10));
+    assertEquals(List.of(tips.get(0).getID()),
+        reloaded.findInArchivedSolutions("ablative").stream().map(ArchiveNode::id).toList());
+    assertEquals(Arrays.asList(RequestGraph.LoadPhase.values()),
+        new ArrayList<>(reloaded.loadTimings().keySet()));
+  }
+
+  @Test
+  public void requestsSolvedWhileTheArchiveLoadsAreIndexed() {
+    String directory = saveDirectory.getRoot().getPath();
+    List<RequestNode> requests = new ArrayList<>();
+    try (RequestGraph savedGraph = new RequestGraph(directory)) {
+      for (int i = 0; i < 2000; i++) {
+        requests.add(RequestBuilder.ANewRequest(Team.SYSTEMS, Team.PROPULSION)
+            .inGraph(savedGraph)
+            .withQuery("Injector question " + i)
+            .build());
+      }
+      for (RequestNode request : requests.subList(0, 1999)) {
+        savedGraph.resolveRequest(request, "Swirl injector");
+      }
+      savedGraph.checkpoint();
+    } catch (IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+
+    try (RequestGraph reloaded = new RequestGraph(directory)) {
+      reloaded.resolveRequest(reloaded.findRequest(requests.get(1999).getID()),
+          "Pintle injector");
+
+      assertTrue(reloaded.isArchiveLoaded());
+      assertEquals(List.of(requests.get(1999).getID()),
+          reloaded.findInArchivedSolutions("pintle").stream().map(ArchiveNode::id).toList());
+      assertEquals(2000,
+          reloaded.findArchivedRequests(RequestDirection.TO, Team.PROPULSION).size());
+    }
+  }
+
+  @Test
+  public void tenantsKeepTheirOwnRequestsAndTheLeastRecentlyUsedAreEvicted() throws Exception {
+    try (GraphRegistry registry = new GraphRegistry(saveDirectory.getRoot().toPath(), 3)) {
+      RequestGraph alpha;
+      try (GraphRegistry.Lease lease = registry.open("alpha")) {
+        alpha = lease.graph();
+        RequestBuilder.ANewRequest(Team.SYSTEMS, Team.AVIONICS).inGraph(alpha)
+            .withQuery("What is the CPU enclosure diameter?").build();
+        RequestBuilder.ANewRequest(Team.SYSTEMS, Team.PROPULSION).inGraph(alpha)
+            .withQuery("What is the fuel ratio?").build();
+      }
+      try (GraphRegistry.Lease lease = registry.open("beta")) {
+        RequestNode betaRequest = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.STRUCTURES)
+            .inGraph(lease.graph()).withQuery("What is the nose cone made of?").build();
+        assertEquals(1, betaRequest.getID()); // each tenant has its own IDs
+      }
+      try (GraphRegistry.Lease lease = registry.open("alpha")) {
+        assertEquals(alpha, lease.graph());
+        assertTrue(alpha.findRequests("nose cone").isEmpty());
+      }
+
+      try (GraphRegistry.Lease lease = registry.open("gamma")) { // 3 requests, so within budget
+        assertEquals(List.of("beta", "alpha", "gamma"), registry.openTenants());
+        RequestBuilder.ANewRequest(Team.SYSTEMS, Team.AVIONICS).inGraph(lease.graph())
+            .withQuery("What telemetry rate do we need?").build();
+      }
+
+      registry.open("alpha").close(); // 4 requests, so beta goes
+      assertEquals(List.of("gamma", "alpha"), registry.openTenants());
+      assertThrows(IllegalArgumentException.class, () -> registry.open("../alpha"));
+
+      try (GraphRegistry.Lease lease = registry.open("beta")) {
+        RequestGraph reloadedBeta = lease.graph();
+        assertEquals("What is the nose cone made of?", reloadedBeta.findRequest(1).getDetails());
+        assertEquals(IDGenerator.BLOCK_SIZE, reloadedBeta.getIDGenerator().saveState());
+        assertEquals(List.of("alpha", "beta"), registry.openTenants());
+      }
+    }
+    assertTrue(new File(saveDirectory.getRoot(), "gamma/request-graph-bucket.data").length() > 0);
+  }
+
+  @Test
+  public void graphsAreOnlyEvictedOnceTheirLeasesAreClosed() throws Exception {
+    try (GraphRegistry registry = new GraphRegistry(saveDirectory.getRoot().toPath(), 1)) {
+      GraphRegistry.Lease alpha = registry.open("alpha");
+      RequestBuilder.ANewRequest(Team.SYSTEMS, Team.AVIONICS).inGraph(alpha.graph())
+          .withQuery("What is the CPU enclosure diameter?").build();
+      try (GraphRegistry.Lease beta = registry.open("beta")) {
+        RequestBuilder.ANewRequest(Team.SYSTEMS, Team.STRUCTURES).inGraph(beta.graph())
+            .withQuery("What is the nose cone made of?").build();
+        registry.open("gamma").close(); // over budget, but alpha and beta are in use
+        assertEquals(List.of("alpha", "beta"), registry.openTenants());
+        assertFalse(registry.evict("alpha"));
+        assertEquals("What is the CPU enclosure diameter?",
+            alpha.graph().findRequest(1).getDetails()); // still open
+      }
+      assertEquals(List.of("alpha"), registry.openTenants()); // beta is no longer in use
+
+      alpha.close();
+      alpha.close(); // has no further effect
+      registry.open("beta").close();
+      assertEquals(List.of("beta"), registry.openTenants());
+      try (GraphRegistry.Lease reopened = registry.open("alpha")) {
+        assertEquals("What is the CPU enclosure diameter?",
+            reopened.graph().findRequest(1).getDetails());
+      }
+    }
+  }
+
+  @Test
+  public void idsCarryOnPastTheSavedLeaseAfterACrash() throws Exception {
+    String directory = saveDirectory.getRoot().getPath();
+    RequestGraph crashedGraph = new RequestGraph(directory);
+    RequestNode created = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.AVIONICS)
+        .inGraph(crashedGraph).withQuery("How many CPUs are you using?").build();
+    // crash before any checkpoint, losing the journal too
+    assertTrue(new File(directory, "request-journal.data").delete());
+
+    RequestGraph reloaded = new RequestGraph(directory);
+    assertNull(reloaded.findRequest(created.getID()));
+    RequestNode next = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.AVIONICS)
+        .inGraph(reloaded).withQuery("How many GPUs are you using?").build();
+    assertEquals(IDGenerator.BLOCK_SIZE + 1, next.getID()); // the next unused block
+  }
+
+  @Test
+  public void idsDrawnConcurrentlyAreUniqueAndLeasedOncePerBlock() throws Exception {
+    List<Long> leases = Collections.synchronizedList(new ArrayList<>());
+    IDGenerator generator = new IDGenerator(leasedThrough -> {
+      leases.add(leasedThrough);
+      return leasedThrough + IDGenerator.BLOCK_SIZE;
+    });
+    ExecutorService drawers = Executors.newFixedThreadPool(4);
+    List<Future<int[]>> draws = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      draws.add(drawers.submit(() -> {
+        int[] ids = new int[5000];
+        for (int i = 0; i < ids.length; i++) {
+          ids[i] = generator.generateNewID();
+        }
+        return ids;
+      }));
+    }
+    Set<Integer> drawn = new HashSet<>();
+    for (Future<int[]> draw : draws) {
+      for (int id : draw.get()) {
+        assertTrue(drawn.add(id));
+      }
+    }
+    drawers.shutdown();
+    assertEquals(20_000, Collections.max(drawn).intValue());
+    assertEquals(20, leases.size());
+    assertEquals(20 * IDGenerator.BLOCK_SIZE, generator.saveState());
+
+    generator.init(Integer.MAX_VALUE - IDGenerator.BLOCK_SIZE);
+    for (long id = Integer.MAX_VALUE - IDGenerator.BLOCK_SIZE + 1; id <= Integer.MAX_VALUE; id++) {
+      assertEquals(id, generator.generateNewID());
+    }
+    assertThrows(IllegalRequestException.class, generator::generateNewID); // rather than wrap
+    assertEquals(Integer.MAX_VALUE, generator.saveState());
+
+    generator.init(Integer.MAX_VALUE - 1); // a whole block no longer fits
+    assertThrows(IllegalRequestException.class, generator::generateNewID);
+    assertEquals(Integer.MAX_VALUE - 1, generator.saveState());
+  }
+
+  @Test
+  public void sessionsSharingASaveDirectoryMergeTheirChanges() throws Exception {
+    String directory = saveDirectory.getRoot().getPath();
+    RequestGraph first = new RequestGraph(directory);
+    RequestGraph second = new RequestGraph(directory);
+    RequestNode root = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.AVIONICS)
+        .inGraph(first).withQuery("How many CPUs are you using?").build();
+    second.refresh();
+    RequestNode branch = RequestBuilder.ANewRequest(Team.AVIONICS, Team.STRUCTURES)
+        .inGraph(second).withQuery("What's the diameter of the inner tube?")
+        .toSolve(second.findRequest(root.getID())).build();
+    assertEquals(1, root.getID());
+    assertEquals(IDGenerator.BLOCK_SIZE + 1, branch.getID()); // the next block on disk
+
+    root.setDetails("How many CPUs and GPUs are you using?", first);
+    second.resolveRequest(branch, "10cm");
+    first.resolveRequest(first.findRequest(root.getID()), "4 CPUs and a GPU"); // catches up first
+    assertEquals("10cm", first.findArchivedRequest(branch.getID()).solution());
+    assertEquals(2, first.getArchive().size()); // branch archived once, not again by first
+
+    // first's checkpoint is written after second's newer one, which it must not replace
+    first.checkpoint();
+    RequestNode later = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.PROPULSION)
+        .inGraph(second).withQuery("What fuel ratio are we using?").build();
+    second.checkpoint();
+    assertTrue(second.flush());
+    assertTrue(first.flush());
+    first.close();
+    second.close();
+
+    RequestGraph reloaded = new RequestGraph(directory);
+    assertEquals("What fuel ratio are we using?", reloaded.findRequest(later.getID()).getDetails());
+    assertNull(reloaded.findRequest(root.getID()));
+    assertEquals("How many CPUs and GPUs are you using?",
+        reloaded.findArchivedRequest(root.getID()).details());
+    assertEquals(2, reloaded.getArchive().size());
+  }
+
+  @Test
+  public void readsDoNotWaitForAnotherSessionCommitting() throws Exception {
+    String directory = saveDirectory.getRoot().getPath();
+    ExecutorService sessions = Executors.newFixedThreadPool(2);
+    try (RequestGraph first = new RequestGraph(directory);
+        RequestGraph second = new RequestGraph(directory)) {
+      RequestBuilder.ANewRequest(Team.SYSTEMS, Team.AVIONICS)
+          .inGraph(first).withQuery("How many CPUs are you using?").build();
+      SaveDirectoryLock otherSession = new SaveDirectoryLock(Path.of(directory));
+      CountDownLatch committing = new CountDownLatch(1);
+      CountDownLatch finish = new CountDownLatch(1);
+      Future<RequestNode> commit = sessions.submit(() -> {
+        SaveDirectoryLock.Hold held = otherSession.acquire();
+        try {
+          RequestNode created = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.PROPULSION)
+              .inGraph(second).withQuery("What fuel ratio are we using?").build();
+          committing.countDown();
+          finish.await();
+          return created;
+        } finally {
+          held.close();
+        }
+      });
+      committing.await();
+
+      Future<Integer> read = sessions.submit(() -> {
+        first.refresh(); // cannot catch up while the other session commits
+        return first.findRequests(RequestDirection.FROM, Team.SYSTEMS).size();
+      });
+      try {
+        assertEquals(1, read.get(5, TimeUnit.SECONDS).intValue());
+      } finally {
+        finish.countDown();
+      }
+      RequestNode created = commit.get();
+      first.refresh();
+      assertEquals(created.getDetails(), first.findRequest(created.getID()).getDetails());
+    } finally {
+      sessions.shutdown();
+    }
+  }
+
+  @Test
+  public void consolesConnectedToAServerShareItsGraph() throws Exception {
+    RequestTracker.requestGraph = new RequestGraph(saveDirectory.getRoot().getPath());
+    try (RequestServer server = new RequestServer(0,
+        Map.of(Team.SYSTEMS, "systems-token", Team.AVIONICS, "avionics-token"))) {
+      RequestClient systems = new RequestClient(server.port(), Team.SYSTEMS, "systems-token");
+      RequestClient avionics = new RequestClient(server.port(), Team.AVIONICS, "avionics-token");
+      assertThat(systems.send("request \"How many CPUs are you using?\" avionics").output(),
+          containsString("Added Request"));
+      assertThat(avionics.send("display received").output(),
+          containsString("How many CPUs are you using?"));
+      int id = RequestTracker.requestGraph.findRequests("CPUs").get(0).getID();
+
+      // only avionics is asked, so systems is asked to confirm before solving it
+      RequestClient.Reply unconfirmed = systems.send("solve " + id + " \"Four\"");
+      assertThat(unconfirmed.question(), containsString("Would you still like to continue?"));
+      assertThat(unconfirmed.output(), containsString("is not for your team"));
+      assertFalse(unconfirmed.output().contains("Invalid command"));
+      assertNotNull(RequestTracker.requestGraph.findRequest(id));
+      RequestClient.Reply otherQuestion =
+          systems.send("solve " + id + " \"Four\"", List.of("Do you still want to make it?"));
+      assertEquals(unconfirmed, otherQuestion); // only the question confirmed is answered yes
+      RequestClient.Reply confirmed =
+          systems.send("solve " + id + " \"Four\"", List.of(unconfirmed.question()));
+      assertNull(confirmed.question());
+      assertFalse(confirmed.output().contains("is not for your team")); // sent once, before
+      assertThat(confirmed.output(), containsString("Marked as solved with solution: Four"));
+      assertEquals("Four", RequestTracker.requestGraph.findArchivedRequest(id).solution());
+      assertThat(avionics.send("display nonsense").output(),
+          containsString("Invalid Display type."));
+    } finally {
+      RequestTracker.requestGraph.close();
+    }
+  }
+
+  @Test
+  public void serversOnlyRunTheCommandsOfTeamsWithTheirTokenAndNoAdminCommands()
+      throws Exception {
+    RequestTracker.requestGraph = new RequestGraph(saveDirectory.getRoot().getPath());
+    try (RequestServer server = new RequestServer(0, Map.of(Team.SYSTEMS, "systems-token"))) {
+      RequestClient impostor = new RequestClient(server.port(), Team.AVIONICS, "systems-token");
+      RequestClient unknown = new RequestClient(server.port(), Team.SYSTEMS, "guessed-token");
+      RequestClient systems = new RequestClient(server.port(), Team.SYSTEMS, "systems-token");
+      assertThrows(IOException.class,
+          () -> impostor.send("request \"How many CPUs are you using?\" systems"));
+      assertThrows(IOException.class,
+          () -> unknown.send("request \"How many CPUs are you using?\" avionics"));
+      assertTrue(RequestTracker.requestGraph.graphIsEmpty());
+
+      systems.send("request \"How many CPUs are you using?\" avionics");
+      assertThrows(IOException.class, () -> systems.send("clear all"));
+      assertThrows(IOException.class, () -> systems.send("exit"));
+      assertFalse(RequestTracker.requestGraph.graphIsEmpty());
+      assertTrue(RequestTracker.run);
+    } finally {
+      RequestTracker.requestGraph.close();
+    }
+  }
+
+  @Test
+  public void concurrentReadersOnlySeeWholeChanges() throws Exception {
+    RequestGraph sharedGraph = new RequestGraph(new ArrayList<>());
+    AtomicBoolean writing = new AtomicBoolean(true);
+    ExecutorService readers = Executors.newFixedThreadPool(4);
+    List<Future<Integer>> reads = new ArrayList<>();
+    for (int r = 0; r < 4; r++) {
+      reads.add(readers.submit(() -> {
+        int checked = 0;
+        while (writing.get()) {
+          for (RequestNode tip : sharedGraph.getImmediateProblems(Team.STRUCTURES)) {
+            assertTrue(tip.isTip());
+          }
+          for (RequestNode root : sharedGraph.findRequests(RequestDirection.TO, Team.AVIONICS)) {
+            assertEquals(Team.SYSTEMS, root.getRequester());
+          }
+          sharedGraph.findRequests("thermal", 5);
+          sharedGraph.toString();
+          checked++;
+        }
+        return checked;
+      }));
+    }
+    try {
+      for (int i = 0; i < 2000; i++) {
+        RequestNode root = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.AVIONICS)
+            .inGraph(sharedGraph)
+            .withQuery("Thermal question " + i)
+            .build();
+        RequestNode branch = RequestBuilder.ANewRequest(Team.AVIONICS, Team.STRUCTURES)
+            .inGraph(sharedGraph)
+            .withQuery("Thermal follow up " + i)
+            .toSolve(root)
+            .build();
+        sharedGraph.addNewRequest(branch);
+        if (i % 2 == 0) {
+          sharedGraph.resolveRequest(root, "Radiators"); // drops the branch with it
+        }
+      }
+    } finally {
+      writing.set(false);
+      readers.shutdown();
+    }
+    for (Future<Integer> read : reads) {
+      assertTrue(read.get() > 0); // rethrows any failed assertion
+    }
+    assertEquals(1000, sharedGraph.getImmediateProblems(Team.STRUCTURES).size());
+    assertEquals(1000, sharedGraph.findRequests(RequestDirection.FROM, Team.SYSTEMS).size());
+  }
+
+  @Test
+  public void serializedGraphBucketsAreConvertedOnFirstRead() throws Exception {
+    RequestNode root = null;
+    try {
+      root = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.AVIONICS)
+          .inGraph(requestGraph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+      RequestBuilder.ANewRequest(Team.AVIONICS,Team.STRUCTURES)
+          .inGraph(requestGraph)
+          .withQuery("What's the diameter of the inner tube where the CPUs sit?")
+          .toSolve(root).build();
+    } catch (IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+    File bucket = saveDirectory.newFile("request-graph-bucket.data");
+    try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(bucket))) {
+      out.writeObject(new ArrayList<>(List.of(root)));
+    }
+
+    RequestGraph reloaded = new RequestGraph(saveDirectory.getRoot().getPath());
+
+    assertTrue(BucketCodec.hasMagic(bucket.toPath(), BucketCodec.GRAPH_MAGIC));
+    RequestNode reloadedRoot = reloaded.findRequest(root.getID());
+    assertEquals("How many CPUS are you using?", reloadedRoot.getDetails());
+    assertEquals("What's the diameter of the inner tube where the CPUs sit?",
+        reloadedRoot.getBranches().get(0).getDetails());
+    assertEquals(reloadedRoot, new RequestGraph(saveDirectory.getRoot().getPath())
+        .findRequests("diameter").get(0).getSource());
+  }
+
+  @Test
+  public void graphBucketsAreReadBackWithEveryCompression() throws IOException {
+    List<NodeRecord> nodes = new ArrayList<>();
+    for (int id = 1; id <= 5000; id++) {
+      nodes.add(new NodeRecord(id, Team.SYSTEMS, Team.values()[id % Team.values().length],
+          "Request " + id + " about the fuel line, part " + (id * 7919 % 1000),
+          new Date(1_600_000_000_000L + id), id == 1 ? NodeRecord.NO_SOURCE : id / 2));
+    }
+    for (Compression compression : Compression.values()) {
+      File bucket = saveDirectory.newFile(compression + ".data");
+      BucketCodec.writeGraph(bucket.toPath(), nodes, compression);
+      assertEquals(nodes, BucketCodec.readGraph(bucket.toPath()));
+
+      byte[] whole = Files.readAllBytes(bucket.toPath());
+      Files.write(bucket.toPath(), Arrays.copyOf(whole, whole.length - 1));
+      try {
+        BucketCodec.readGraph(bucket.toPath());
+        fail("A bucket cut short should not be read");
+      } catch (IOException expected) {
+        // the end of the block stream is missing
+      }
+    }
+  }
+
+  @Test
+  public void bucketsAreOnlyReplacedOnceTheirWriteIsCommitted() throws IOException {
+    String directory = saveDirectory.getRoot().getPath();
+    RequestGraph savedGraph = new RequestGraph(directory);
+    RequestNode saved = null;
+    try {
+      saved = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.AVIONICS)
+          .inGraph(savedGraph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+    } catch (IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+    savedGraph.checkpoint();
+    assertTrue(savedGraph.flush());
+
+    // a write cut short by a crash never reaches the bucket itself
+    File bucket = new File(directory, "request-graph-bucket.data");
+    AtomicWriteBatch batch = new AtomicWriteBatch();
+    Files.write(batch.stage(bucket.toPath()), new byte[] {'K', 'S'});
+    assertEquals("How many CPUS are you using?",
+        new RequestGraph(directory).findRequest(saved.getID()).getDetails());
+
+    List<NodeRecord> replacement = List.of(new NodeRecord(saved.getID(), Team.SYSTEMS,
+        Team.AVIONICS, "How many GPUs are you using?", new Date(), NodeRecord.NO_SOURCE));
+    BucketCodec.writeGraph(batch.stage(bucket.toPath()), replacement, Compression.LZ);
+    batch.commit();
+    assertEquals(replacement, BucketCodec.readGraph(bucket.toPath()));
+    assertFalse(new File(directory, "request-graph-bucket.data.tmp").exists());
+  }
+
+  @Test
+  public void archivedRequestsAreReadBackFromTheStoreOnDemand() throws IOException {
+    String directory = saveDirectory.getRoot().getPath();
+    RequestGraph savedGraph = new RequestGraph(directory);
+    RequestNode solved = null;
+    try {
+      solved = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.PROPULSION)
+          .inGraph(savedGraph)
+          .withQuery("What fuel ratio are we using?")
+          .build();
+    } catch (IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+    savedGraph.resolveRequest(solved, "Six to one");
+
+    // simulate a crash part way through archiving another request
+    String activeSegment = "archive/archive-" + YearMonth.now(ZoneOffset.UTC) + ".data";
+    try (FileOutputStream store = new FileOutputStream(new File(directory, activeSegment), true)) {
+      store.write(new byte[] {0, 0, 1, 0, 0, 0, 0, 9});
+    }
+
+    RequestGraph reloaded = new RequestGraph(directory);
+    assertEquals("Six to one", reloaded.findArchivedRequest(solved.getID()).solution());
+    RequestNode next = null;
+    try {
+      next = RequestBuilder.ANewRequest(Team.PROPULSION,Team.STRUCTURES)
+          .inGraph(reloaded)
+          .withQuery("How long is the fuel line?")
+          .build();
+    } catch (IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+    reloaded.resolveRequest(next, "Two metres");
+
+    List<ArchiveNode> archive = new RequestGraph(directory).getArchive();
+    assertEquals(2, archive.size());
+    assertEquals("Two metres", archive.get(1).solution());
+    assertEquals(List.of(archive.get(0)),
+        new RequestGraph(directory).findInArchivedSolutions("six"));
+  }
+
+  @Test
+  public void archiveBucketsAreSplitIntoSealedMonthlySegmentsOnFirstRead() throws Exception {
+    File bucket = saveDirectory.newFile("request-archive-bucket.data");
+    try (InputStream legacy = getClass().getResourceAsStream("/legacy-archive-bucket.data")) {
+      Files.copy(legacy, bucket.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    RequestGraph reloaded = new RequestGraph(saveDirectory.getRoot().getPath());
+    ArchiveNode converted = reloaded.findArchivedRequest(1);
+    assertEquals("What fuel ratio are we using?", converted.details());
+    assertFalse(bucket.exists());
+
+    reloaded.close(); // waits for the compactor to seal the finished month
+    reloaded = new RequestGraph(saveDirectory.getRoot().getPath());
+    String month = YearMonth.from(converted.solutionDate().toInstant().atZone(ZoneOffset.UTC))
+        .toString();
+    assertEquals(List.of("archive-" + month + ".sealed"),
+        Arrays.asList(new File(saveDirectory.getRoot(), "archive").list()));
+    assertEquals("Realised we dont need this. Sorry", reloaded.findArchivedRequest(1).solution());
+
+    Date solved = converted.solutionDate();
+    assertEquals(List.of(converted), reloaded.findArchivedRequests(solved, solved));
+    assertEquals(List.of(converted),
+        reloaded.findArchivedRequests(RequestDirection.TO, Team.PROPULSION, solved, solved));
+    assertTrue(reloaded.findArchivedRequests(new Date(solved.getTime() + 1), new Date()).isEmpty());
+  }
+
+  @Test
+  public void binaryArchiveBucketsAreMigratedEntryByEntry() throws IOException {
+    File bucket = saveDirectory.newFile("request-archive-bucket.data");
+    String longDetails = "fuel line ".repeat(10_000); // larger than a read window
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(bucket))) {
+      out.writeInt(BucketCodec.ARCHIVE_MAGIC);
+      out.writeByte(1);
+      out.writeInt(2000);
+      for (int id = 1; id <= 2000; id++) {
+        byte[] details = (id == 1000 ? longDetails : "Question " + id).getBytes(UTF_8);
+        out.writeInt(id);
+        out.writeByte(Team.SYSTEMS.ordinal());
+        out.writeByte(Team.PROPULSION.ordinal());
+        out.writeLong(1_600_000_000_000L + id);
+        out.writeInt(0);
+        out.writeLong(1_600_000_100_000L + id);
+        out.writeInt(0);
+        out.writeInt(details.length);
+        out.write(details);
+        out.writeInt(1);
+        out.write('y');
+      }
+    }
+
+    RequestGraph reloaded = new RequestGraph(saveDirectory.getRoot().getPath());
+    assertEquals(2000, reloaded.getArchive().size());
+    assertEquals(longDetails, reloaded.findArchivedRequest(1000).details());
+    assertEquals("Question 2000", reloaded.findArchivedRequest(2000).details());
+    assertFalse(bucket.exists());
+  }
+
+  @Test
+  public void unreadableBucketsAreSetAsideRatherThanOverwritten() throws IOException {
+    String directory = saveDirectory.getRoot().getPath();
+    File graphBucket = saveDirectory.newFile("request-graph-bucket.data");
+    byte[] fromANewerVersion = {0x4B, 0x53, 0x50, 0x47, 99, 1, 2, 3};
+    Files.write(graphBucket.toPath(), fromANewerVersion);
+    File metadataBucket = saveDirectory.newFile("metadata-bucket.data");
+    try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(metadataBucket))) {
+      out.writeObject(new Metadata(7));
+    }
+
+    RequestGraph reloaded = new RequestGraph(directory);
+    assertEquals(7, reloaded.getIDGenerator().saveState());
+    assertTrue(BucketCodec.hasMagic(metadataBucket.toPath(), BucketCodec.METADATA_MAGIC));
+    reloaded.checkpoint();
+    assertTrue(reloaded.flush());
+
+    File setAside = new File(directory, "request-graph-bucket.data.unreadable");
+    assertArrayEquals(fromANewerVersion, Files.readAllBytes(setAside.toPath()));
+    assertEquals(7, new RequestGraph(directory).readMetadata().idGenState());
+  }
+
+  @Test
+  public void checkpointsAreWrittenInTheBackgroundWithoutLosingLaterChanges() {
+    String directory = saveDirectory.getRoot().getPath();
+    RequestGraph savedGraph = new RequestGraph(directory);
+    RequestNode before = null;
+    RequestNode after = null;
+    try {
+      before = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.AVIONICS)
+          .inGraph(savedGraph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+      savedGraph.checkpoint();
+      savedGraph.checkpoint(); // coalesced with the first
+      after = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.PROPULSION)
+          .inGraph(savedGraph)
+          .withQuery("What fuel ratio are we using?")
+          .build();
+    } catch (IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+
+    assertTrue(savedGraph.flush());
+    assertEquals(List.of("request-journal.data"), Arrays.stream(saveDirectory.getRoot().list())
+        .filter(name -> name.startsWith("request-journal")).toList());
+
+    RequestGraph reloaded = new RequestGraph(directory);
+    assertEquals("How many CPUS are you using?", reloaded.findRequest(before.getID()).getDetails());
+    assertEquals("What fuel ratio are we using?", reloaded.findRequest(after.getID()).getDetails());
+  }
+
+  @Test
+  public void savedGraphsAreStoredInACloudBucketThroughALocalCache() throws IOException {
+    Storage storage = LocalStorageHelper.customOptions(false).getService();
+    RequestGraph savedGraph = new RequestGraph(
+        new CloudStorageBackend(storage, "ksp-save-data", saveDirectory.newFolder().toPath()));
+    RequestNode open = null;
+    RequestNode solved = null;
+    try {
+      open = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.AVIONICS)
+          .inGraph(savedGraph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+      solved = RequestBuilder.ANewRequest(Team.SYSTEMS,Team.PROPULSION)
+          .inGraph(savedGraph)
+          .withQuery("What fuel ratio are we using?")
+          .build();
+    } catch (IllegalRequestException e) {
+      fail(e.getMessage());
+    }
+    savedGraph.resolveRequest(solved, "Six to one");
+    savedGraph.checkpoint();
+    assertTrue(savedGraph.flush());
+
+    RequestGraph elsewhere = new RequestGraph(
+        new CloudStorageBackend(storage, "ksp-save-data", saveDirectory.newFolder().toPath()));
+    assertEquals("How many CPUS are you using?", elsewhere.findRequest(open.getID()).getDetails());
+    assertEquals("Six to one", elsewhere.findArchivedRequest(solved.getID()).solution());
+  }
+
+  @Test
+  public void cloudWritesBasedOnAStaleCopyAreRejected() throws IOException {
+    Storage storage = LocalStorageHelper.customOptions(false).getService();
+    CloudStorageBackend first =
+        new CloudStorageBackend(storage, "ksp-save-data", saveDirectory.newFolder().toPath());
+    CloudStorageBackend second =
+        new CloudStorageBackend(storage, "ksp-save-data", saveDirectory.newFolder().toPath());
+    String bucket = "metadata-bucket.data";
+
+    Files.writeString(first.localDirectory().resolve(bucket), "first");
+    first.publish(List.of(bucket));
+    assertEquals("first", Files.readString(second.fetch(bucket)));
+    Files.writeString(first.localDirectory().resolve(bucket), "first, again");
+    first.publish(List.of(bucket));
+
+    Files.writeString(second.localDirectory().resolve(bucket), "second");
+    try {
+      second.publish(List.of(bucket));
+      fail("A write based on a stale copy should be rejected");
+    } catch (StaleObjectException expected) {
+      assertThrows(StaleObjectException.class, () -> second.fetch(bucket));
+      assertEquals("second", Files.readString(second.localDirectory().resolve(bucket)));
+    }
+  }
+
+  @Test
+  public void sessionsThatMissedAnotherWriterKeepTheirChangesLocallyWithoutRetrying()
+      throws Exception {
+    Storage storage = LocalStorageHelper.customOptions(false).getService();
+    Path cache = saveDirectory.newFolder().toPath();
+    RequestNode theirs;
+    RequestNode ours;
+    try (RequestGraph graph =
+        new RequestGraph(new CloudStorageBackend(storage, "ksp-save-data", cache))) {
+      RequestBuilder.ANewRequest(Team.SYSTEMS, Team.AVIONICS)
+          .inGraph(graph)
+          .withQuery("How many CPUS are you using?")
+          .build();
+      graph.checkpoint();
+      assertTrue(graph.flush());
+      try (RequestGraph elsewhere = new RequestGraph(new CloudStorageBackend(storage,
+          "ksp-save-data", saveDirectory.newFolder().toPath()))) {
+        theirs = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.PROPULSION)
+            .inGraph(elsewhere)
+            .withQuery("What fuel ratio are we using?")
+            .build();
+        elsewhere.checkpoint();
+        assertTrue(elsewhere.flush());
+      }
+
+      ours = RequestBuilder.ANewRequest(Team.SYSTEMS, Team.STRUCTURES)
+          .inGraph(graph)
+          .withQuery("How heavy is the fairing?")
+          .build();
+      graph.checkpoint();
+      assertTrue(graph.flush()); // the rejected write is not retried
+      assertTrue(graph.hasStorageConflict());
+      try (Stream<Path> files = Files.list(cache)) {
+        assertEquals(List.of(), files.map(file -> file.getFileName().toString())
+            .filter(name -> name.startsWith("request-journal-")).toList());
+      }
+    }
+
+    try (RequestGraph reloaded =
+        new RequestGraph(new CloudStorageBackend(storage, "ksp-save-data", cache))) {
+      assertTrue(reloaded.hasStorageConflict());
+      assertEquals("How heavy is the fairing?", reloaded.findRequest(ours.getID()).getDetails());
+    }
+    try (RequestGraph elsewhere = new RequestGraph(new CloudStorageBackend(storage,
+        "ksp-save-data", saveDirectory.newFolder().toPath()))) {
+      assertEquals("What fuel ratio are we using?",
+          elsewhere.findRequest(theirs.getID()).getDetails());
+      assertNull(elsewhere.findRequest(ours.getID()));
+    }
+  }
+
 /*
   @Test
   public void bucketSetUp(){
@@ -0,0 +1,87 @@
+package ksp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import ksp.exceptions.IllegalRequestException;
+import ksp.utilities.SearchQuery;
+import ksp.utilities.Team;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the original per-call string matching with compiled queries matched against the
+ * cached normalised details of each request, as done by the duplicate check in
+ * RequestTracker.request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchMatchBenchmark {
+  private static final String[] WORDS = {
+      "cpu", "enclosure", "diameter", "engine", "fuel", "ratio", "carbon", "fibre", "nose",
+      "cone", "sponsor", "budget", "avionics", "parachute", "altitude", "telemetry", "battery"};
+
+  @Param({"10000"})
+  public int requests;
+
+  private final List<RequestNode> nodes = new ArrayList<>();
+  private final String searchPhrase = "What diameter is the CPU enclosure?";
+
+  @Setup
+  public void setUp() throws IllegalRequestException {
+    RequestGraph requestGraph = new RequestGraph(new ArrayList<>());
+    Random random = new Random(42);
+    for (int i = 0; i < requests; i++) {
+      StringBuilder details = new StringBuilder("What");
+      for (int w = 0; w < 12; w++) {
+        details.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      nodes.add(RequestBuilder.ANewRequest(Team.SYSTEMS, Team.AVIONICS)
+          .inGraph(requestGraph)
+          .withQuery(details.append('?').toString())
+          .build());
+    }
+  }
+
+  @Benchmark
+  public void legacyStringMatchPercentage(Blackhole blackhole) {
+    for (RequestNode node : nodes) {
+      blackhole.consume(legacyStringMatchPercentage(node.getDetails(), searchPhrase));
+    }
+  }
+
+  @Benchmark
+  public void compiledQueryMatchPercentage(Blackhole blackhole) {
+    SearchQuery query = SearchQuery.compile(searchPhrase);
+    for (RequestNode node : nodes) {
+      blackhole.consume(node.matchPercentage(query));
+    }
+  }
+
+  /* SearchUtilities.stringMatchPercentage as it was before queries were compiled. */
+  private static Integer legacyStringMatchPercentage(String stringToSearch, String searchPhrase) {
+    String[] words = searchPhrase.replaceAll("\\p{Punct}", "").toLowerCase().split(" ");
+    int matches = 0;
+    for (String word : words) {
+      if (stringToSearch.toLowerCase().contains(word)) {
+        matches++;
+      }
+    }
+    return (100 * matches) / words.length;
+  }
+}
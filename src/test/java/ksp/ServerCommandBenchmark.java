@@ -0,0 +1,89 @@
+package ksp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import ksp.exceptions.IllegalRequestException;
+import ksp.utilities.Team;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency of running one console command: loading the saved graph first, as every
+ * console used to, or sending it to a server that keeps the graph loaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ServerCommandBenchmark {
+  @Param({"10000"})
+  public int requests;
+
+  private Path directory;
+  private RequestServer server;
+  private RequestClient client;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, IllegalRequestException {
+    directory = Files.createTempDirectory("server-command");
+    RequestGraph saved = new RequestGraph(directory.toString());
+    Random random = new Random(42);
+    for (int i = 0; i < requests; i++) {
+      RequestBuilder.ANewRequest(Team.SYSTEMS, Team.values()[i % 4])
+          .inGraph(saved)
+          .withQuery("Question " + random.nextInt() + " about the cpu enclosure")
+          .build();
+    }
+    saved.checkpoint();
+    saved.close();
+
+    RequestTracker.requestGraph = new RequestGraph(directory.toString());
+    server = new RequestServer(0, Map.of(Team.AVIONICS, "benchmark-token"));
+    client = new RequestClient(server.port(), Team.AVIONICS, "benchmark-token");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    server.close();
+    RequestTracker.requestGraph.close();
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Benchmark
+  public int loadThenRun() {
+    RequestGraph loaded = new RequestGraph(directory.toString());
+    try {
+      return loaded.getImmediateProblems(Team.AVIONICS).size();
+    } finally {
+      loaded.close();
+    }
+  }
+
+  @Benchmark
+  public String sendToServer() throws IOException {
+    return client.send("display 1").output();
+  }
+}
@@ -0,0 +1,140 @@
+package ksp.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AtomicWriteBatchTest {
+  @Rule
+  public TemporaryFolder saveDirectory = new TemporaryFolder();
+
+  @Test
+  public void writersRacingOnOneTargetNeverCommitAMixOfTheirContent() throws Exception {
+    Path target = saveDirectory.getRoot().toPath().resolve("request-graph-bucket.data");
+    Files.write(target, content((byte) 0));
+    ExecutorService writers = Executors.newFixedThreadPool(2);
+    List<Future<?>> writes = new ArrayList<>();
+    for (byte writer = 1; writer <= 2; writer++) {
+      byte fill = writer;
+      writes.add(writers.submit(() -> {
+        for (int i = 0; i < 50; i++) {
+          AtomicWriteBatch batch = new AtomicWriteBatch();
+          Files.write(batch.stage(target), content(fill));
+          batch.commit();
+          byte[] committed = Files.readAllBytes(target);
+          assertEquals(content((byte) 0).length, committed.length);
+          for (byte b : committed) {
+            assertEquals(committed[0], b);
+          }
+        }
+        return null;
+      }));
+    }
+    try {
+      for (Future<?> write : writes) {
+        write.get();
+      }
+    } finally {
+      writers.shutdown();
+    }
+    try (Stream<Path> files = Files.list(saveDirectory.getRoot().toPath())) {
+      assertEquals(List.of(target), files.toList()); // every staged file was moved
+    }
+  }
+
+  @Test
+  public void stagingATargetAgainReplacesWhatWasStaged() throws IOException {
+    Path target = saveDirectory.getRoot().toPath().resolve("metadata-bucket.data");
+    AtomicWriteBatch batch = new AtomicWriteBatch();
+    Path first = batch.stage(target);
+    Files.write(first, content((byte) 1));
+    Path second = batch.stage(target);
+    Files.write(second, content((byte) 2));
+    assertFalse(Files.exists(first));
+
+    batch.commit();
+    assertArrayEquals(content((byte) 2), Files.readAllBytes(target));
+    assertTrue(batch.isEmpty());
+    assertEquals(List.of(target), list(saveDirectory.getRoot().toPath()));
+  }
+
+  @Test
+  public void discardedFilesLeaveTheirTargetsAsTheyWere() throws IOException {
+    Path target = saveDirectory.getRoot().toPath().resolve("metadata-bucket.data");
+    Files.write(target, content((byte) 0));
+    AtomicWriteBatch batch = new AtomicWriteBatch();
+    Files.write(batch.stage(target), content((byte) 1));
+    batch.discard();
+
+    assertTrue(batch.isEmpty());
+    assertArrayEquals(content((byte) 0), Files.readAllBytes(target));
+    assertEquals(List.of(target), list(saveDirectory.getRoot().toPath()));
+  }
+
+  @Test
+  public void filesThatCouldNotBeMovedStayStaged() throws IOException {
+    Path moved = saveDirectory.getRoot().toPath().resolve("metadata-bucket.data");
+    Path blocked = saveDirectory.newFolder("archive").toPath(); // a directory holding a file
+    Files.write(blocked.resolve("archive-2021-03.sealed"), content((byte) 0));
+    AtomicWriteBatch batch = new AtomicWriteBatch();
+    Files.write(batch.stage(moved), content((byte) 1));
+    Path staged = batch.stage(blocked);
+    Files.write(staged, content((byte) 2));
+
+    assertThrows(IOException.class, batch::commit);
+    assertArrayEquals(content((byte) 1), Files.readAllBytes(moved));
+    assertTrue(Files.isDirectory(blocked));
+    assertFalse(batch.isEmpty());
+    assertTrue(Files.exists(staged));
+    batch.discard();
+    assertFalse(Files.exists(staged));
+  }
+
+  @Test
+  public void onlyFilesStagedLongAgoAreDeletedAsAbandoned() throws IOException {
+    Path directory = saveDirectory.getRoot().toPath();
+    Path target = directory.resolve("request-graph-bucket.data");
+    Files.write(target, content((byte) 0));
+    Path abandoned = new AtomicWriteBatch().stage(target);
+    Files.write(abandoned, content((byte) 1));
+    Path recent = new AtomicWriteBatch().stage(target); // another process may be writing it
+    Files.write(recent, content((byte) 2));
+    FileTime longAgo = FileTime.from(Instant.now().minus(Duration.ofDays(1)));
+    Files.setLastModifiedTime(abandoned, longAgo);
+    Files.setLastModifiedTime(target, longAgo);
+
+    AtomicWriteBatch.deleteAbandoned(directory);
+    assertEquals(List.of(target, recent), list(directory));
+  }
+
+  private static List<Path> list(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.sorted().toList();
+    }
+  }
+
+  private static byte[] content(byte fill) {
+    byte[] content = new byte[256 * 1024];
+    Arrays.fill(content, fill);
+    return content;
+  }
+}
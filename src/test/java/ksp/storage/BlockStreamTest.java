@@ -0,0 +1,133 @@
+package ksp.storage;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Test;
+
+public class BlockStreamTest {
+  private static final int HEADER_BYTES = 2 * Integer.BYTES;
+
+  private final ExecutorService decoder = Executors.newFixedThreadPool(2);
+
+  @After
+  public void stopDecoder() {
+    decoder.shutdown();
+  }
+
+  @Test
+  public void streamsSpanningManyBlocksAreReadBackWithEveryCompression() throws IOException {
+    byte[] raw = raw();
+    for (Compression compression : Compression.values()) {
+      byte[] stream = write(raw, compression);
+      assertArrayEquals(raw, read(new BlockInputStream(new ByteArrayInputStream(stream))));
+      assertArrayEquals(raw,
+          read(new BlockInputStream(new ByteArrayInputStream(stream), decoder)));
+    }
+  }
+
+  @Test
+  public void readersCanStartAtAnyBlockOfTheIndex() throws IOException {
+    byte[] raw = raw();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BlockOutputStream out = new BlockOutputStream(bytes, Compression.LZ);
+    out.write(raw);
+    out.close();
+    byte[] stream = bytes.toByteArray();
+
+    BlockOutputStream.BlockIndex index = out.index();
+    BlockOutputStream.BlockIndex scanned = BlockInputStream.scan(new ByteArrayInputStream(stream));
+    assertArrayEquals(index.storedOffsets(), scanned.storedOffsets());
+    assertArrayEquals(index.rawOffsets(), scanned.rawOffsets());
+
+    int last = index.blocks() - 1;
+    assertEquals(last, index.blockAt(raw.length - 1));
+    InputStream fromLast = new ByteArrayInputStream(stream);
+    fromLast.skipNBytes(index.storedOffsets()[last]);
+    assertArrayEquals(Arrays.copyOfRange(raw, (int) index.rawOffsets()[last], raw.length),
+        read(BlockInputStream.fromBlock(fromLast, Compression.LZ)));
+  }
+
+  @Test
+  public void streamsCutShortAreRejected() throws IOException {
+    for (Compression compression : Compression.values()) {
+      byte[] stream = write(raw(), compression);
+      byte[] withoutEnd = Arrays.copyOf(stream, stream.length - HEADER_BYTES);
+      assertThrows(EOFException.class,
+          () -> read(new BlockInputStream(new ByteArrayInputStream(withoutEnd))));
+      assertThrows(EOFException.class,
+          () -> read(new BlockInputStream(new ByteArrayInputStream(withoutEnd), decoder)));
+      assertThrows(EOFException.class,
+          () -> BlockInputStream.scan(new ByteArrayInputStream(withoutEnd)));
+    }
+    assertThrows(EOFException.class,
+        () -> new BlockInputStream(new ByteArrayInputStream(new byte[0])));
+  }
+
+  @Test
+  public void corruptFramesAreRejected() throws IOException {
+    byte[] unknownCompression = {9, 0, 0, 0, 0, 0, 0, 0, 0};
+    assertThrows(IOException.class,
+        () -> new BlockInputStream(new ByteArrayInputStream(unknownCompression)));
+
+    for (Compression compression : Compression.values()) {
+      byte[] stream = write(raw(), compression);
+
+      byte[] oversized = stream.clone(); // a raw length past the block size
+      oversized[1] = 0x7F;
+      assertThrows(IOException.class,
+          () -> read(new BlockInputStream(new ByteArrayInputStream(oversized))));
+      assertThrows(IOException.class,
+          () -> BlockInputStream.scan(new ByteArrayInputStream(oversized)));
+
+      byte[] mismatched = stream.clone(); // a stored length one out
+      mismatched[1 + HEADER_BYTES - 1] ^= 1;
+      assertThrows(IOException.class,
+          () -> read(new BlockInputStream(new ByteArrayInputStream(mismatched))));
+    }
+
+    for (Compression compression : new Compression[] {Compression.DEFLATE, Compression.LZ}) {
+      byte[] zeroedPayload = write(raw(), compression);
+      Arrays.fill(zeroedPayload, 1 + HEADER_BYTES, 1 + HEADER_BYTES + 16, (byte) 0);
+      assertThrows(IOException.class,
+          () -> read(new BlockInputStream(new ByteArrayInputStream(zeroedPayload))));
+      assertThrows(IOException.class,
+          () -> read(new BlockInputStream(new ByteArrayInputStream(zeroedPayload), decoder)));
+    }
+  }
+
+  /* Compressible data spanning a few blocks, the last of them partly filled. */
+  private static byte[] raw() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 3 * BlockOutputStream.BLOCK_BYTES; i++) {
+      text.append("Request ").append(i).append(" about the fuel line, part ")
+          .append(i * 7919 % 1000).append('\n');
+    }
+    return text.toString().getBytes(UTF_8);
+  }
+
+  private static byte[] write(byte[] raw, Compression compression) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (BlockOutputStream out = new BlockOutputStream(bytes, compression)) {
+      out.write(raw);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] read(BlockInputStream in) throws IOException {
+    try (in) {
+      return in.readAllBytes();
+    }
+  }
+}
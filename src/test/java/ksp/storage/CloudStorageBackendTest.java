@@ -0,0 +1,91 @@
+package ksp.storage;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CloudStorageBackendTest {
+  private static final String BUCKET = "save-data";
+  private static final String SEGMENT = "archive/archive-2021-03.sealed";
+
+  @Rule
+  public TemporaryFolder cacheDirectories = new TemporaryFolder();
+
+  private final Storage storage = LocalStorageHelper.getOptions().getService();
+  private CloudStorageBackend first;
+  private CloudStorageBackend second;
+
+  @Before
+  public void openWriters() throws IOException {
+    first = new CloudStorageBackend(storage, BUCKET, cacheDirectories.newFolder().toPath());
+    second = new CloudStorageBackend(storage, BUCKET, cacheDirectories.newFolder().toPath());
+  }
+
+  @After
+  public void closeWriters() throws IOException {
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void objectsAnotherWriterStoredAreNotDeleted() throws IOException {
+    store(first, "First");
+    assertThrows(StaleObjectException.class, () -> second.delete(SEGMENT)); // never fetched
+    assertEquals("First", read(second.fetch(SEGMENT)));
+
+    store(first, "First, merged");
+    assertThrows(StaleObjectException.class, () -> second.delete(SEGMENT)); // fetched before
+    assertEquals("First, merged", read(second.fetch(SEGMENT)));
+
+    second.delete(SEGMENT);
+    assertNull(storage.get(BlobId.of(BUCKET, SEGMENT)));
+    first.delete(SEGMENT); // already deleted, which is no conflict
+    assertEquals(List.of(), first.list("archive/"));
+  }
+
+  @Test
+  public void changedCopiesOfObjectsDeletedElsewhereAreKept() throws IOException {
+    store(first, "First");
+    Path copy = second.fetch(SEGMENT);
+    Files.writeString(copy, "Second, not yet published", UTF_8);
+    first.delete(SEGMENT);
+
+    assertThrows(StaleObjectException.class, () -> second.fetch(SEGMENT));
+    assertEquals("Second, not yet published", read(copy));
+  }
+
+  @Test
+  public void unchangedCopiesOfObjectsDeletedElsewhereAreDropped() throws IOException {
+    store(first, "First");
+    assertNotNull(second.fetch(SEGMENT));
+    first.delete(SEGMENT);
+
+    assertNull(second.fetch(SEGMENT));
+  }
+
+  private static void store(CloudStorageBackend writer, String contents) throws IOException {
+    Path copy = writer.localDirectory().resolve(SEGMENT);
+    Files.createDirectories(copy.getParent());
+    Files.writeString(copy, contents, UTF_8);
+    writer.publish(List.of(SEGMENT));
+  }
+
+  private static String read(Path copy) throws IOException {
+    return Files.readString(copy, UTF_8);
+  }
+}
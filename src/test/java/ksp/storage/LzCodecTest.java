@@ -0,0 +1,62 @@
+package ksp.storage;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class LzCodecTest {
+  @Test
+  public void blocksAreReadBackAsTheyWereWritten() throws IOException {
+    byte[] random = new byte[5000];
+    new Random(42).nextBytes(random);
+    byte[] run = new byte[35_000];
+    Arrays.fill(run, (byte) 'a'); // a match overlapping itself, with a long length extension
+    byte[][] blocks = {
+        new byte[0],
+        "short".getBytes(UTF_8),
+        "How many CPUs are you using? ".repeat(300).getBytes(UTF_8),
+        random, // literals only, with a long literal count extension
+        run,
+    };
+    LzCodec codec = new LzCodec();
+    for (byte[] block : blocks) {
+      assertArrayEquals(block, decompress(compress(codec, block), block.length));
+    }
+    assertTrue(compress(codec, blocks[2]).length < blocks[2].length / 10);
+  }
+
+  @Test
+  public void corruptBlocksAreRejected() throws IOException {
+    byte[] raw = "What's the diameter of the inner tube? ".repeat(50).getBytes(UTF_8);
+    byte[] compressed = compress(new LzCodec(), raw);
+
+    byte[] cutShort = Arrays.copyOf(compressed, compressed.length - 1);
+    assertThrows(IOException.class, () -> decompress(cutShort, raw.length));
+    byte[] trailing = Arrays.copyOf(compressed, compressed.length + 1);
+    assertThrows(IOException.class, () -> decompress(trailing, raw.length));
+    assertThrows(IOException.class, () -> decompress(compressed, raw.length - 1));
+    assertThrows(IOException.class, () -> decompress(compressed, raw.length + 1));
+
+    byte[] zeroOffset = {0x10, 'a', 0, 0}; // one literal, then a match at offset 0
+    assertThrows(IOException.class, () -> decompress(zeroOffset, 10));
+    byte[] beforeTheStart = {0x10, 'a', 2, 0}; // a match starting before the block
+    assertThrows(IOException.class, () -> decompress(beforeTheStart, 10));
+  }
+
+  private static byte[] compress(LzCodec codec, byte[] raw) {
+    byte[] compressed = new byte[LzCodec.maxCompressedLength(raw.length)];
+    return Arrays.copyOf(compressed, codec.compress(raw, raw.length, compressed));
+  }
+
+  private static byte[] decompress(byte[] compressed, int rawLength) throws IOException {
+    byte[] raw = new byte[rawLength];
+    LzCodec.decompress(compressed, compressed.length, raw, rawLength);
+    return raw;
+  }
+}
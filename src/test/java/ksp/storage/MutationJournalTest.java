@@ -0,0 +1,149 @@
+package ksp.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.List;
+import ksp.storage.JournalEntry.Created;
+import ksp.storage.JournalEntry.Edited;
+import ksp.storage.JournalEntry.Resolved;
+import ksp.storage.JournalEntry.Resourced;
+import ksp.utilities.Team;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MutationJournalTest {
+  private static final JournalEntry created = new Created(1, Team.SYSTEMS, Team.AVIONICS,
+      "How many CPUs are you using?", new Date(1_600_000_000_000L), NodeRecord.NO_SOURCE);
+  private static final JournalEntry edited = new Edited(1, "How many GPUs are you using?");
+  private static final JournalEntry resourced = new Resourced(2, 1);
+  private static final JournalEntry resolved =
+      new Resolved(1, "Four", new Date(1_600_000_100_000L));
+
+  @Rule
+  public TemporaryFolder saveDirectory = new TemporaryFolder();
+
+  @Test
+  public void entriesFailingTheirChecksumAreCutOffWithEverythingAfterThem() throws IOException {
+    long secondEntry;
+    try (MutationJournal journal = open(0)) {
+      journal.append(created);
+      secondEntry = journalFile().length();
+      journal.append(edited);
+      journal.append(resourced);
+    }
+    flipByte(secondEntry + Integer.BYTES + 1); // in the payload of the second entry
+
+    try (MutationJournal journal = open(0)) {
+      assertEquals(List.of(created), journal.recoveredEntries());
+      assertEquals(secondEntry, journalFile().length());
+      journal.append(resolved); // follows the last whole entry
+    }
+    try (MutationJournal journal = open(0)) {
+      assertEquals(List.of(created, resolved), journal.recoveredEntries());
+    }
+  }
+
+  @Test
+  public void tornEntriesAtTheEndAreCutOff() throws IOException {
+    long whole;
+    try (MutationJournal journal = open(0)) {
+      journal.append(created);
+      whole = journalFile().length();
+      journal.append(edited);
+    }
+    try (RandomAccessFile file = new RandomAccessFile(journalFile(), "rw")) {
+      file.setLength(file.length() - 1); // a crash before the last byte of the checksum
+    }
+
+    try (MutationJournal journal = open(0)) {
+      assertEquals(List.of(created), journal.recoveredEntries());
+      assertEquals(whole, journalFile().length());
+    }
+  }
+
+  @Test
+  public void rotatedSegmentsAreReadBackUntilTheSnapshotCoveringThemIsSaved()
+      throws IOException {
+    int segment;
+    try (MutationJournal journal = open(0)) {
+      journal.append(created);
+      segment = journal.rotate();
+      assertEquals(0, journal.size());
+      journal.append(edited);
+    }
+    assertEquals(1, segment);
+
+    try (MutationJournal journal = open(0)) { // the snapshot was never written
+      assertEquals(List.of(created, edited), journal.recoveredEntries());
+    }
+    try (MutationJournal journal = open(segment)) {
+      assertEquals(List.of(edited), journal.recoveredEntries());
+      journal.discardThrough(segment);
+    }
+    assertFalse(new File(journalFile().getPath() + "." + segment).exists());
+    try (MutationJournal journal = open(segment)) {
+      assertEquals(List.of(edited), journal.recoveredEntries());
+      assertEquals(1, journal.size());
+    }
+  }
+
+  @Test
+  public void sessionsFollowTheJournalAcrossRotations() throws IOException {
+    try (MutationJournal first = open(0); MutationJournal second = open(0)) {
+      first.append(created);
+      int segment = first.rotate();
+      first.append(edited);
+      assertTrue(second.hasNewEntries());
+      assertEquals(List.of(created, edited), second.readNewEntries());
+      assertFalse(second.hasNewEntries());
+
+      second.append(resourced); // to the rotated journal, not the segment
+      assertEquals(List.of(resourced), first.readNewEntries());
+      assertEquals(2, first.size());
+
+      first.discardThrough(segment);
+      assertEquals(List.of(), second.readNewEntries());
+    }
+  }
+
+  @Test
+  public void sessionsBehindADiscardedSegmentStartAgainFromTheSnapshot() throws IOException {
+    try (MutationJournal first = open(0); MutationJournal behind = open(0)) {
+      first.append(created);
+      int segment = first.rotate();
+      first.append(edited);
+      first.discardThrough(segment); // the snapshot covering created was saved
+
+      assertNull(behind.readNewEntries());
+      behind.resetTo(segment); // having loaded that snapshot
+      assertEquals(List.of(edited), behind.readNewEntries());
+      behind.append(resolved);
+      assertEquals(List.of(resolved), first.readNewEntries());
+    }
+  }
+
+  private MutationJournal open(int coveredGeneration) throws IOException {
+    return MutationJournal.open(journalFile().getPath(), coveredGeneration);
+  }
+
+  private File journalFile() {
+    return new File(saveDirectory.getRoot(), "request-journal.data");
+  }
+
+  private void flipByte(long at) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(journalFile(), "rw")) {
+      file.seek(at);
+      int b = file.read();
+      file.seek(at);
+      file.write(b ^ 0xFF);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package ksp.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SaveDirectoryLockTest {
+  @Rule
+  public TemporaryFolder saveDirectory = new TemporaryFolder();
+
+  private final ExecutorService otherThread = Executors.newSingleThreadExecutor();
+
+  @After
+  public void stopOtherThread() {
+    otherThread.shutdownNow();
+  }
+
+  @Test
+  public void holdsTakenAgainByTheSameThreadKeepTheLockUntilTheLastIsClosed() throws Exception {
+    SaveDirectoryLock lock = new SaveDirectoryLock(saveDirectory.getRoot().toPath());
+    SaveDirectoryLock.Hold outer = lock.acquire();
+    SaveDirectoryLock.Hold inner = lock.tryAcquire();
+    assertNotNull(inner); // reentrant, so it does not wait on itself
+    inner.close();
+    assertTrue(isHeldElsewhere(lock));
+    outer.close();
+    assertFalse(isHeldElsewhere(lock));
+  }
+
+  @Test
+  public void locksOnTheSameDirectoryExcludeEachOther() throws Exception {
+    Path directory = saveDirectory.getRoot().toPath();
+    SaveDirectoryLock lock = new SaveDirectoryLock(directory);
+    SaveDirectoryLock otherDirectory = new SaveDirectoryLock(directory.resolve("archive"));
+    SaveDirectoryLock sameDirectory =
+        new SaveDirectoryLock(directory.resolve("archive").resolve(".."));
+
+    SaveDirectoryLock.Hold held = lock.acquire();
+    try {
+      assertTrue(isHeldElsewhere(sameDirectory));
+      assertFalse(isHeldElsewhere(otherDirectory));
+    } finally {
+      held.close();
+    }
+    assertFalse(isHeldElsewhere(sameDirectory));
+  }
+
+  @Test
+  public void acquiringWaitsUntilTheLockIsReleased() throws Exception {
+    SaveDirectoryLock lock = new SaveDirectoryLock(saveDirectory.getRoot().toPath());
+    CountDownLatch acquired = new CountDownLatch(1);
+    Future<?> waiting;
+    SaveDirectoryLock.Hold held = lock.acquire();
+    try {
+      waiting = otherThread.submit(() -> {
+        SaveDirectoryLock.Hold waited = lock.acquire();
+        acquired.countDown();
+        waited.close();
+        return null;
+      });
+      assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+    } finally {
+      held.close();
+    }
+    waiting.get(5, TimeUnit.SECONDS);
+    assertEquals(0, acquired.getCount());
+  }
+
+  /* Whether another thread finds the lock held, without waiting for it. */
+  private boolean isHeldElsewhere(SaveDirectoryLock lock) throws Exception {
+    return otherThread.submit(() -> {
+      SaveDirectoryLock.Hold held = lock.tryAcquire();
+      if (held == null) {
+        return true;
+      }
+      held.close();
+      return false;
+    }).get(5, TimeUnit.SECONDS);
+  }
+}
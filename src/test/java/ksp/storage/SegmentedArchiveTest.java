@@ -0,0 +1,139 @@
+package ksp.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import ksp.utilities.ArchiveNode;
+import ksp.utilities.Team;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentedArchiveTest {
+  private static final YearMonth month = YearMonth.of(2021, 3);
+
+  @Rule
+  public TemporaryFolder saveDirectory = new TemporaryFolder();
+
+  @Test
+  public void recordsSpreadOverManyBlocksAreLookedUpFromTheirBlock() throws IOException {
+    List<ArchiveNode> records = new ArrayList<>();
+    for (int id = 1; id <= 3000; id++) {
+      String details = id == 1500 ? "fuel line ".repeat(20_000) // spans several blocks
+          : "Question " + id;
+      records.add(solved(id, details, 3001 - id)); // solved in the reverse order of their IDs
+    }
+    try (SegmentedArchive archive = open()) {
+      archive.appendAll(sink -> {
+        for (ArchiveNode archived : records) {
+          sink.accept(archived);
+        }
+      });
+    } // waits for the compactor
+
+    assertEquals(List.of("archive-" + month + ".sealed"),
+        Arrays.asList(saveDirectory.getRoot().list()));
+    try (SegmentedArchive sealed = open()) {
+      assertEquals(records.get(1499), sealed.get(1500));
+      assertEquals(records.get(0), sealed.get(1));
+      assertEquals(records.get(2999), sealed.get(3000));
+      assertNull(sealed.get(3001));
+      List<ArchiveNode> byDate = new ArrayList<>(records);
+      byDate.sort(Comparator.comparing(ArchiveNode::solutionDate));
+      assertEquals(byDate, sealed.stream().toList());
+    }
+  }
+
+  @Test
+  public void recordsAppendedToASealedMonthAreMergedIntoItByDate() throws IOException {
+    try (SegmentedArchive archive = open()) {
+      archive.append(solved(1, "First", 10));
+      archive.append(solved(2, "Third", 30));
+    }
+    try (SegmentedArchive archive = open()) {
+      archive.append(solved(3, "Second", 20)); // e.g. replayed from another session's journal
+      archive.append(solved(4, "Fourth", 30)); // after the record solved at the same time
+    }
+
+    assertEquals(List.of("archive-" + month + ".sealed"),
+        Arrays.asList(saveDirectory.getRoot().list()));
+    try (SegmentedArchive sealed = open()) {
+      assertEquals(List.of("First", "Second", "Third", "Fourth"),
+          sealed.stream().map(ArchiveNode::details).toList());
+      assertEquals("Second", sealed.get(3).details());
+    }
+  }
+
+  @Test
+  public void segmentsSealedWithTheirIdsUpFrontAreStillRead() throws IOException {
+    List<ArchiveNode> records = new ArrayList<>();
+    for (int id = 1; id <= 2000; id++) {
+      records.add(solved(id, "Question " + id, id));
+    }
+    File segment = new File(saveDirectory.getRoot(), "archive-" + month + ".sealed");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(segment))) {
+      out.writeInt(0x4B535053);
+      out.writeByte(2);
+      out.writeInt(records.size());
+      for (ArchiveNode archived : records) {
+        out.writeInt(archived.id());
+      }
+      DataOutputStream image =
+          new DataOutputStream(new BlockOutputStream(out, Compression.DEFLATE));
+      ArchiveStore.writeImageHeader(image);
+      for (ArchiveNode archived : records) {
+        ArchiveStore.writeFrame(image, archived);
+      }
+      image.close();
+    }
+
+    try (SegmentedArchive sealed = open()) {
+      assertEquals(records.get(1234), sealed.get(1235));
+      assertFalse(sealed.contains(2001));
+      assertEquals(records, sealed.stream().toList());
+    }
+  }
+
+  @Test
+  public void monthsThatFailToBeSealedAreReportedKeptAndTriedAgain() throws Exception {
+    File segment = new File(saveDirectory.getRoot(), "archive-" + month + ".sealed");
+    Files.write(segment.toPath(), new byte[] {1, 2, 3}); // not a sealed segment
+    BlockingQueue<YearMonth> failures = new LinkedBlockingQueue<>();
+    try (SegmentedArchive archive = SegmentedArchive.open(saveDirectory.getRoot(),
+        Compression.LZ, null, (failed, e) -> failures.add(failed))) {
+      archive.append(solved(1, "First", 10));
+      assertEquals(month, failures.poll(10, TimeUnit.SECONDS));
+      assertEquals(month, failures.poll(10, TimeUnit.SECONDS)); // retried
+    }
+    assertTrue(new File(saveDirectory.getRoot(), "archive-" + month + ".data").exists());
+  }
+
+  private SegmentedArchive open() throws IOException {
+    return SegmentedArchive.open(saveDirectory.getRoot(), Compression.LZ);
+  }
+
+  /* A request solved some minutes into the month. */
+  private static ArchiveNode solved(int id, String details, int minute) {
+    Date solutionDate = Date.from(month.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC)
+        .plusSeconds(60L * minute));
+    return new ArchiveNode(id, Team.SYSTEMS, Team.PROPULSION, details, solutionDate,
+        NodeRecord.NO_SOURCE, List.of(), "Solution " + id, solutionDate);
+  }
+}
@@ -0,0 +1,69 @@
+package ksp.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class IntHashMapTest {
+  @Test
+  public void entriesAreKeptAcrossResizes() {
+    IntHashMap<String> map = new IntHashMap<>();
+    for (int key = -5000; key <= 5000; key++) {
+      assertNull(map.put(key, "Request " + key));
+    }
+    assertEquals(10_001, map.size());
+    for (int key = -5000; key <= 5000; key++) {
+      assertEquals("Request " + key, map.get(key));
+    }
+    assertFalse(map.containsKey(5001));
+    assertEquals("Request 7", map.put(7, "Replaced"));
+    assertEquals("Replaced", map.get(7));
+    assertEquals(10_001, map.size());
+  }
+
+  @Test
+  public void removalsLeaveEveryOtherEntryReachable() {
+    IntHashMap<Integer> map = new IntHashMap<>(4);
+    Map<Integer, Integer> expected = new HashMap<>();
+    Random random = new Random(42);
+    for (int i = 0; i < 200_000; i++) {
+      int key = random.nextInt(512) * 1024; // keys sharing their low bits probe long chains
+      if (random.nextBoolean()) {
+        assertEquals(expected.put(key, i), map.put(key, i));
+      } else {
+        assertEquals(expected.remove(key), map.remove(key));
+      }
+      assertEquals(expected.size(), map.size());
+    }
+    for (int key = 0; key < 512 * 1024; key += 1024) {
+      assertEquals(expected.get(key), map.get(key));
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void removalsLeaveNoTombstonesBehind() {
+    IntHashMap<String> map = new IntHashMap<>(); // never grows past its first table
+    for (int key = 0; key < 100_000; key++) {
+      map.put(key, "Request " + key);
+      assertEquals("Request " + key, map.remove(key));
+      // a lookup for a missing key would never end if removed slots stayed occupied
+      assertFalse(map.containsKey(key));
+    }
+    assertTrue(map.isEmpty());
+    assertNull(map.remove(1));
+  }
+
+  @Test
+  public void nullValuesAreRejected() {
+    IntHashMap<String> map = new IntHashMap<>();
+    assertThrows(IllegalArgumentException.class, () -> map.put(1, null));
+    assertTrue(map.isEmpty());
+  }
+}
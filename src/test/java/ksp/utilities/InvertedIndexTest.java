@@ -0,0 +1,20 @@
+package ksp.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+public class InvertedIndexTest {
+
+  @Test
+  public void punctuatedQueriesAreSplitLikeTheTextTheySearch() {
+    InvertedIndex index = new InvertedIndex();
+    index.add(1, "Which O-ring seals the fuel line?");
+    index.add(2, "What is the nose cone built from?");
+
+    assertArrayEquals(new int[] {1}, index.candidates("o-ring"));
+    assertArrayEquals(new int[] {1}, index.rank("O-ring?", 10).toArray());
+    assertArrayEquals(new int[] {2, 1}, index.rank("nose cone, fuel", 10).toArray());
+    assertArrayEquals(new int[] {}, index.candidates("?!"));
+  }
+}
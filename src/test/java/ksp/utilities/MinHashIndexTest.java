@@ -0,0 +1,47 @@
+package ksp.utilities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MinHashIndexTest {
+
+  @Test
+  public void nearDuplicatesAreFoundMostSimilarFirst() {
+    MinHashIndex index = new MinHashIndex();
+    index.add(1, "What fuel ratio are we using for the hot fire test?");
+    index.add(2, "What fuel ratio are we using for the static fire test today?");
+    index.add(3, "What is the nose cone made of?");
+
+    assertArrayEquals(new int[] {1, 2},
+        index.similar("What fuel ratio are we using for the hot fire test?", 0.5).toArray());
+    assertArrayEquals(new int[] {}, index.similar("How many CPUs do we fly?", 0.5).toArray());
+  }
+
+  @Test
+  public void textsAreOnlyIndexedOnceAndOnlyIfTheyHaveWords() {
+    MinHashIndex index = new MinHashIndex();
+    index.add(1, "What is the nose cone made of?");
+    index.add(1, "How many CPUs do we fly?"); // ignored, as 1 is already indexed
+    index.add(2, "?!");
+
+    assertArrayEquals(new int[] {1},
+        index.similar("What is the nose cone made of?", 0.9).toArray());
+    assertArrayEquals(new int[] {}, index.similar("How many CPUs do we fly?", 0.5).toArray());
+    assertArrayEquals(new int[] {}, index.similar("?!", 0).toArray());
+  }
+
+  @Test
+  public void queriesOfAFewWordsAreTooShortToEstimate() {
+    MinHashIndex words = new MinHashIndex();
+    assertFalse(words.canEstimate("Fuel ratio?"));
+    assertFalse(words.canEstimate("What fuel ratio?"));
+    assertTrue(words.canEstimate("What fuel ratio now?"));
+
+    MinHashIndex pairs = new MinHashIndex(20, 3, 2);
+    assertFalse(pairs.canEstimate("What fuel ratio now?")); // only 3 pairs of words
+    assertTrue(pairs.canEstimate("What fuel ratio is it now?"));
+  }
+}